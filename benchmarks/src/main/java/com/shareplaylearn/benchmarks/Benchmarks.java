@@ -0,0 +1,57 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.benchmarks;
+
+import com.shareplaylearn.FileService;
+import com.shareplaylearn.storage.TimedItemStore;
+import spark.RequestResponseFactory;
+import spark.Response;
+
+import java.util.Random;
+
+/**
+ * Points FileService at an in-memory store, with every token accepted, so the benchmarks measure
+ * our own request handling. Caches are left as they are by default (off), so every request goes
+ * through to the store, as a miss would.
+ */
+final class Benchmarks {
+
+    static final String USER_NAME = "bench";
+    static final String USER_ID = "bench-user";
+    static final String TOKEN = "bench-token";
+
+    private Benchmarks() {
+    }
+
+    static InMemoryItemStore useInMemoryStore( boolean statable ) {
+        InMemoryItemStore store = new InMemoryItemStore(statable);
+        FileService.accessValidator = (token, userId) -> true;
+        FileService.itemStore = new TimedItemStore(store, FileService.metrics);
+        return store;
+    }
+
+    static byte[] file( int size ) {
+        byte[] file = new byte[size];
+        new Random(size).nextBytes(file);
+        return file;
+    }
+
+    static Response response( DiscardingServletResponse raw ) {
+        return RequestResponseFactory.create(raw);
+    }
+}
@@ -0,0 +1,266 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.benchmarks;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletResponse;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A response that counts what's written to it, and otherwise throws it away, standing in for Jetty's.
+ * Headers are kept, as the resources read some of them back.
+ */
+public class DiscardingServletResponse implements HttpServletResponse {
+
+    private final Map<String,String> headers = new HashMap<>();
+    private final CountingOutputStream out = new CountingOutputStream();
+    private int status = SC_OK;
+    private String contentType;
+    private boolean committed;
+
+    private final class CountingOutputStream extends ServletOutputStream {
+        long count;
+
+        @Override
+        public void write( int b ) {
+            ++count;
+            committed = true;
+        }
+
+        @Override
+        public void write( byte[] b, int off, int len ) {
+            count += len;
+            committed = true;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener( WriteListener writeListener ) {
+            throw new UnsupportedOperationException("No async I/O in benchmarks");
+        }
+    }
+
+    /**
+     * @return how many bytes of body were written
+     */
+    public long written() {
+        return out.count;
+    }
+
+    @Override
+    public void addCookie( Cookie cookie ) {
+    }
+
+    @Override
+    public boolean containsHeader( String name ) {
+        return headers.containsKey(name);
+    }
+
+    @Override
+    public String encodeURL( String url ) {
+        return url;
+    }
+
+    @Override
+    public String encodeRedirectURL( String url ) {
+        return url;
+    }
+
+    @Override
+    @Deprecated
+    public String encodeUrl( String url ) {
+        return url;
+    }
+
+    @Override
+    @Deprecated
+    public String encodeRedirectUrl( String url ) {
+        return url;
+    }
+
+    @Override
+    public void sendError( int sc, String msg ) {
+        status = sc;
+        committed = true;
+    }
+
+    @Override
+    public void sendError( int sc ) {
+        sendError(sc, null);
+    }
+
+    @Override
+    public void sendRedirect( String location ) {
+        status = SC_FOUND;
+        committed = true;
+    }
+
+    @Override
+    public void setDateHeader( String name, long date ) {
+        headers.put(name, Long.toString(date));
+    }
+
+    @Override
+    public void addDateHeader( String name, long date ) {
+        setDateHeader(name, date);
+    }
+
+    @Override
+    public void setHeader( String name, String value ) {
+        headers.put(name, value);
+    }
+
+    @Override
+    public void addHeader( String name, String value ) {
+        headers.put(name, value);
+    }
+
+    @Override
+    public void setIntHeader( String name, int value ) {
+        headers.put(name, Integer.toString(value));
+    }
+
+    @Override
+    public void addIntHeader( String name, int value ) {
+        setIntHeader(name, value);
+    }
+
+    @Override
+    public void setStatus( int sc ) {
+        status = sc;
+    }
+
+    @Override
+    @Deprecated
+    public void setStatus( int sc, String sm ) {
+        status = sc;
+    }
+
+    @Override
+    public int getStatus() {
+        return status;
+    }
+
+    @Override
+    public String getHeader( String name ) {
+        return headers.get(name);
+    }
+
+    @Override
+    public Collection<String> getHeaders( String name ) {
+        String value = headers.get(name);
+        return value == null ? Collections.emptyList() : Collections.singletonList(value);
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        return new ArrayList<>(headers.keySet());
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+        return StandardCharsets.UTF_8.name();
+    }
+
+    @Override
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+        return out;
+    }
+
+    @Override
+    public PrintWriter getWriter() {
+        return new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void setCharacterEncoding( String charset ) {
+    }
+
+    @Override
+    public void setContentLength( int len ) {
+        setContentLengthLong(len);
+    }
+
+    @Override
+    public void setContentLengthLong( long len ) {
+        headers.put("Content-Length", Long.toString(len));
+    }
+
+    @Override
+    public void setContentType( String type ) {
+        contentType = type;
+    }
+
+    @Override
+    public void setBufferSize( int size ) {
+    }
+
+    @Override
+    public int getBufferSize() {
+        return 0;
+    }
+
+    @Override
+    public void flushBuffer() {
+        committed = true;
+    }
+
+    @Override
+    public void resetBuffer() {
+    }
+
+    @Override
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    @Override
+    public void reset() {
+        headers.clear();
+        status = SC_OK;
+        contentType = null;
+    }
+
+    @Override
+    public void setLocale( Locale loc ) {
+    }
+
+    @Override
+    public Locale getLocale() {
+        return Locale.ROOT;
+    }
+}
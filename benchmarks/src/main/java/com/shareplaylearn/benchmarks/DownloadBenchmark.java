@@ -0,0 +1,76 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.benchmarks;
+
+import com.shareplaylearn.models.ItemSchema;
+import com.shareplaylearn.resources.FileResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileResource.getFile(), unencoded and base64 encoded, for stores that read items into memory (like S3)
+ * and stores that can stream them (statable, like the local store).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DownloadBenchmark {
+
+    private static final String FILENAME = "download.bin";
+
+    @Param({"1024", "65536", "1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"IDENTITY", "BASE64"})
+    public String encoding;
+
+    @Param({"false", "true"})
+    public boolean statable;
+
+    @Setup
+    public void setUp() {
+        InMemoryItemStore store = Benchmarks.useInMemoryStore(statable);
+        store.put(Benchmarks.USER_NAME, Benchmarks.USER_ID, FILENAME, Benchmarks.file(fileSize));
+    }
+
+    @Benchmark
+    public long download() throws Exception {
+        DiscardingServletResponse raw = new DiscardingServletResponse();
+        FileResource.getFile( Benchmarks.USER_NAME, Benchmarks.USER_ID, Benchmarks.TOKEN,
+                InMemoryItemStore.FILE_TYPE, ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE.toString(),
+                FILENAME, encoding, Benchmarks.response(raw) );
+        if( raw.getStatus() != 200 ) {
+            throw new IllegalStateException("Download failed: " + raw.getStatus());
+        }
+        return raw.written();
+    }
+}
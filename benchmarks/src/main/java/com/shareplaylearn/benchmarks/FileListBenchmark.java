@@ -0,0 +1,65 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.benchmarks;
+
+import com.shareplaylearn.resources.FileListResource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileListResource.getFileList(): listing the store and writing the JSON.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileListBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int listLength;
+
+    @Setup
+    public void setUp() {
+        InMemoryItemStore store = Benchmarks.useInMemoryStore(false);
+        byte[] file = Benchmarks.file(16);
+        for( int i = 0; i < listLength; ++i ) {
+            store.put(Benchmarks.USER_NAME, Benchmarks.USER_ID, "item-" + i + ".bin", file);
+        }
+    }
+
+    @Benchmark
+    public long fileList() throws Exception {
+        DiscardingServletResponse raw = new DiscardingServletResponse();
+        FileListResource.getFileList( Benchmarks.USER_NAME, Benchmarks.USER_ID, Benchmarks.TOKEN,
+                Benchmarks.response(raw) );
+        return raw.written();
+    }
+}
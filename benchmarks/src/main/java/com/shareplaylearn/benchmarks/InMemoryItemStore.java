@@ -0,0 +1,121 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.benchmarks;
+
+import com.shareplaylearn.cache.ItemKey;
+import com.shareplaylearn.models.ItemSchema;
+import com.shareplaylearn.storage.ContentIndex;
+import com.shareplaylearn.storage.ItemStat;
+import com.shareplaylearn.storage.ItemStore;
+import com.shareplaylearn.storage.ListedItem;
+import com.shareplaylearn.storage.StorageException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Originals kept in maps, so what's measured is the service, not S3 or a disk.
+ * Everything is stored as file type "unknown".
+ */
+public class InMemoryItemStore implements ItemStore {
+
+    public static final String FILE_TYPE = "unknown";
+    private static final String ORIGINAL = ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE.toString();
+
+    private final Map<String,ConcurrentSkipListMap<String,Item>> users = new ConcurrentHashMap<>();
+    //whether stat() answers, so downloads are streamed from the store rather than read into memory first
+    private final boolean statable;
+
+    private static final class Item {
+        final byte[] bytes;
+        final long lastModified;
+        final String digest;
+        final Listing listing;
+
+        Item( String name, byte[] bytes ) {
+            this.bytes = bytes;
+            this.lastModified = System.currentTimeMillis();
+            this.digest = ContentIndex.hex(ContentIndex.newDigest().digest(bytes));
+            this.listing = new Listing(name, bytes.length, lastModified);
+        }
+    }
+
+    /**
+     * What the file list shows for an item.
+     */
+    static final class Listing {
+        final String name;
+        final String type = FILE_TYPE;
+        final long size;
+        final long lastModified;
+
+        Listing( String name, long size, long lastModified ) {
+            this.name = name;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    public InMemoryItemStore( boolean statable ) {
+        this.statable = statable;
+    }
+
+    @Override
+    public void put( String userName, String userId, String filename, byte[] bytes ) {
+        users.computeIfAbsent(userId, id -> new ConcurrentSkipListMap<>()).put(filename, new Item(filename, bytes));
+    }
+
+    @Override
+    public byte[] get( String userName, ItemKey key ) throws StorageException {
+        return find(key).bytes;
+    }
+
+    @Override
+    public ItemStat stat( String userName, ItemKey key ) throws StorageException {
+        if( !statable ) {
+            return null;
+        }
+        Item item = find(key);
+        return new ItemStat(item.bytes.length, item.lastModified, item.digest);
+    }
+
+    @Override
+    public List<ListedItem> list( String userName, String userId ) {
+        Map<String,Item> items = users.get(userId);
+        List<ListedItem> listed = new ArrayList<>();
+        if( items != null ) {
+            for( Map.Entry<String,Item> item : items.entrySet() ) {
+                listed.add(new ListedItem(item.getKey(), FILE_TYPE, item.getValue().listing));
+            }
+        }
+        return listed;
+    }
+
+    private Item find( ItemKey key ) throws StorageException {
+        Map<String,Item> items = users.get(key.userId);
+        Item item = items == null || !ORIGINAL.equals(key.presentationType) || !FILE_TYPE.equals(key.fileType) ?
+                null : items.get(key.filename);
+        if( item == null ) {
+            throw new StorageException(404, "No such item: " + key.filename);
+        }
+        return item;
+    }
+}
@@ -0,0 +1,331 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.benchmarks;
+
+import com.google.gson.GsonBuilder;
+import com.shareplaylearn.ExecutionConfig;
+import com.shareplaylearn.FileService;
+import com.shareplaylearn.metrics.LatencyHistogram;
+import com.shareplaylearn.models.ItemSchema;
+import com.shareplaylearn.storage.LocalItemStore;
+import com.shareplaylearn.storage.TimedItemStore;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.mime.MultipartEntityBuilder;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import spark.Spark;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs the whole service (Spark, Jetty and all) in this JVM, on a free port, storing items in a temporary
+ * local store and accepting every token, and drives it with many concurrent HTTP clients, each
+ * picking uploads, downloads, range requests and file lists in the configured mix. Reports throughput,
+ * latency percentiles and errors for each, and what the heap and GC did. Nothing goes off the box.
+ *
+ * Configured with system properties:
+ *  loadtest.clients (32), loadtest.seconds (30), loadtest.warmupSeconds (5),
+ *  loadtest.mix ("upload=1,download=6,range=2,list=1"), loadtest.files (200),
+ *  loadtest.fileSizes (bytes, "4096,65536,1048576"),
+ *  and the service's own fileservice.server.* and fileservice.executors.* settings.
+ *
+ *  java -Dloadtest.clients=64 -cp target/benchmarks.jar com.shareplaylearn.benchmarks.LoadTest
+ */
+public class LoadTest {
+
+    private static final String USER_NAME = "load";
+    private static final String USER_ID = "load-user";
+    private static final String FILE_TYPE = "unknown";
+    private static final String ORIGINAL = ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE.toString();
+
+    enum Operation { UPLOAD, DOWNLOAD, RANGE, LIST }
+
+    private static final class Results {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final LongAdder errors = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    private final int files;
+    private final int[] fileSizes;
+    private final Operation[] mix;
+    private final String baseUrl;
+    private final CloseableHttpClient client;
+    private volatile Map<Operation,Results> results = newResults();
+
+    LoadTest( int port, int clients, int files, int[] fileSizes, Operation[] mix ) {
+        this.files = files;
+        this.fileSizes = fileSizes;
+        this.mix = mix;
+        this.baseUrl = "http://127.0.0.1:" + port + "/file_api/";
+        this.client = HttpClients.custom().setMaxConnTotal(clients).setMaxConnPerRoute(clients).build();
+    }
+
+    public static void main( String[] args ) throws Exception {
+        int clients = Integer.getInteger("loadtest.clients", 32);
+        int seconds = Integer.getInteger("loadtest.seconds", 30);
+        int warmupSeconds = Integer.getInteger("loadtest.warmupSeconds", 5);
+        int files = Integer.getInteger("loadtest.files", 200);
+        int[] fileSizes = parseSizes(System.getProperty("loadtest.fileSizes", "4096,65536,1048576"));
+        Operation[] mix = parseMix(System.getProperty("loadtest.mix", "upload=1,download=6,range=2,list=1"));
+
+        Path storeDirectory = Files.createTempDirectory("fileservice-loadtest");
+        int port = freePort();
+        FileService.execution = ExecutionConfig.fromSystemProperties();
+        FileService.accessValidator = (token, userId) -> true;
+        FileService.itemStore = new TimedItemStore(new LocalItemStore(storeDirectory), FileService.metrics);
+        FileService.uploadExecutor = FileService.execution.executor("batch-upload", 8);
+        FileService.archiveExecutor = FileService.execution.executor("archive-fetch", 8);
+        FileService.start(port);
+        Spark.awaitInitialization();
+
+        LoadTest loadTest = new LoadTest(port, clients, files, fileSizes, mix);
+        try {
+            loadTest.seed();
+            System.out.println("Warming up for " + warmupSeconds + "s with " + clients + " clients");
+            loadTest.run(clients, warmupSeconds);
+            loadTest.results = newResults();
+            GcSnapshot before = GcSnapshot.take();
+            System.out.println("Running for " + seconds + "s with " + clients + " clients");
+            long start = System.nanoTime();
+            loadTest.run(clients, seconds);
+            long elapsedNanos = System.nanoTime() - start;
+            loadTest.report(elapsedNanos, before, GcSnapshot.take());
+        } finally {
+            loadTest.client.close();
+            Spark.stop();
+            FileUtils.deleteDirectory(storeDirectory.toFile());
+        }
+    }
+
+    /**
+     * Stores the files the downloads, ranges and lists are of (through the upload route, so
+     * every cache and index knows about them as they would).
+     */
+    void seed() throws IOException {
+        for( int i = 0; i < files; ++i ) {
+            if( !isSuccess(execute(upload(filename(i)), null)) ) {
+                throw new IOException("Could not seed " + filename(i));
+            }
+        }
+    }
+
+    void run( int clients, int seconds ) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        ExecutorService pool = Executors.newFixedThreadPool(clients);
+        for( int i = 0; i < clients; ++i ) {
+            pool.execute( () -> {
+                while( System.nanoTime() < end ) {
+                    Operation operation = mix[ThreadLocalRandom.current().nextInt(mix.length)];
+                    Results operationResults = results.get(operation);
+                    long start = System.nanoTime();
+                    int status;
+                    try {
+                        status = execute(request(operation), operationResults);
+                    } catch ( IOException e ) {
+                        status = -1;
+                    }
+                    operationResults.latency.record(System.nanoTime() - start);
+                    if( !isSuccess(status) ) {
+                        operationResults.errors.increment();
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+    }
+
+    private HttpUriRequest request( Operation operation ) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String filename = filename(random.nextInt(files));
+        switch( operation ) {
+            case UPLOAD:
+                return upload(filename);
+            case DOWNLOAD:
+                return authorized(new HttpGet(baseUrl + "file/" + USER_NAME + "/" + USER_ID + "/" + FILE_TYPE + "/" +
+                        ORIGINAL + "/" + filename));
+            case RANGE:
+                HttpGet range = new HttpGet(baseUrl + "file/" + USER_NAME + "/" + USER_ID + "/" + FILE_TYPE + "/" +
+                        ORIGINAL + "/" + filename);
+                int start = random.nextInt(fileSize(filename) / 2 + 1);
+                range.setHeader("Range", "bytes=" + start + "-" + (start + 4095));
+                return authorized(range);
+            default:
+                return authorized(new HttpGet(baseUrl + "file/" + USER_NAME + "/" + USER_ID + "/filelist"));
+        }
+    }
+
+    private HttpPost upload( String filename ) {
+        byte[] file = new byte[fileSize(filename)];
+        ThreadLocalRandom.current().nextBytes(file);
+        HttpPost post = new HttpPost(baseUrl + "file/form");
+        post.setEntity( MultipartEntityBuilder.create()
+                .addBinaryBody("file", file, ContentType.APPLICATION_OCTET_STREAM, filename)
+                .addTextBody("user_id", USER_ID)
+                .addTextBody("user_name", USER_NAME)
+                .addTextBody("access_token", "load-token")
+                .addTextBody("filename", filename)
+                .build() );
+        return post;
+    }
+
+    private static HttpUriRequest authorized( HttpUriRequest request ) {
+        request.setHeader(FileService.AUTHENTICATION_HEADER, "Bearer load-token");
+        return request;
+    }
+
+    /**
+     * @return the status, having read (and counted) the whole body
+     */
+    private int execute( HttpUriRequest request, Results operationResults ) throws IOException {
+        HttpResponse response = client.execute(request);
+        byte[] body = response.getEntity() == null ? new byte[0] : EntityUtils.toByteArray(response.getEntity());
+        if( operationResults != null ) {
+            operationResults.bytes.add(body.length);
+        }
+        return response.getStatusLine().getStatusCode();
+    }
+
+    private static boolean isSuccess( int status ) {
+        return status >= 200 && status < 300;
+    }
+
+    private static String filename( int i ) {
+        return "load-" + i + ".bin";
+    }
+
+    //each file is always the same size, so ranges stay inside it
+    private int fileSize( String filename ) {
+        return fileSizes[Math.floorMod(filename.hashCode(), fileSizes.length)];
+    }
+
+    void report( long elapsedNanos, GcSnapshot before, GcSnapshot after ) {
+        double seconds = elapsedNanos / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%-9s %10s %9s %8s %10s %10s %10s %10s %10s",
+                "op", "requests", "req/s", "errors", "MB/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+        for( Map.Entry<Operation,Results> entry : results.entrySet() ) {
+            LatencyHistogram latency = entry.getValue().latency;
+            System.out.println(String.format(Locale.ROOT, "%-9s %10d %9.1f %8d %10.2f %10.2f %10.2f %10.2f %10.2f",
+                    entry.getKey().name().toLowerCase(Locale.ROOT), latency.count(), latency.count() / seconds,
+                    entry.getValue().errors.sum(), entry.getValue().bytes.sum() / seconds / (1024 * 1024),
+                    latency.percentileMicros(0.5) / 1e3, latency.percentileMicros(0.99) / 1e3,
+                    latency.percentileMicros(0.999) / 1e3, latency.maxMicros() / 1e3));
+        }
+        //clients and server share this JVM, so this is both of them
+        System.out.println(String.format(Locale.ROOT,
+                "GC: %d collections, %d ms (%.1f%% of the run); heap used %d MB after, peak %d MB",
+                after.collections - before.collections, after.collectionMillis - before.collectionMillis,
+                100.0 * (after.collectionMillis - before.collectionMillis) / (elapsedNanos / 1e6),
+                after.heapUsed / (1024 * 1024), after.peakHeapUsed / (1024 * 1024)));
+        System.out.println("Server side:");
+        System.out.println(new GsonBuilder().setPrettyPrinting().create().toJson(FileService.metrics.snapshot()));
+    }
+
+    static final class GcSnapshot {
+        long collections;
+        long collectionMillis;
+        long heapUsed;
+        long peakHeapUsed;
+
+        static GcSnapshot take() {
+            GcSnapshot snapshot = new GcSnapshot();
+            for( GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans() ) {
+                snapshot.collections += Math.max(0, gc.getCollectionCount());
+                snapshot.collectionMillis += Math.max(0, gc.getCollectionTime());
+            }
+            for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+                if( pool.getType() == MemoryType.HEAP ) {
+                    snapshot.heapUsed += pool.getUsage().getUsed();
+                    snapshot.peakHeapUsed += pool.getPeakUsage().getUsed();
+                    //so the next snapshot's peak is of what came after this one
+                    pool.resetPeakUsage();
+                }
+            }
+            return snapshot;
+        }
+    }
+
+    private static Map<Operation,Results> newResults() {
+        Map<Operation,Results> results = new LinkedHashMap<>();
+        for( Operation operation : Operation.values() ) {
+            results.put(operation, new Results());
+        }
+        return results;
+    }
+
+    /**
+     * "upload=1,download=6" -> an array with each operation in it as many times as its weight,
+     * to pick from at random.
+     */
+    static Operation[] parseMix( String mix ) {
+        List<Operation> operations = new ArrayList<>();
+        for( String entry : mix.split(",") ) {
+            String[] fields = entry.trim().split("=");
+            if( fields.length != 2 ) {
+                throw new IllegalArgumentException("Expected operation=weight, got: " + entry);
+            }
+            Operation operation = Operation.valueOf(fields[0].trim().toUpperCase(Locale.ROOT));
+            for( int i = Integer.parseInt(fields[1].trim()); i > 0; --i ) {
+                operations.add(operation);
+            }
+        }
+        if( operations.isEmpty() ) {
+            throw new IllegalArgumentException("Nothing to run in mix: " + mix);
+        }
+        return operations.toArray(new Operation[operations.size()]);
+    }
+
+    private static int[] parseSizes( String sizes ) {
+        String[] fields = sizes.split(",");
+        int[] parsed = new int[fields.length];
+        for( int i = 0; i < fields.length; ++i ) {
+            parsed[i] = Integer.parseInt(fields[i].trim());
+        }
+        return parsed;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.benchmarks;
+
+import com.shareplaylearn.FileService;
+import com.shareplaylearn.resources.FileFormResource;
+import com.shareplaylearn.storage.ContentIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * FileFormResource.uploadFile(), from the (already spooled) file to the store.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UploadBenchmark {
+
+    @Param({"1024", "65536", "1048576", "16777216"})
+    public int fileSize;
+
+    private byte[] file;
+
+    @Setup
+    public void setUp() {
+        Benchmarks.useInMemoryStore(false);
+        //uploading the same thing again would otherwise be skipped, after the first
+        FileService.contentIndex = new ContentIndex(0);
+        file = Benchmarks.file(fileSize);
+    }
+
+    @Benchmark
+    public String upload() throws Exception {
+        return FileFormResource.uploadFile( Benchmarks.response(new DiscardingServletResponse()),
+                new ByteArrayInputStream(file), file.length, "upload.bin",
+                Benchmarks.USER_ID, Benchmarks.USER_NAME, Benchmarks.TOKEN, null,
+                file.length, "application/octet-stream" );
+    }
+}
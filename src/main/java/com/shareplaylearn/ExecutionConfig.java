@@ -0,0 +1,103 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn;
+
+import com.shareplaylearn.concurrent.BoundedExecutors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ExecutorService;
+
+import static spark.Spark.threadPool;
+
+/**
+ * How requests, and the work they hand off, are run:
+ * the size of Jetty's request thread pool, whether downloads are written without blocking a request
+ * thread (servlet async I/O), and whether hand-off work (batch uploads, archive fetches, async download reads,
+ * token refreshes) runs on virtual threads, when the JVM has them, or on bounded pools of platform threads.
+ */
+public class ExecutionConfig {
+
+    private static final Logger log = LoggerFactory.getLogger(ExecutionConfig.class);
+
+    //Jetty's own defaults
+    public final int maxThreads;
+    public final int minThreads;
+    public final int idleTimeoutMillis;
+    //write download bodies with a WriteListener, rather than on the request thread
+    public final boolean asyncWrites;
+    public final boolean virtualThreads;
+    //how many tasks may wait for each thread of a hand-off pool, before submitters run them themselves
+    public final int queuePerThread;
+
+    public ExecutionConfig( int maxThreads, int minThreads, int idleTimeoutMillis,
+                            boolean asyncWrites, boolean virtualThreads, int queuePerThread ) {
+        if( minThreads < 1 || maxThreads < minThreads ) {
+            throw new IllegalArgumentException("Need 1 <= minThreads <= maxThreads, got " +
+                    minThreads + ", " + maxThreads);
+        }
+        this.maxThreads = maxThreads;
+        this.minThreads = minThreads;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.asyncWrites = asyncWrites;
+        this.virtualThreads = virtualThreads;
+        this.queuePerThread = queuePerThread;
+    }
+
+    /**
+     * Blocking writes on Jetty's default pool, and platform threads for everything else: how things have always run.
+     */
+    public static ExecutionConfig defaults() {
+        return new ExecutionConfig(200, 8, 60000, false, false, 2);
+    }
+
+    public static ExecutionConfig fromSystemProperties() {
+        ExecutionConfig defaults = defaults();
+        return new ExecutionConfig(
+                Integer.getInteger("fileservice.server.maxThreads", defaults.maxThreads),
+                Integer.getInteger("fileservice.server.minThreads", defaults.minThreads),
+                Integer.getInteger("fileservice.server.idleTimeoutMillis", defaults.idleTimeoutMillis),
+                Boolean.parseBoolean(System.getProperty("fileservice.server.asyncWrites",
+                        Boolean.toString(defaults.asyncWrites))),
+                Boolean.parseBoolean(System.getProperty("fileservice.executors.virtualThreads",
+                        Boolean.toString(defaults.virtualThreads))),
+                Integer.getInteger("fileservice.executors.queuePerThread", defaults.queuePerThread) );
+    }
+
+    /**
+     * Sizes Spark's (Jetty's) request thread pool. Has to be called before any routes are added.
+     */
+    public void configureServer() {
+        threadPool(maxThreads, minThreads, idleTimeoutMillis);
+    }
+
+    /**
+     * An executor for work handed off by requests, running at most threads tasks at once,
+     * on virtual threads if they're asked for and available.
+     */
+    public ExecutorService executor( String name, int threads ) {
+        if( virtualThreads ) {
+            ExecutorService virtual = BoundedExecutors.virtualThreads(threads);
+            if( virtual != null ) {
+                return virtual;
+            }
+            log.warn("Virtual threads aren't available on this JVM, using a pool of " + threads + " for " + name);
+        }
+        return BoundedExecutors.callerRunsWhenFull(name, threads, threads * queuePerThread);
+    }
+}
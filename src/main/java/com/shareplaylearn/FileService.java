@@ -17,42 +17,285 @@
  */
 package com.shareplaylearn;
 
+import com.shareplaylearn.auth.AccessValidator;
+import com.shareplaylearn.auth.CoalescingAccessValidator;
+import com.shareplaylearn.auth.SignedTokenValidator;
+import com.shareplaylearn.cache.ExpiringCache;
+import com.shareplaylearn.concurrent.BoundedExecutors;
+import com.shareplaylearn.concurrent.SingleFlight;
+import com.shareplaylearn.derive.DerivationPipeline;
+import com.shareplaylearn.cache.ItemCache;
+import com.shareplaylearn.http.AdmissionController;
+import com.shareplaylearn.http.CacheControlPolicy;
+import com.shareplaylearn.http.DownloadRedirects;
+import com.shareplaylearn.http.ItemValidators;
+import com.shareplaylearn.listing.FileListIndex;
+import com.shareplaylearn.metrics.Metrics;
+import com.shareplaylearn.metrics.RequestTiming;
+import com.shareplaylearn.models.ItemSchema;
+import com.shareplaylearn.resources.ArchiveResource;
 import com.shareplaylearn.resources.FileListResource;
 import com.shareplaylearn.resources.FileResource;
+import com.shareplaylearn.resources.FileServiceStatus;
+import com.shareplaylearn.resources.ChunkedUploadResource;
+import com.shareplaylearn.storage.BucketItemStore;
+import com.shareplaylearn.storage.ContentIndex;
+import com.shareplaylearn.storage.ItemStore;
+import com.shareplaylearn.storage.LocalItemStore;
+import com.shareplaylearn.storage.MultipartUploader;
+import com.shareplaylearn.storage.ListedItem;
+import com.shareplaylearn.storage.S3ItemStore;
+import com.shareplaylearn.storage.TimedItemStore;
+import com.shareplaylearn.storage.UsageTracker;
+import com.shareplaylearn.upload.UploadSessions;
 import spark.route.RouteOverview;
 import static spark.Spark.*;
+import static com.shareplaylearn.http.AdmissionController.Kind.*;
 import com.shareplaylearn.resources.FileFormResource;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
 public class FileService
 {
     public static TokenValidator tokenValidator;
+    //set up in main(); when it isn't, we go straight to the tokenValidator
+    public static AccessValidator accessValidator;
+    //how requests (and the work they hand off) are run; see ExecutionConfig
+    public static ExecutionConfig execution = ExecutionConfig.defaults();
+    public static Metrics metrics = new Metrics();
+    //admits everything unless configured in main()
+    public static AdmissionController admission = AdmissionController.disabled();
+    //what S3 items hold, so identical re-uploads can skip the write
+    public static ContentIndex contentIndex = new ContentIndex(100000);
+    //where items are kept; S3 unless main() is configured otherwise
+    public static ItemStore itemStore = new TimedItemStore( new S3ItemStore(contentIndex), metrics );
+    //disabled unless configured in main(), so tests always go to storage
+    public static ItemCache itemCache = ItemCache.disabled();
+    //storage fetches in flight, by cache generation and item, so concurrent misses on an item share one
+    public static SingleFlight<List<Object>,byte[]> itemFetches = new SingleFlight<>();
+    //how long a request waits on a fetch another request started
+    public static long itemFetchWaitMillis = 30000;
+    public static ExpiringCache<String,List<ListedItem>> fileListCache = ExpiringCache.disabled();
+    public static FileListIndex<ListedItem> fileListIndex = new FileListIndex<>( 10000, 0, TimeUnit.SECONDS,
+            FileListResource::itemName, FileListResource::itemFingerprint );
+    public static ItemValidators itemValidators = new ItemValidators(100000);
+    //downloads are always served inline unless configured in main()
+    public static DownloadRedirects downloadRedirects = DownloadRedirects.disabled();
+    //no quota of our own unless configured in main(); S3 (UserItemManager) has its own either way
+    public static UsageTracker usage = UsageTracker.disabled();
+    public static CacheControlPolicy cacheControlPolicy = CacheControlPolicy.fromSystemProperties(
+            ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE.toString() );
+    public static UploadSessions uploadSessions = new UploadSessions(
+            Paths.get(System.getProperty("java.io.tmpdir"), "fileservice-uploads"), 8 * 1024 * 1024,
+            1000, 10, 24, TimeUnit.HOURS );
+    //shared by every batch upload, so it bounds how many items are stored (and held in memory) at once
+    public static ExecutorService uploadExecutor = BoundedExecutors.callerRunsWhenFull("batch-upload", 4);
+    //how many of those a single batch may use at once
+    public static int batchParallelism = 4;
+    //fetches items for archives, a few ahead of the one being written
+    public static ExecutorService archiveExecutor = BoundedExecutors.callerRunsWhenFull("archive-fetch", 4);
+    public static int archiveReadAhead = 4;
+    //opens and reads items for downloads written with async writes, so slow storage doesn't hold Jetty's threads
+    public static ExecutorService asyncReadExecutor = BoundedExecutors.callerRunsWhenFull("async-read", 4);
+    //makes previews and thumbnails after uploads, for stores that don't make their own
+    public static DerivationPipeline derivations = derivationPipeline( 800, 200,
+            Runtime.getRuntime().availableProcessors(), 1000 );
+    //how long a download of a presentation still being derived waits for it, before getting the original instead
+    public static long derivationWaitMillis = 2000;
     //yes, the http Authorization header is usually used for authentication, as it is here
     public static final String AUTHENTICATION_HEADER = "Authorization";
 
-    public static void main( String[] args )
+    public static final int DEFAULT_PORT = 4173;
+
+    public static void main( String[] args ) throws IOException
     {
+        configure();
+        start( DEFAULT_PORT );
+    }
+
+    /**
+     * Sets everything up from system properties (see the README), including the token validator
+     * that goes to the auth service.
+     */
+    public static void configure() throws IOException {
+        execution = ExecutionConfig.fromSystemProperties();
+        admission = new AdmissionController( Integer.getInteger("fileservice.admission.maxPerUser", 16),
+                Long.getLong("fileservice.admission.maxUploadBytes", 512L * 1024 * 1024),
+                Integer.getInteger("fileservice.admission.largeTransfers", 8),
+                Long.getLong("fileservice.admission.largeTransferBytes", 8L * 1024 * 1024),
+                Integer.getInteger("fileservice.admission.retryAfterSeconds", 2) );
         String validationResource = "https://www.shareplaylearn.com/auth_api/oauthToken_validation";
         int validationCacheSize = 10000;
         int validationCacheTime = 24 * 3600;
         tokenValidator = new TokenValidator( validationResource, validationCacheSize, validationCacheTime );
+        //a couple of threads is plenty for refreshes; if they fall behind, requests just keep using
+        //what we have until it expires
+        ThreadPoolExecutor tokenRefresher = new ThreadPoolExecutor( 2, 2, 0, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(1000), r -> {
+                    Thread thread = new Thread(r, "token-refresh");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        AccessValidator remoteCall = (token, userId) -> {
+            long start = System.nanoTime();
+            try {
+                return tokenValidator.isValid(token, userId);
+            } finally {
+                metrics.timer("auth.remote").record(System.nanoTime() - start);
+            }
+        };
+        AccessValidator remoteValidator = new CoalescingAccessValidator( remoteCall, tokenRefresher,
+                Integer.getInteger("fileservice.auth.maxEntries", 10000),
+                Long.getLong("fileservice.auth.acceptedTtlSeconds", 300L),
+                Long.getLong("fileservice.auth.refreshAheadSeconds", 60L),
+                Long.getLong("fileservice.auth.rejectedTtlSeconds", 10L), TimeUnit.SECONDS );
+        //signed tokens are checked locally when we have keys for them, everything else goes to the auth service
+        accessValidator = SignedTokenValidator.fromSystemProperties( remoteValidator );
+
+        contentIndex = new ContentIndex( Integer.getInteger("fileservice.contentIndex.maxItems", 100000) );
+        String store = System.getProperty("fileservice.store", "s3");
+        if( store.equals("local") ) {
+            itemStore = new TimedItemStore( new LocalItemStore( Paths.get(System.getProperty("fileservice.store.directory",
+                    Paths.get(System.getProperty("java.io.tmpdir"), "fileservice-store").toString())) ), metrics );
+        } else if( store.equals("bucket") ) {
+            String bucket = System.getProperty("fileservice.bucket.name");
+            if( bucket == null ) {
+                throw new IllegalArgumentException("fileservice.bucket.name is needed for the bucket store");
+            }
+            MultipartUploader uploader = new MultipartUploader(
+                    execution.executor( "multipart-upload", Integer.getInteger("fileservice.bucket.uploadThreads", 8) ),
+                    Long.getLong("fileservice.bucket.multipartThresholdBytes", 16L * 1024 * 1024),
+                    Integer.getInteger("fileservice.bucket.partBytes", 8 * 1024 * 1024),
+                    Integer.getInteger("fileservice.bucket.partsInFlight", 4),
+                    Integer.getInteger("fileservice.bucket.maxAttempts", 3),
+                    Long.getLong("fileservice.bucket.retryBackoffMillis", 200L) );
+            String endpoint = System.getProperty("fileservice.bucket.endpoint");
+            itemStore = new TimedItemStore( new BucketItemStore( BucketItemStore.client( endpoint,
+                    System.getProperty("fileservice.bucket.region", "us-east-1"),
+                    Boolean.parseBoolean(System.getProperty("fileservice.bucket.pathStyle", Boolean.toString(endpoint != null))) ),
+                    bucket, uploader ), metrics );
+        } else if( store.equals("s3") ) {
+            itemStore = new TimedItemStore( new S3ItemStore(contentIndex), metrics );
+        } else {
+            throw new IllegalArgumentException("fileservice.store must be s3, bucket or local, was: " + store);
+        }
 
-        int listenPort = 4173;
+        long cacheMemoryBytes = Long.getLong("fileservice.cache.memoryBytes", 64L * 1024 * 1024);
+        long cacheDiskBytes = Long.getLong("fileservice.cache.diskBytes", 0L);
+        long cacheMaxItemBytes = Long.getLong("fileservice.cache.maxItemBytes", 4L * 1024 * 1024);
+        String cacheDirectory = System.getProperty("fileservice.cache.directory",
+                Paths.get(System.getProperty("java.io.tmpdir"), "fileservice-cache").toString());
+        itemCache = new ItemCache( cacheMemoryBytes, cacheMaxItemBytes,
+                Paths.get(cacheDirectory), cacheDiskBytes );
+        itemFetchWaitMillis = Long.getLong("fileservice.cache.fetchWaitMillis", 30000L);
+        fileListCache = new ExpiringCache<>( Integer.getInteger("fileservice.fileListCache.maxUsers", 10000),
+                Long.getLong("fileservice.fileListCache.ttlSeconds", 30L), TimeUnit.SECONDS );
+        fileListIndex = new FileListIndex<>( Integer.getInteger("fileservice.fileListIndex.maxUsers", 10000),
+                Long.getLong("fileservice.fileListIndex.maxAgeSeconds", 0L), TimeUnit.SECONDS,
+                FileListResource::itemName, FileListResource::itemFingerprint );
+        itemValidators = new ItemValidators( Integer.getInteger("fileservice.validators.maxEntries", 100000) );
+        downloadRedirects = DownloadRedirects.fromSystemProperties();
+        usage = new UsageTracker( Long.getLong("fileservice.quota.bytes", 0L),
+                Integer.getInteger("fileservice.quota.maxUsers", 10000),
+                Long.getLong("fileservice.quota.reconcileSeconds", 3600L), TimeUnit.SECONDS );
+        uploadExecutor = execution.executor( "batch-upload",
+                Integer.getInteger("fileservice.uploads.threads", 8) );
+        batchParallelism = Integer.getInteger("fileservice.uploads.batchParallelism", 4);
+        archiveExecutor = execution.executor( "archive-fetch",
+                Integer.getInteger("fileservice.archive.threads", 8) );
+        archiveReadAhead = Integer.getInteger("fileservice.archive.readAhead", 4);
+        asyncReadExecutor = execution.executor( "async-read",
+                Integer.getInteger("fileservice.server.asyncReadThreads", 16) );
+        int cores = Runtime.getRuntime().availableProcessors();
+        derivations = derivationPipeline( Integer.getInteger("fileservice.derive.previewPixels", 800),
+                Integer.getInteger("fileservice.derive.thumbnailPixels", 200),
+                Integer.getInteger("fileservice.derive.threads", cores),
+                Integer.getInteger("fileservice.derive.queueSize", 1000) );
+        derivationWaitMillis = Long.getLong("fileservice.derive.waitMillis", 2000L);
+        uploadSessions = new UploadSessions( Paths.get(System.getProperty("fileservice.uploads.directory",
+                    Paths.get(System.getProperty("java.io.tmpdir"), "fileservice-uploads").toString())),
+                Integer.getInteger("fileservice.uploads.chunkBytes", 8 * 1024 * 1024),
+                Integer.getInteger("fileservice.uploads.maxSessions", 1000),
+                Integer.getInteger("fileservice.uploads.maxSessionsPerUser", 10),
+                Long.getLong("fileservice.uploads.idleHours", 24L), TimeUnit.HOURS );
+    }
+
+    private static DerivationPipeline derivationPipeline( int previewPixels, int thumbnailPixels,
+                                                          int threads, int queueSize ) {
+        return new DerivationPipeline( () -> itemStore,
+                DerivationPipeline.defaultDerivations(previewPixels, thumbnailPixels), threads, queueSize, metrics,
+                (userId, filename) -> {
+                    itemCache.invalidate( userId, filename );
+                    itemValidators.uploaded( userId, filename );
+                });
+    }
+
+    /**
+     * Starts serving, with whatever the static fields are set to at the time (configure() sets them up
+     * for real; tests and the load test set their own). Returns before the server is up,
+     * see Spark.awaitInitialization().
+     */
+    public static void start( int listenPort ) {
         port(listenPort);
+        execution.configureServer();
         //until we configure SSL, this should be hard-coded to localhost
         ipAddress("127.0.0.1");
         RouteOverview.enableRouteOverview("/file_api");
 
+        //liveness only: load balancers look for the OK
         get( "/file_api/status", (req,res) -> {
             res.status(200);
             return "OK";
         });
+        get( "/file_api/status/cache", (req,res) -> FileServiceStatus.getCacheStatus(req,res) );
+        get( "/file_api/status/metrics", (req,res) -> FileServiceStatus.getMetrics(req,res) );
 
         //not entirely happy with a resource named "form", but best I can think of for now
         //there will probably be a really obvious name that occurs to me, once this is
         //embedded in the UI everywhere :O
-        post( "/file_api/file/form", (req,res) -> FileFormResource.handleFormPost(req, res) );
-        get( "/file_api/file/:userName/:userId/filelist", (req,res) -> FileListResource.getFileList(req,res) );
-        get( "/file_api/file/:userName/:userId/:fileType/:presentationType/:filename",
-                (req,res) -> FileResource.getFile(req,res) );
+        //uploads are admitted by their size; downloads go into the large transfer lane once FileResource
+        //knows how big they are
+        post( "/file_api/file/form", metrics.timed( "upload", admission.admit( UPLOAD,
+                (req,res) -> FileFormResource.handleFormPost(req, res) ) ) );
+        post( "/file_api/file/batch_form", metrics.timed( "batchUpload", admission.admit( UPLOAD,
+                (req,res) -> FileFormResource.handleBatchFormPost(req, res) ) ) );
+        post( "/file_api/upload", metrics.timed( "chunkedUpload.initiate", admission.admit( REQUEST,
+                (req,res) -> ChunkedUploadResource.initiate(req, res) ) ) );
+        get( "/file_api/upload/:uploadId", metrics.timed( "chunkedUpload.status", admission.admit( REQUEST,
+                (req,res) -> ChunkedUploadResource.getStatus(req, res) ) ) );
+        put( "/file_api/upload/:uploadId/:chunk", metrics.timed( "chunkedUpload.chunk", admission.admit( UPLOAD,
+                (req,res) -> ChunkedUploadResource.putChunk(req, res) ) ) );
+        post( "/file_api/upload/:uploadId/commit", metrics.timed( "chunkedUpload.commit", admission.admit( LARGE,
+                (req,res) -> ChunkedUploadResource.commit(req, res) ) ) );
+        delete( "/file_api/upload/:uploadId", metrics.timed( "chunkedUpload.abort", admission.admit( REQUEST,
+                (req,res) -> ChunkedUploadResource.abort(req, res) ) ) );
+        get( "/file_api/file/:userName/:userId/filelist", metrics.timed( "fileList", admission.admit( REQUEST,
+                (req,res) -> FileListResource.getFileList(req,res) ) ) );
+        get( "/file_api/file/:userName/:userId/archive", metrics.timed( "archive", admission.admit( LARGE,
+                (req,res) -> ArchiveResource.getArchive(req,res) ) ) );
+        get( "/file_api/file/:userName/:userId/:fileType/:presentationType/:filename", metrics.timed( "download",
+                admission.admit( REQUEST, (req,res) -> FileResource.getFile(req,res) ) ) );
+    }
+
+    /**
+     * What the resources should call to check a token, rather than the tokenValidator directly.
+     */
+    public static boolean isAuthorized( String accessToken, String userId ) throws IOException {
+        AccessValidator validator = accessValidator;
+        if( validator == null ) {
+            validator = tokenValidator::isValid;
+        }
+        long start = System.nanoTime();
+        try {
+            return validator.isValid(accessToken, userId);
+        } finally {
+            metrics.record("auth", RequestTiming.Phase.AUTH, System.nanoTime() - start);
+        }
     }
 }
@@ -0,0 +1,39 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.auth;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Decides whether an access token lets its bearer act as the given user.
+ * TokenValidator::isValid is the original (remote) one; SignedTokenValidator checks
+ * signed tokens locally.
+ */
+@FunctionalInterface
+public interface AccessValidator {
+    boolean isValid( String accessToken, String userId ) throws IOException;
+
+    /**
+     * Counters for the status page, if this keeps any.
+     */
+    default Map<String,Long> stats() {
+        return Collections.emptyMap();
+    }
+}
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.auth;
+
+import com.shareplaylearn.concurrent.SingleFlight;
+import com.shareplaylearn.exceptions.Exceptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sits in front of a slower AccessValidator (the remote one) so that:
+ *  - concurrent checks of the same token/user share one call to it,
+ *  - accepted tokens are remembered for a while, and re-checked in the background
+ *    once they're close to expiring, so a busy token never waits on the remote call again,
+ *  - rejected tokens are remembered briefly, so a client retrying a bad token
+ *    doesn't cost a remote call per retry.
+ * Failures (IOExceptions) are never cached.
+ */
+public class CoalescingAccessValidator implements AccessValidator {
+
+    private static final Logger log = LoggerFactory.getLogger(CoalescingAccessValidator.class);
+
+    private static final class Key {
+        final String accessToken;
+        final String userId;
+
+        Key( String accessToken, String userId ) {
+            this.accessToken = accessToken;
+            this.userId = userId;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if( this == o ) return true;
+            if( !(o instanceof Key) ) return false;
+            Key key = (Key) o;
+            return Objects.equals(accessToken, key.accessToken) && Objects.equals(userId, key.userId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(accessToken, userId);
+        }
+    }
+
+    private static final class Decision {
+        final boolean valid;
+        final long refreshAt;
+        final long expiresAt;
+        //so we only queue one background refresh per entry
+        boolean refreshing;
+
+        Decision( boolean valid, long refreshAt, long expiresAt ) {
+            this.valid = valid;
+            this.refreshAt = refreshAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final AccessValidator delegate;
+    private final Executor refresher;
+    private final long acceptedTtlNanos;
+    private final long refreshAheadNanos;
+    private final long rejectedTtlNanos;
+    private final LinkedHashMap<Key,Decision> decisions;
+    private final SingleFlight<Key,Boolean> inFlight = new SingleFlight<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder rejectedHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+
+    /**
+     * @param delegate the validator we're saving calls to
+     * @param refresher runs background refreshes. Should be small and bounded, and reject
+     *                  (rather than queue forever) when it's busy; we just try again next request.
+     * @param acceptedTtl how long a valid token is trusted without asking again
+     * @param refreshAhead how long before that runs out to start re-checking in the background
+     * @param rejectedTtl how long a rejection is remembered
+     */
+    public CoalescingAccessValidator( AccessValidator delegate, Executor refresher, final int maxEntries,
+                                      long acceptedTtl, long refreshAhead, long rejectedTtl, TimeUnit unit ) {
+        this.delegate = delegate;
+        this.refresher = refresher;
+        this.acceptedTtlNanos = unit.toNanos(acceptedTtl);
+        this.refreshAheadNanos = Math.min(unit.toNanos(refreshAhead), acceptedTtlNanos);
+        this.rejectedTtlNanos = unit.toNanos(rejectedTtl);
+        this.decisions = new LinkedHashMap<Key,Decision>(Math.min(maxEntries, 1024) + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<Key,Decision> eldest ) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public boolean isValid( String accessToken, String userId ) throws IOException {
+        Key key = new Key(accessToken, userId);
+        long now = System.nanoTime();
+        boolean refresh = false;
+        synchronized (this) {
+            Decision decision = decisions.get(key);
+            if( decision != null && decision.expiresAt - now > 0 ) {
+                if( decision.valid ) {
+                    hits.increment();
+                    if( !decision.refreshing && decision.refreshAt - now <= 0 ) {
+                        decision.refreshing = true;
+                        refresh = true;
+                    }
+                } else {
+                    rejectedHits.increment();
+                }
+                if( !refresh ) {
+                    return decision.valid;
+                }
+            } else if( decision != null ) {
+                decisions.remove(key);
+            }
+        }
+        if( refresh ) {
+            refreshInBackground(key);
+            return true;
+        }
+        misses.increment();
+        return validate(key);
+    }
+
+    private boolean validate( Key key ) throws IOException {
+        try {
+            return inFlight.get(key, () -> {
+                boolean valid = delegate.isValid(key.accessToken, key.userId);
+                remember(key, valid);
+                return valid;
+            });
+        } catch ( IOException | RuntimeException e ) {
+            throw e;
+        } catch ( Exception e ) {
+            throw new IOException(e);
+        }
+    }
+
+    private void refreshInBackground( Key key ) {
+        try {
+            refresher.execute(() -> {
+                refreshes.increment();
+                try {
+                    validate(key);
+                } catch ( IOException | RuntimeException e ) {
+                    //keep trusting what we had until it expires; the next hit will try again
+                    log.warn("Background token refresh failed: " + Exceptions.asString(e));
+                    synchronized (this) {
+                        Decision decision = decisions.get(key);
+                        if( decision != null ) {
+                            decision.refreshing = false;
+                        }
+                    }
+                }
+            });
+        } catch ( RejectedExecutionException e ) {
+            synchronized (this) {
+                Decision decision = decisions.get(key);
+                if( decision != null ) {
+                    decision.refreshing = false;
+                }
+            }
+        }
+    }
+
+    private synchronized void remember( Key key, boolean valid ) {
+        long now = System.nanoTime();
+        long ttl = valid ? acceptedTtlNanos : rejectedTtlNanos;
+        if( ttl <= 0 ) {
+            decisions.remove(key);
+            return;
+        }
+        decisions.put(key, new Decision(valid, now + ttl - (valid ? refreshAheadNanos : 0), now + ttl));
+    }
+
+    @Override
+    public Map<String,Long> stats() {
+        Map<String,Long> stats = new LinkedHashMap<>();
+        stats.put("hits", hits.sum());
+        stats.put("rejectedHits", rejectedHits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("remoteCalls", inFlight.loads());
+        stats.put("coalesced", inFlight.coalesced());
+        stats.put("backgroundRefreshes", refreshes.sum());
+        synchronized (this) {
+            stats.put("entries", (long) decisions.size());
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.auth;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Verifies self-contained signed tokens locally, so they never cost a call to the auth service.
+ * Tokens are the usual compact form: base64url(header).base64url(claims).base64url(signature),
+ * with a header of {"alg": "HS256"} or {"alg": "RS256"}, and claims of
+ * {"sub": userId, "exp": expiry in epoch seconds}.
+ * Anything that isn't one of those, or that's signed with an algorithm we have no key for,
+ * goes to the fallback (the remote validator), if there is one.
+ */
+public class SignedTokenValidator implements AccessValidator {
+
+    public static final String HS256 = "HS256";
+    public static final String RS256 = "RS256";
+    //tolerated difference between our clock and the issuer's
+    private static final long CLOCK_SKEW_SECONDS = 30;
+    private static final Gson GSON = new Gson();
+
+    private static class Header {
+        String alg;
+    }
+
+    private static class Claims {
+        String sub;
+        Long exp;
+    }
+
+    private final byte[] hmacKey;
+    private final PublicKey rsaKey;
+    private final AccessValidator fallback;
+    private final ThreadLocal<Mac> macs;
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder deferred = new LongAdder();
+
+    /**
+     * @param hmacKey the shared secret for HS256 tokens, or null to not accept them
+     * @param rsaKey the issuer's public key for RS256 tokens, or null to not accept them
+     * @param fallback what to ask about tokens we can't verify here, or null to reject them
+     */
+    public SignedTokenValidator( byte[] hmacKey, PublicKey rsaKey, AccessValidator fallback ) {
+        this.hmacKey = hmacKey == null ? null : hmacKey.clone();
+        this.rsaKey = rsaKey;
+        this.fallback = fallback;
+        this.macs = ThreadLocal.withInitial(() -> {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA256");
+                mac.init(new SecretKeySpec(this.hmacKey, "HmacSHA256"));
+                return mac;
+            } catch ( GeneralSecurityException e ) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Reads the keys named by fileservice.auth.hmacKeyFile (a base64 encoded secret) and
+     * fileservice.auth.rsaPublicKeyFile (a PEM "PUBLIC KEY"). If neither is set, there's nothing
+     * to verify with, and this just returns the fallback.
+     */
+    public static AccessValidator fromSystemProperties( AccessValidator fallback ) throws IOException {
+        String hmacKeyFile = System.getProperty("fileservice.auth.hmacKeyFile");
+        String rsaKeyFile = System.getProperty("fileservice.auth.rsaPublicKeyFile");
+        if( hmacKeyFile == null && rsaKeyFile == null ) {
+            return fallback;
+        }
+        byte[] hmacKey = null;
+        if( hmacKeyFile != null ) {
+            String encoded = new String(Files.readAllBytes(Paths.get(hmacKeyFile)), StandardCharsets.US_ASCII);
+            hmacKey = Base64.getMimeDecoder().decode(encoded.trim());
+        }
+        PublicKey rsaKey = null;
+        if( rsaKeyFile != null ) {
+            rsaKey = readPublicKey(new String(Files.readAllBytes(Paths.get(rsaKeyFile)), StandardCharsets.US_ASCII));
+        }
+        return new SignedTokenValidator(hmacKey, rsaKey, fallback);
+    }
+
+    public static PublicKey readPublicKey( String pem ) throws IOException {
+        String encoded = pem.replace("-----BEGIN PUBLIC KEY-----", "")
+                .replace("-----END PUBLIC KEY-----", "");
+        try {
+            return KeyFactory.getInstance("RSA").generatePublic(
+                    new X509EncodedKeySpec(Base64.getMimeDecoder().decode(encoded.trim())));
+        } catch ( GeneralSecurityException | IllegalArgumentException e ) {
+            throw new IOException("Not a PEM encoded RSA public key", e);
+        }
+    }
+
+    @Override
+    public boolean isValid( String accessToken, String userId ) throws IOException {
+        String[] parts = accessToken == null ? new String[0] : accessToken.split("\\.", -1);
+        Header header = parts.length == 3 ? decode(parts[0], Header.class) : null;
+        if( header == null || !canVerify(header.alg) ) {
+            deferred.increment();
+            return fallback != null && fallback.isValid(accessToken, userId);
+        }
+        boolean valid = verify(header.alg, parts) && claimsAllow(decode(parts[1], Claims.class), userId);
+        (valid ? accepted : rejected).increment();
+        return valid;
+    }
+
+    private boolean canVerify( String alg ) {
+        return (HS256.equals(alg) && hmacKey != null) || (RS256.equals(alg) && rsaKey != null);
+    }
+
+    private boolean verify( String alg, String[] parts ) {
+        byte[] signed = (parts[0] + "." + parts[1]).getBytes(StandardCharsets.US_ASCII);
+        byte[] signature;
+        try {
+            signature = Base64.getUrlDecoder().decode(parts[2]);
+        } catch ( IllegalArgumentException e ) {
+            return false;
+        }
+        if( HS256.equals(alg) ) {
+            //constant time, so the comparison doesn't leak how much of a forgery was right
+            return MessageDigest.isEqual(macs.get().doFinal(signed), signature);
+        }
+        try {
+            Signature verifier = Signature.getInstance("SHA256withRSA");
+            verifier.initVerify(rsaKey);
+            verifier.update(signed);
+            return verifier.verify(signature);
+        } catch ( GeneralSecurityException e ) {
+            return false;
+        }
+    }
+
+    private static boolean claimsAllow( Claims claims, String userId ) {
+        if( claims == null || claims.sub == null || claims.exp == null ) {
+            return false;
+        }
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        return claims.sub.equals(userId) && claims.exp + CLOCK_SKEW_SECONDS > now;
+    }
+
+    private static <T> T decode( String part, Class<T> type ) {
+        try {
+            return GSON.fromJson(new String(Base64.getUrlDecoder().decode(part), StandardCharsets.UTF_8), type);
+        } catch ( IllegalArgumentException | JsonParseException e ) {
+            return null;
+        }
+    }
+
+    @Override
+    public Map<String,Long> stats() {
+        Map<String,Long> stats = new LinkedHashMap<>();
+        stats.put("signedAccepted", accepted.sum());
+        stats.put("signedRejected", rejected.sum());
+        stats.put("deferred", deferred.sum());
+        if( fallback != null ) {
+            stats.putAll(fallback.stats());
+        }
+        return stats;
+    }
+}
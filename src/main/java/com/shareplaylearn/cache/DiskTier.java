@@ -0,0 +1,184 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.cache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Spill tier for entries pushed out of memory. Each entry is a file named by the hash of its key;
+ * the LRU index only lives in memory, so those files (and any half written ones) are cleared out of the
+ * directory when the tier is created. Nothing else in the directory is touched.
+ * Entries are written to a temporary file first, but moved into place, and deleted, under the same lock
+ * as the index is changed under, so the files always match it: an eviction can't delete a newer copy
+ * of the same key that was put while it was at it.
+ */
+class DiskTier {
+
+    private static final Logger log = LoggerFactory.getLogger(DiskTier.class);
+
+    private static final String ENTRY_SUFFIX = ".cached";
+    private static final String TEMP_PREFIX = "spill";
+    private static final String TEMP_SUFFIX = ".tmp";
+    //what pathFor() and put() name their files
+    private static final Pattern OWN_FILES = Pattern.compile(
+            "[0-9a-f]{64}" + Pattern.quote(ENTRY_SUFFIX) + "|" +
+            Pattern.quote(TEMP_PREFIX) + "[0-9]*" + Pattern.quote(TEMP_SUFFIX) );
+
+    private final Path directory;
+    private final long maxBytes;
+    private final LinkedHashMap<ItemKey,Long> index = new LinkedHashMap<>(256, 0.75f, true);
+    private long size = 0;
+
+    DiskTier( Path directory, long maxBytes ) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(directory,
+                path -> OWN_FILES.matcher(path.getFileName().toString()).matches() && Files.isRegularFile(path))) {
+            for( Path path : stale ) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    byte[] get( ItemKey key ) {
+        synchronized (this) {
+            if( index.get(key) == null ) {
+                return null;
+            }
+        }
+        try {
+            return Files.readAllBytes(pathFor(key));
+        } catch ( NoSuchFileException e ) {
+            //evicted or invalidated between the index check and the read
+            return null;
+        } catch ( IOException e ) {
+            log.warn("Failed to read cached item " + key + ": " + e.getMessage());
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the entry, then moves it into place and indexes it, unless its user's generation has moved
+     * on from the given one, in which case it may be stale, and is dropped.
+     */
+    void put( ItemKey key, byte[] bytes, Generations generations, long expectedGeneration ) {
+        if( bytes.length > maxBytes ) {
+            return;
+        }
+        Path tempPath;
+        try {
+            tempPath = Files.createTempFile(directory, TEMP_PREFIX, TEMP_SUFFIX);
+            Files.write(tempPath, bytes);
+        } catch ( IOException e ) {
+            log.warn("Failed to spill item " + key + " to disk: " + e.getMessage());
+            return;
+        }
+        synchronized (this) {
+            try {
+                if( generations.get(key.userId) != expectedGeneration ) {
+                    deleteQuietly(tempPath, key);
+                    return;
+                }
+                Files.move(tempPath, pathFor(key), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch ( IOException e ) {
+                log.warn("Failed to spill item " + key + " to disk: " + e.getMessage());
+                deleteQuietly(tempPath, key);
+                return;
+            }
+            Long previous = index.put(key, (long) bytes.length);
+            if( previous != null ) {
+                size -= previous;
+            }
+            size += bytes.length;
+            Iterator<Map.Entry<ItemKey,Long>> eldest = index.entrySet().iterator();
+            while( size > maxBytes && eldest.hasNext() ) {
+                Map.Entry<ItemKey,Long> entry = eldest.next();
+                eldest.remove();
+                size -= entry.getValue();
+                deleteQuietly(pathFor(entry.getKey()), entry.getKey());
+            }
+        }
+    }
+
+    synchronized void invalidate( String userId, String filename ) {
+        Iterator<Map.Entry<ItemKey,Long>> iterator = index.entrySet().iterator();
+        while( iterator.hasNext() ) {
+            Map.Entry<ItemKey,Long> entry = iterator.next();
+            if( entry.getKey().isItem(userId, filename) ) {
+                size -= entry.getValue();
+                iterator.remove();
+                deleteQuietly(pathFor(entry.getKey()), entry.getKey());
+            }
+        }
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    synchronized int count() {
+        return index.size();
+    }
+
+    private synchronized void remove( ItemKey key ) {
+        Long previous = index.remove(key);
+        if( previous != null ) {
+            size -= previous;
+        }
+        deleteQuietly(pathFor(key), key);
+    }
+
+    private static void deleteQuietly( Path path, ItemKey key ) {
+        try {
+            Files.deleteIfExists(path);
+        } catch ( IOException e ) {
+            log.warn("Failed to delete cached item " + key + ": " + e.getMessage());
+        }
+    }
+
+    private Path pathFor( ItemKey key ) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256")
+                    .digest(key.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+            for( byte b : hash ) {
+                name.append(String.format("%02x", b));
+            }
+            return directory.resolve(name.append(ENTRY_SUFFIX).toString());
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException("SHA-256 is required by every JVM", e);
+        }
+    }
+}
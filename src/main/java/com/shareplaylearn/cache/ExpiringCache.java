@@ -0,0 +1,115 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.cache;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A small LRU map whose entries also expire a fixed time after they were written.
+ * Like ItemCache, puts carry the generation of their key read before the value was fetched,
+ * so a value fetched before its key was invalidated is never cached after it; other keys'
+ * fetches are unaffected.
+ */
+public class ExpiringCache<K,V> {
+
+    private static class Expiring<V> {
+        final V value;
+        final long expiresAt;
+
+        Expiring( V value, long expiresAt ) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final LinkedHashMap<K,Expiring<V>> entries;
+    private final long ttlNanos;
+    private final Generations generations = new Generations();
+    private final LongAdder invalidations = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ExpiringCache( final int maxEntries, long ttl, TimeUnit unit ) {
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<K,Expiring<V>>(Math.min(maxEntries, 1024) + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<K,Expiring<V>> eldest ) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * A cache that never holds anything.
+     */
+    public static <K,V> ExpiringCache<K,V> disabled() {
+        return new ExpiringCache<>(0, 0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the value, or null if there isn't one, or it's expired
+     */
+    public V get( K key ) {
+        synchronized (this) {
+            Expiring<V> entry = entries.get(key);
+            if( entry != null ) {
+                if( entry.expiresAt - System.nanoTime() > 0 ) {
+                    hits.increment();
+                    return entry.value;
+                }
+                entries.remove(key);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Call this before fetching the key's value, and hand the result to put().
+     */
+    public long generation( K key ) {
+        return generations.get(key);
+    }
+
+    public synchronized void put( K key, V value, long fetchGeneration ) {
+        if( ttlNanos <= 0 || generations.get(key) != fetchGeneration ) {
+            return;
+        }
+        entries.put(key, new Expiring<>(value, System.nanoTime() + ttlNanos));
+    }
+
+    public synchronized void invalidate( K key ) {
+        generations.bump(key);
+        invalidations.increment();
+        entries.remove(key);
+    }
+
+    public Map<String,Long> stats() {
+        Map<String,Long> stats = new LinkedHashMap<>();
+        stats.put("hits", hits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("invalidations", invalidations.sum());
+        synchronized (this) {
+            stats.put("entries", (long) entries.size());
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Cache generations, per user (or other key): bumped whenever one of a user's entries is invalidated, so a
+ * fetch that raced an upload can't re-cache stale values, without throwing away every other user's fetches
+ * too. Users share a fixed number of counters, by hash, so this stays bounded; users who share one only
+ * cost each other the odd uncached fetch.
+ */
+class Generations {
+
+    private static final int COUNTERS = 4096;
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTERS);
+
+    long get( Object userId ) {
+        return counters.get(index(userId));
+    }
+
+    void bump( Object userId ) {
+        counters.incrementAndGet(index(userId));
+    }
+
+    private static int index( Object userId ) {
+        return (userId.hashCode() & Integer.MAX_VALUE) % COUNTERS;
+    }
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.cache;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A two tier cache of item bytes in front of storage: a size bounded LRU in memory,
+ * which spills what it evicts to a size bounded LRU on local disk.
+ * Items bigger than maxItemBytes are never cached, so one large original can't flush
+ * out thousands of thumbnails.
+ */
+public class ItemCache {
+
+    private final MemoryTier memoryTier;
+    private final DiskTier diskTier;
+    private final long maxItemBytes;
+
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final Generations generations = new Generations();
+
+    /**
+     * A cache that never holds anything.
+     */
+    public static ItemCache disabled() {
+        return new ItemCache(0, 0);
+    }
+
+    public ItemCache( long memoryBytes, long maxItemBytes ) {
+        this.memoryTier = new MemoryTier(memoryBytes);
+        this.diskTier = null;
+        this.maxItemBytes = maxItemBytes;
+    }
+
+    /**
+     * @param diskDirectory where to spill entries evicted from memory. Anything already in
+     *                      this directory is deleted.
+     */
+    public ItemCache( long memoryBytes, long maxItemBytes, Path diskDirectory, long diskBytes )
+            throws IOException {
+        this.memoryTier = new MemoryTier(memoryBytes);
+        this.diskTier = diskBytes > 0 ? new DiskTier(diskDirectory, diskBytes) : null;
+        this.maxItemBytes = maxItemBytes;
+    }
+
+    /**
+     * @return the cached bytes, or null on a miss. Callers must not modify the array.
+     */
+    public byte[] get( ItemKey key ) {
+        byte[] bytes = memoryTier.get(key);
+        if( bytes != null ) {
+            memoryHits.increment();
+            return bytes;
+        }
+        if( diskTier != null ) {
+            //read first, so if the item's invalidated while we're reading it, it isn't put back in memory
+            long generation = generations.get(key.userId);
+            bytes = diskTier.get(key);
+            if( bytes != null ) {
+                diskHits.increment();
+                spill(memoryTier.put(key, bytes, generations, generation));
+                return bytes;
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    /**
+     * Call this before fetching one of the user's items from storage, and hand the result to put().
+     */
+    public long generation( String userId ) {
+        return generations.get(userId);
+    }
+
+    /**
+     * Caches bytes fetched from storage, unless one of the user's items was invalidated since the fetch started.
+     * @param fetchGeneration what generation() returned for the item's user before the fetch
+     */
+    public void put( ItemKey key, byte[] bytes, long fetchGeneration ) {
+        if( bytes == null || bytes.length > maxItemBytes ) {
+            return;
+        }
+        spill(memoryTier.put(key, bytes, generations, fetchGeneration));
+    }
+
+    /**
+     * Drops every presentation of the given item, e.g. after it's been uploaded again.
+     */
+    public void invalidate( String userId, String filename ) {
+        invalidations.increment();
+        memoryTier.invalidate(userId, filename, generations);
+        if( diskTier != null ) {
+            diskTier.invalidate(userId, filename);
+        }
+    }
+
+    public Map<String,Long> stats() {
+        Map<String,Long> stats = new LinkedHashMap<>();
+        stats.put("memoryHits", memoryHits.sum());
+        stats.put("diskHits", diskHits.sum());
+        stats.put("misses", misses.sum());
+        stats.put("invalidations", invalidations.sum());
+        stats.put("memoryEntries", (long) memoryTier.count());
+        stats.put("memoryBytes", memoryTier.size());
+        stats.put("diskEntries", diskTier == null ? 0L : diskTier.count());
+        stats.put("diskBytes", diskTier == null ? 0L : diskTier.size());
+        return stats;
+    }
+
+    private void spill( List<MemoryTier.Evicted> evicted ) {
+        if( diskTier == null ) {
+            return;
+        }
+        for( MemoryTier.Evicted entry : evicted ) {
+            diskTier.put(entry.key, entry.bytes, generations, entry.generation);
+        }
+    }
+}
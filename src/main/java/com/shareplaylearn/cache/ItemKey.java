@@ -0,0 +1,65 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.cache;
+
+import java.util.Objects;
+
+/**
+ * Identifies one presentation of one user's item, the same way the
+ * /file_api/file/:userName/:userId/:fileType/:presentationType/:filename route does.
+ */
+public class ItemKey {
+    public final String userId;
+    public final String fileType;
+    public final String presentationType;
+    public final String filename;
+
+    public ItemKey( String userId, String fileType, String presentationType, String filename ) {
+        this.userId = userId;
+        this.fileType = fileType;
+        this.presentationType = presentationType;
+        this.filename = filename;
+    }
+
+    public boolean isItem( String userId, String filename ) {
+        return this.userId.equals(userId) && this.filename.equals(filename);
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+        if( this == o ) {
+            return true;
+        }
+        if( !(o instanceof ItemKey) ) {
+            return false;
+        }
+        ItemKey other = (ItemKey) o;
+        return userId.equals(other.userId) && fileType.equals(other.fileType) &&
+                presentationType.equals(other.presentationType) && filename.equals(other.filename);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(userId, fileType, presentationType, filename);
+    }
+
+    @Override
+    public String toString() {
+        return userId + "/" + fileType + "/" + presentationType + "/" + filename;
+    }
+}
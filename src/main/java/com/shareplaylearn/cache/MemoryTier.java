@@ -0,0 +1,109 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An LRU map of item bytes, bounded by the total number of bytes held rather than the entry count.
+ */
+class MemoryTier {
+
+    private final long maxBytes;
+    private final LinkedHashMap<ItemKey,byte[]> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long size = 0;
+
+    MemoryTier( long maxBytes ) {
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized byte[] get( ItemKey key ) {
+        return entries.get(key);
+    }
+
+    /**
+     * An entry pushed out of memory, with its user's generation when it was (so it's only spilled to disk
+     * if that user's items haven't been invalidated since).
+     */
+    static final class Evicted {
+        final ItemKey key;
+        final byte[] bytes;
+        final long generation;
+
+        Evicted( ItemKey key, byte[] bytes, long generation ) {
+            this.key = key;
+            this.bytes = bytes;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Stores the entry, unless its user's generation has moved on from the given one
+     * (checked under the same lock invalidate() bumps it and clears entries under).
+     * @return the entries evicted to make room, least recently used first, so they can be spilled
+     */
+    synchronized List<Evicted> put( ItemKey key, byte[] bytes, Generations generations, long expectedGeneration ) {
+        if( generations.get(key.userId) != expectedGeneration ) {
+            return Collections.emptyList();
+        }
+        byte[] previous = entries.put(key, bytes);
+        if( previous != null ) {
+            size -= previous.length;
+        }
+        size += bytes.length;
+        List<Evicted> evicted = new ArrayList<>();
+        Iterator<Map.Entry<ItemKey,byte[]>> eldest = entries.entrySet().iterator();
+        while( size > maxBytes && eldest.hasNext() ) {
+            Map.Entry<ItemKey,byte[]> entry = eldest.next();
+            eldest.remove();
+            size -= entry.getValue().length;
+            evicted.add(new Evicted(entry.getKey(), entry.getValue(), generations.get(entry.getKey().userId)));
+        }
+        return evicted;
+    }
+
+    /**
+     * Bumps the user's generation, and drops every presentation of the item. Both happen under the lock,
+     * so anything evicted before is spilled with the old generation (and so isn't), and anything after
+     * is already gone.
+     */
+    synchronized void invalidate( String userId, String filename, Generations generations ) {
+        generations.bump(userId);
+        Iterator<Map.Entry<ItemKey,byte[]>> iterator = entries.entrySet().iterator();
+        while( iterator.hasNext() ) {
+            Map.Entry<ItemKey,byte[]> entry = iterator.next();
+            if( entry.getKey().isItem(userId, filename) ) {
+                size -= entry.getValue().length;
+                iterator.remove();
+            }
+        }
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    synchronized int count() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.concurrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pools for work the request threads hand off.
+ */
+public class BoundedExecutors {
+
+    /**
+     * A pool of daemon threads whose queue holds at most a couple of tasks per thread. When it's
+     * full, the submitting (request) thread runs the task itself, which slows that request down
+     * instead of piling work (and the memory it holds) up in the queue.
+     */
+    public static ExecutorService callerRunsWhenFull( String name, int threads ) {
+        return callerRunsWhenFull( name, threads, threads * 2 );
+    }
+
+    /**
+     * @param queueSize how many tasks can wait for a thread before submitters run them themselves
+     */
+    public static ExecutorService callerRunsWhenFull( String name, int threads, int queueSize ) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor( threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueSize)), r -> {
+                    Thread thread = new Thread(r, name + "-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy() );
+    }
+
+    /**
+     * A virtual thread per task, with at most maxConcurrent running at once; past that, the submitting
+     * thread runs the task itself, as with callerRunsWhenFull(). Blocked virtual threads don't hold on
+     * to a platform thread, so these suit tasks that mostly wait on storage.
+     * @return null if this JVM doesn't have virtual threads (they need Java 21)
+     */
+    public static ExecutorService virtualThreads( int maxConcurrent ) {
+        ExecutorService perTask = newVirtualThreadPerTaskExecutor();
+        return perTask == null ? null : new ConcurrencyLimitedExecutor( perTask, maxConcurrent );
+    }
+
+    public static boolean virtualThreadsSupported() {
+        return virtualThreadFactoryMethod() != null;
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        Method factory = virtualThreadFactoryMethod();
+        if( factory == null ) {
+            return null;
+        }
+        try {
+            return (ExecutorService) factory.invoke(null);
+        } catch ( ReflectiveOperationException e ) {
+            throw new IllegalStateException("Could not create a virtual thread executor", e);
+        }
+    }
+
+    //we build for Java 8, so this can only be looked up
+    private static Method virtualThreadFactoryMethod() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch ( NoSuchMethodException e ) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.concurrent;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collapses concurrent loads of the same key into one: the first caller runs the loader,
+ * and everyone who asks for the key while it's running waits for, and shares, its result
+ * (or its exception). Nothing is kept once the load finishes; caching is up to the caller.
+ */
+public class SingleFlight<K,V> {
+
+    private final ConcurrentHashMap<K,CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+
+    /**
+     * @throws Exception whatever the loader threw, whether we ran it, or another caller did
+     */
+    public V get( K key, Callable<? extends V> loader ) throws Exception {
+        return get(key, loader, -1, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param timeout how long to wait for someone else's load, if there's one in flight.
+     *                A negative timeout waits as long as it takes.
+     * @throws TimeoutException if we gave up waiting on someone else's load (which carries on)
+     */
+    public V get( K key, Callable<? extends V> loader, long timeout, TimeUnit unit ) throws Exception {
+        CompletableFuture<V> ours = new CompletableFuture<>();
+        CompletableFuture<V> theirs = inFlight.putIfAbsent(key, ours);
+        if( theirs != null ) {
+            coalesced.increment();
+            try {
+                return timeout < 0 ? theirs.get() : theirs.get(timeout, unit);
+            } catch ( ExecutionException e ) {
+                throw rethrowable(e.getCause());
+            }
+        }
+        loads.increment();
+        try {
+            V value = loader.call();
+            ours.complete(value);
+            return value;
+        } catch ( Throwable t ) {
+            ours.completeExceptionally(t);
+            throw rethrowable(t);
+        } finally {
+            inFlight.remove(key, ours);
+        }
+    }
+
+    public int inFlight() {
+        return inFlight.size();
+    }
+
+    public long loads() {
+        return loads.sum();
+    }
+
+    /**
+     * @return how many callers shared a load someone else started
+     */
+    public long coalesced() {
+        return coalesced.sum();
+    }
+
+    private static Exception rethrowable( Throwable t ) {
+        if( t instanceof Exception ) {
+            return (Exception) t;
+        }
+        if( t instanceof Error ) {
+            throw (Error) t;
+        }
+        return new ExecutionException(t);
+    }
+}
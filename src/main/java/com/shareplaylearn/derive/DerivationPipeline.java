@@ -0,0 +1,240 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.derive;
+
+import com.shareplaylearn.cache.ItemKey;
+import com.shareplaylearn.concurrent.BoundedExecutors;
+import com.shareplaylearn.exceptions.Exceptions;
+import com.shareplaylearn.metrics.Metrics;
+import com.shareplaylearn.models.ItemSchema;
+import com.shareplaylearn.storage.ItemStore;
+import com.shareplaylearn.storage.StorageException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import static org.eclipse.jetty.http.HttpStatus.Code.NOT_FOUND;
+
+/**
+ * Makes the derived presentations (previews, thumbnails) of uploaded items in the background, so an
+ * upload can answer as soon as its original is stored. Only for stores that don't derive their own
+ * (see ItemStore.derivesPresentations()).
+ *
+ * A job reads the original back from the store when it runs, rather than holding on to the uploaded
+ * bytes while it waits. If an item is uploaded again before its job has started, the one job covers
+ * both; if it's already running, another is queued, so the latest upload always gets derived.
+ * When the queue is full, the uploading thread derives the item itself, as with the other executors.
+ */
+public class DerivationPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(DerivationPipeline.class);
+    private static final String ORIGINAL = ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE.toString();
+
+    private final Supplier<ItemStore> store;
+    private final List<ImageDerivation> derivations;
+    private final ExecutorService workers;
+    private final Metrics metrics;
+    private final BiConsumer<String,String> derived;
+    //by user id and filename; the latest job for each item, until it's done
+    private final ConcurrentHashMap<List<String>,Job> jobs = new ConcurrentHashMap<>();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder submitted = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    private static final class Job {
+        final String userName;
+        final String userId;
+        final String filename;
+        final long submittedAt = System.nanoTime();
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+        //only changed while holding the job's map entry, so a job is never joined once it's started
+        volatile boolean started;
+
+        Job( String userName, String userId, String filename ) {
+            this.userName = userName;
+            this.userId = userId;
+            this.filename = filename;
+        }
+    }
+
+    /**
+     * @param store where originals are read from and presentations put, looked up for every job
+     * @param threads how many items are derived at once. Deriving is CPU bound, so about one per core.
+     * @param queueSize how many items can wait for a thread before uploads derive them themselves
+     * @param derived told (with the user id and filename) once an item's presentations have been stored,
+     *                so caches of them can be dropped
+     */
+    public DerivationPipeline( Supplier<ItemStore> store, List<ImageDerivation> derivations, int threads,
+                               int queueSize, Metrics metrics, BiConsumer<String,String> derived ) {
+        this.store = store;
+        this.derivations = new ArrayList<>(derivations);
+        this.workers = BoundedExecutors.callerRunsWhenFull("derive", threads, queueSize);
+        this.metrics = metrics;
+        this.derived = derived;
+    }
+
+    /**
+     * The usual preview and thumbnail.
+     */
+    public static List<ImageDerivation> defaultDerivations( int previewPixels, int thumbnailPixels ) {
+        return Arrays.asList(
+                new ImageDerivation(ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE.toString(), previewPixels),
+                new ImageDerivation(ItemSchema.PresentationType.THUMBNAIL_PRESENTATION_TYPE.toString(), thumbnailPixels) );
+    }
+
+    /**
+     * Queues the derivation of an item whose original was just stored.
+     */
+    public void submit( String userName, String userId, String filename ) {
+        if( derivations.isEmpty() || store.get().derivesPresentations() ) {
+            return;
+        }
+        submitted.increment();
+        Job job = new Job(userName, userId, filename);
+        Job queuedJob = jobs.compute( key(userId, filename),
+                (key, existing) -> existing != null && !existing.started ? existing : job );
+        if( queuedJob != job ) {
+            coalesced.increment();
+            return;
+        }
+        queued.increment();
+        workers.execute(() -> run(job));
+    }
+
+    /**
+     * @return whether an item's presentations are still to be derived (or replaced)
+     */
+    public boolean isPending( String userId, String filename ) {
+        return jobs.containsKey(key(userId, filename));
+    }
+
+    /**
+     * Waits for an item's pending derivation, if it has one.
+     * @return false if it was still pending when we gave up
+     */
+    public boolean await( String userId, String filename, long timeout, TimeUnit unit ) throws InterruptedException {
+        Job job = jobs.get(key(userId, filename));
+        if( job == null ) {
+            return true;
+        }
+        try {
+            job.done.get(timeout, unit);
+            return true;
+        } catch ( TimeoutException e ) {
+            return false;
+        } catch ( ExecutionException e ) {
+            //jobs are only ever completed normally; failures are logged when they happen
+            return true;
+        }
+    }
+
+    private void run( Job job ) {
+        jobs.computeIfPresent( key(job.userId, job.filename), (key, current) -> {
+            if( current == job ) {
+                job.started = true;
+            }
+            return current;
+        });
+        queued.decrement();
+        long start = System.nanoTime();
+        metrics.timer("derive.queueWait").record(start - job.submittedAt);
+        try {
+            derive(job);
+        } catch ( IOException | RuntimeException e ) {
+            failed.increment();
+            log.warn("Could not derive presentations of " + job.userId + "/" + job.filename + ": " +
+                    Exceptions.asString(e));
+        } finally {
+            jobs.remove(key(job.userId, job.filename), job);
+            job.done.complete(null);
+            long end = System.nanoTime();
+            metrics.timer("derive.run").record(end - start);
+            metrics.timer("derive.job").record(end - job.submittedAt);
+        }
+    }
+
+    private void derive( Job job ) throws IOException {
+        ItemStore itemStore = store.get();
+        String fileType = itemStore.fileType(job.filename);
+        byte[] original;
+        try {
+            original = itemStore.get( job.userName, new ItemKey(job.userId, fileType, ORIGINAL, job.filename) );
+        } catch ( StorageException e ) {
+            if( e.getStatusCode() != NOT_FOUND.getCode() ) {
+                throw e;
+            }
+            //deleted since
+            skipped.increment();
+            return;
+        }
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(original));
+        if( image == null ) {
+            //not an image, or not one we can read
+            skipped.increment();
+            return;
+        }
+        for( ImageDerivation derivation : derivations ) {
+            if( !itemStore.putPresentation( job.userName,
+                    new ItemKey(job.userId, fileType, derivation.presentationType, job.filename),
+                    derivation.derive(image, original) ) ) {
+                //the store serves the original in their place
+                skipped.increment();
+                return;
+            }
+        }
+        derived.accept(job.userId, job.filename);
+        completed.increment();
+    }
+
+    private static List<String> key( String userId, String filename ) {
+        return Arrays.asList(userId, filename);
+    }
+
+    public Map<String,Long> stats() {
+        Map<String,Long> stats = new LinkedHashMap<>();
+        stats.put("queued", queued.sum());
+        stats.put("pending", (long) jobs.size());
+        stats.put("submitted", submitted.sum());
+        stats.put("coalesced", coalesced.sum());
+        stats.put("completed", completed.sum());
+        stats.put("skipped", skipped.sum());
+        stats.put("failed", failed.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.derive;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * A smaller presentation of an image: scaled down (keeping its aspect ratio) to fit in a
+ * square of maxPixels. Images with transparency become PNGs, the rest JPEGs.
+ */
+public class ImageDerivation {
+
+    public final String presentationType;
+    public final int maxPixels;
+
+    public ImageDerivation( String presentationType, int maxPixels ) {
+        if( maxPixels <= 0 ) {
+            throw new IllegalArgumentException("maxPixels must be positive, was: " + maxPixels);
+        }
+        this.presentationType = presentationType;
+        this.maxPixels = maxPixels;
+    }
+
+    /**
+     * @param original the bytes of the original, which are used as they are if the image already fits
+     */
+    public byte[] derive( BufferedImage image, byte[] original ) throws IOException {
+        int largest = Math.max(image.getWidth(), image.getHeight());
+        if( largest <= maxPixels ) {
+            return original;
+        }
+        double scale = (double) maxPixels / largest;
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        boolean alpha = image.getColorModel().hasAlpha();
+        //the JPEG writer can't take an alpha channel
+        BufferedImage scaled = new BufferedImage( width, height,
+                alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB );
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if( !ImageIO.write(scaled, alpha ? "png" : "jpg", out) ) {
+            throw new IOException("No image writer for " + (alpha ? "png" : "jpg"));
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public String toString() {
+        return presentationType + " (" + maxPixels + "px)";
+    }
+}
@@ -0,0 +1,316 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.http;
+
+import com.shareplaylearn.FileService;
+import spark.Request;
+import spark.Response;
+import spark.Route;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.eclipse.jetty.http.HttpStatus.Code.SERVICE_UNAVAILABLE;
+import static org.eclipse.jetty.http.HttpStatus.Code.TOO_MANY_REQUESTS;
+
+/**
+ * Turns requests away, quickly and with a Retry-After, rather than letting them queue up for Jetty's
+ * threads (and the tmp disk) until they time out:
+ * - each user can only have so many requests in progress at once (429), counting form uploads once they've
+ *   been read, as that's where they say whose they are,
+ * - uploads in progress can only add up to so many bytes, going by their Content-Length (503),
+ * - large transfers (big uploads, archives, big downloads) have a lane of their own, with a few
+ *   places in it, so they can't take every thread from the small requests behind them (503).
+ * A limit of 0 (or less) is no limit.
+ */
+public class AdmissionController {
+
+    public enum Kind {
+        //anything else; only the per user limit applies
+        REQUEST,
+        //counted against the upload bytes, and large if its body is
+        UPLOAD,
+        //always in the large transfer lane
+        LARGE
+    }
+
+    private static final String LARGE_LANE_FULL = "Too many large transfers in progress, try again later.";
+    private static final String TOO_MANY_REQUESTS_MESSAGE = "Too many requests in progress, try again later.";
+
+    private final int maxPerUser;
+    private final long maxUploadBytes;
+    private final Semaphore largeLane;
+    private final long largeTransferBytes;
+    private final int retryAfterSeconds;
+    private final ConcurrentHashMap<String,Integer> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong uploadBytes = new AtomicLong();
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejectedPerUser = new LongAdder();
+    private final LongAdder rejectedUploadBytes = new LongAdder();
+    private final LongAdder rejectedLarge = new LongAdder();
+
+    /**
+     * @param maxPerUser requests a user can have in progress at once
+     * @param maxUploadBytes bytes of uploads that can be in progress at once
+     * @param largeTransfers large transfers that can be in progress at once
+     * @param largeTransferBytes uploads and downloads bigger than this are large transfers
+     * @param retryAfterSeconds what we tell the requests we turn away
+     */
+    public AdmissionController( int maxPerUser, long maxUploadBytes, int largeTransfers, long largeTransferBytes,
+                                int retryAfterSeconds ) {
+        this.maxPerUser = maxPerUser;
+        this.maxUploadBytes = maxUploadBytes;
+        this.largeLane = largeTransfers > 0 ? new Semaphore(largeTransfers) : null;
+        this.largeTransferBytes = largeTransferBytes;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Admits everything.
+     */
+    public static AdmissionController disabled() {
+        return new AdmissionController(0, 0, 0, 0, 1);
+    }
+
+    /**
+     * Wraps a route, so it's only run if the request is admitted.
+     * A request whose body is written after it hands back (an AsyncBody) is let go once that's done.
+     */
+    public Route admit( Kind kind, Route route ) {
+        return (req, res) -> {
+            Ticket ticket = enter(user(req), kind, kind == Kind.UPLOAD ? req.raw().getContentLengthLong() : 0);
+            if( !ticket.admitted() ) {
+                return reject(res, ticket.rejectedWith, ticket.reason);
+            }
+            boolean writing = false;
+            try {
+                Object body = route.handle(req, res);
+                writing = AsyncBody.whenWritten(req.raw(), ticket::close);
+                return body;
+            } finally {
+                if( !writing ) {
+                    ticket.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * What a request was let in with, to give back once it's done (or why it wasn't let in).
+     */
+    public final class Ticket implements AutoCloseable {
+        private final String user;
+        private final long bytes;
+        private final boolean large;
+        //0 if admitted
+        public final int rejectedWith;
+        public final String reason;
+
+        private Ticket( String user, long bytes, boolean large, int rejectedWith, String reason ) {
+            this.user = user;
+            this.bytes = bytes;
+            this.large = large;
+            this.rejectedWith = rejectedWith;
+            this.reason = reason;
+        }
+
+        public boolean admitted() {
+            return rejectedWith == 0;
+        }
+
+        @Override
+        public void close() {
+            if( large ) {
+                leaveLargeLane();
+            }
+            uploadBytes.addAndGet(-bytes);
+            if( user != null ) {
+                leaveUser(user);
+            }
+        }
+    }
+
+    /**
+     * @param contentLength of an upload's body, -1 if it isn't known
+     */
+    public Ticket enter( String user, Kind kind, long contentLength ) {
+        if( !enterUser(user) ) {
+            rejectedPerUser.increment();
+            return new Ticket( null, 0, false, TOO_MANY_REQUESTS.getCode(), TOO_MANY_REQUESTS_MESSAGE );
+        }
+        //we don't know how big bodies without a Content-Length are, so assume they're big
+        boolean large = kind == Kind.LARGE || (kind == Kind.UPLOAD && (contentLength < 0 || isLarge(contentLength)));
+        long bytes = kind != Kind.UPLOAD ? 0 : contentLength < 0 ? Math.max(largeTransferBytes, 0) : contentLength;
+        if( !reserveUploadBytes(bytes) ) {
+            rejectedUploadBytes.increment();
+            leaveUser(user);
+            return new Ticket( null, 0, false, SERVICE_UNAVAILABLE.getCode(),
+                    "Too many uploads in progress, try again later." );
+        }
+        if( large && !enterLargeLane() ) {
+            uploadBytes.addAndGet(-bytes);
+            leaveUser(user);
+            return new Ticket( null, 0, false, SERVICE_UNAVAILABLE.getCode(), LARGE_LANE_FULL );
+        }
+        admitted.increment();
+        return new Ticket( user, bytes, large, 0, null );
+    }
+
+    /**
+     * Takes a place among the user's requests in progress, for a request we could only tell was theirs once
+     * it was read and its token checked (form uploads carry both in their body).
+     * Close it once the request's done, if it's admitted (see reject()).
+     */
+    public Ticket enterAsUser( String userId ) {
+        String user = userKey(userId);
+        if( !enterUser(user) ) {
+            rejectedPerUser.increment();
+            return new Ticket( null, 0, false, TOO_MANY_REQUESTS.getCode(), TOO_MANY_REQUESTS_MESSAGE );
+        }
+        return new Ticket( user, 0, false, 0, null );
+    }
+
+    /**
+     * Whether a transfer of this many bytes belongs in the large transfer lane.
+     */
+    public boolean isLarge( long bytes ) {
+        return largeLane != null && largeTransferBytes > 0 && bytes > largeTransferBytes;
+    }
+
+    /**
+     * Takes a place in the large transfer lane, for a download found to be large once it's been looked up.
+     * Call leaveLargeLane() once it's written, if this returns true.
+     * @return false if there's no place left (see rejectLarge())
+     */
+    public boolean enterLargeLane() {
+        if( largeLane == null || largeLane.tryAcquire() ) {
+            return true;
+        }
+        rejectedLarge.increment();
+        return false;
+    }
+
+    public void leaveLargeLane() {
+        if( largeLane != null ) {
+            largeLane.release();
+        }
+    }
+
+    /**
+     * Answers a transfer that couldn't enter the large transfer lane.
+     */
+    public String rejectLarge( Response res ) {
+        return reject(res, SERVICE_UNAVAILABLE.getCode(), LARGE_LANE_FULL);
+    }
+
+    /**
+     * Answers a request that wasn't admitted.
+     */
+    public String reject( Response res, Ticket ticket ) {
+        return reject(res, ticket.rejectedWith, ticket.reason);
+    }
+
+    /**
+     * Answers with the status, and when to try again.
+     */
+    private String reject( Response res, int status, String message ) {
+        res.status(status);
+        res.header("Retry-After", Integer.toString(retryAfterSeconds));
+        res.body(message);
+        return res.body();
+    }
+
+    /**
+     * Who a request is on behalf of, if we can tell before it's read: the user in the path if there is one;
+     * otherwise (chunked uploads) the token it came with, which only that user has.
+     * Form uploads have neither, and only count against their user once they're read (enterAsUser()).
+     * @return null if we can't tell
+     */
+    private static String user( Request req ) {
+        String userId = req.params("userId");
+        if( userId != null ) {
+            return userKey(userId);
+        }
+        String token = req.headers(FileService.AUTHENTICATION_HEADER);
+        return token != null ? "token:" + token : null;
+    }
+
+    private static String userKey( String userId ) {
+        return "user:" + userId;
+    }
+
+    private boolean enterUser( String user ) {
+        if( maxPerUser <= 0 || user == null ) {
+            return true;
+        }
+        boolean[] entered = new boolean[1];
+        inFlight.compute(user, (u, count) -> {
+            int current = count == null ? 0 : count;
+            if( current >= maxPerUser ) {
+                return count;
+            }
+            entered[0] = true;
+            return current + 1;
+        });
+        return entered[0];
+    }
+
+    private void leaveUser( String user ) {
+        if( maxPerUser > 0 && user != null ) {
+            inFlight.computeIfPresent(user, (u, count) -> count > 1 ? count - 1 : null);
+        }
+    }
+
+    private boolean reserveUploadBytes( long bytes ) {
+        if( bytes == 0 ) {
+            return true;
+        }
+        if( maxUploadBytes <= 0 ) {
+            uploadBytes.addAndGet(bytes);
+            return true;
+        }
+        while( true ) {
+            long current = uploadBytes.get();
+            //a single upload bigger than the limit still gets in, if it's alone
+            if( current > 0 && bytes > maxUploadBytes - current ) {
+                return false;
+            }
+            if( uploadBytes.compareAndSet(current, current + bytes) ) {
+                return true;
+            }
+        }
+    }
+
+    public Map<String,Long> stats() {
+        Map<String,Long> stats = new LinkedHashMap<>();
+        stats.put("admitted", admitted.sum());
+        stats.put("rejectedPerUser", rejectedPerUser.sum());
+        stats.put("rejectedUploadBytes", rejectedUploadBytes.sum());
+        stats.put("rejectedLarge", rejectedLarge.sum());
+        stats.put("usersInFlight", (long) inFlight.size());
+        stats.put("uploadBytesInFlight", uploadBytes.get());
+        if( largeLane != null ) {
+            stats.put("largeLaneAvailable", (long) largeLane.availablePermits());
+        }
+        return stats;
+    }
+}
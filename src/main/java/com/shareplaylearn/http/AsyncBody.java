@@ -0,0 +1,321 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.http;
+
+import com.shareplaylearn.exceptions.Exceptions;
+import com.shareplaylearn.io.Streams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a response body with servlet 3.1 non-blocking I/O: a chunk at a time, whenever the client
+ * can take more, so a slow client doesn't hold a request thread for the whole download.
+ * The segments are opened and read on an executor, a few chunks ahead of the client, so slow storage
+ * doesn't hold one of Jetty's threads either; those only ever write what's already been read.
+ * The status and headers are sent (committed) before the request thread returns, so they
+ * have to be final by then; Spark leaves committed responses alone.
+ */
+public class AsyncBody implements WriteListener {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncBody.class);
+
+    private static final String ATTRIBUTE = AsyncBody.class.getName();
+    //chunks read ahead of the client, per download
+    private static final int READ_AHEAD = 4;
+
+    /**
+     * One piece of the body, opened when it's reached.
+     */
+    @FunctionalInterface
+    public interface Segment {
+        InputStream open() throws IOException;
+    }
+
+    private final AsyncContext async;
+    private final ServletOutputStream out;
+    private final Iterator<Segment> segments;
+    private final Executor reads;
+    private final Queue<byte[]> chunks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger buffered = new AtomicInteger();
+    private final AtomicBoolean reading = new AtomicBoolean();
+    //how many times the body's been asked to write since the writer last looked; only one thread writes at once
+    private final AtomicInteger writeRequests = new AtomicInteger();
+    //only touched by the (one) read in progress
+    private InputStream current;
+    private volatile boolean exhausted;
+    private volatile Throwable failed;
+    private volatile boolean completed;
+    //run once the body's written, or given up on
+    private final List<Runnable> whenWritten = new ArrayList<>();
+    private boolean written;
+
+    private AsyncBody( AsyncContext async, ServletOutputStream out, Iterator<Segment> segments, Executor reads ) {
+        this.async = async;
+        this.out = out;
+        this.segments = segments;
+        this.reads = reads;
+    }
+
+    /**
+     * Commits the response, and writes the segments, in order, after this returns.
+     * @param reads where the segments are opened and read
+     */
+    public static void write( HttpServletRequest req, HttpServletResponse res, List<Segment> segments,
+                              Executor reads ) throws IOException {
+        res.flushBuffer();
+        AsyncContext async = req.startAsync();
+        //slow downloads are fine, dead connections are caught by Jetty's idle timeout
+        async.setTimeout(0);
+        AsyncBody body = new AsyncBody(async, res.getOutputStream(), segments.iterator(), reads);
+        async.addListener(body.new Completion());
+        req.setAttribute(ATTRIBUTE, body);
+        body.out.setWriteListener(body);
+        body.readAhead();
+    }
+
+    /**
+     * Runs callback once the request's body has been written (or the write has failed), if it's
+     * being written by an AsyncBody, so whatever the request holds is held until then.
+     * @return false if it isn't, and the callback wasn't taken
+     */
+    public static boolean whenWritten( HttpServletRequest req, Runnable callback ) {
+        Object body = req.getAttribute(ATTRIBUTE);
+        if( !(body instanceof AsyncBody) ) {
+            return false;
+        }
+        ((AsyncBody) body).addCallback(callback);
+        return true;
+    }
+
+    @Override
+    public void onWritePossible() {
+        writeBuffered();
+    }
+
+    @Override
+    public void onError( Throwable t ) {
+        log.info("Async write failed: " + Exceptions.asString(t));
+        complete();
+    }
+
+    private void complete() {
+        if( !completed ) {
+            completed = true;
+            async.complete();
+        }
+    }
+
+    /**
+     * Writes the chunks read so far, for as long as the client can take them, then finishes the response
+     * once everything's been read and written. Called by the container when the client can take more,
+     * and by reads as they add chunks; whichever gets here first writes for both.
+     */
+    private void writeBuffered() {
+        if( writeRequests.getAndIncrement() != 0 ) {
+            return;
+        }
+        int requests = 1;
+        do {
+            try {
+                writeWhileReady();
+            } catch ( IOException | RuntimeException e ) {
+                onError(e);
+            }
+            requests = writeRequests.addAndGet(-requests);
+        } while( requests != 0 );
+    }
+
+    private void writeWhileReady() throws IOException {
+        //once isReady() is false, the container calls onWritePossible() when it isn't
+        while( !completed && out.isReady() ) {
+            if( failed != null ) {
+                //the response is cut short; Jetty drops the connection, as it's less than its Content-Length
+                log.warn("Reading an async download failed: " + Exceptions.asString(failed));
+                complete();
+                return;
+            }
+            byte[] chunk = chunks.poll();
+            if( chunk == null ) {
+                //exhausted is only set after the last chunk is added
+                if( exhausted && chunks.isEmpty() ) {
+                    complete();
+                }
+                //otherwise the read that adds the next chunk asks for another write
+                return;
+            }
+            buffered.decrementAndGet();
+            readAhead();
+            out.write(chunk);
+        }
+    }
+
+    /**
+     * Starts reading on the executor, unless a read's already going or enough is buffered.
+     */
+    private void readAhead() {
+        if( exhausted || failed != null || completed || buffered.get() >= READ_AHEAD ) {
+            return;
+        }
+        if( reading.compareAndSet(false, true) ) {
+            try {
+                reads.execute(this::read);
+            } catch ( RejectedExecutionException e ) {
+                reading.set(false);
+                failed = e;
+                writeBuffered();
+            }
+        }
+    }
+
+    private void read() {
+        try {
+            while( !completed && !exhausted && buffered.get() < READ_AHEAD ) {
+                byte[] chunk = nextChunk();
+                if( chunk == null ) {
+                    exhausted = true;
+                } else {
+                    chunks.add(chunk);
+                    buffered.incrementAndGet();
+                }
+                writeBuffered();
+            }
+        } catch ( IOException | RuntimeException e ) {
+            failed = e;
+            writeBuffered();
+        } finally {
+            if( completed || failed != null ) {
+                closeCurrent();
+            }
+            reading.set(false);
+        }
+        //the client may have taken what we'd read since we last looked
+        readAhead();
+    }
+
+    /**
+     * @return the next chunk of the body, or null at its end
+     */
+    private byte[] nextChunk() throws IOException {
+        byte[] buffer = new byte[Streams.CHUNK_SIZE];
+        while( true ) {
+            if( current == null ) {
+                if( !segments.hasNext() ) {
+                    return null;
+                }
+                current = segments.next().open();
+            }
+            int read = current.read(buffer);
+            if( read < 0 ) {
+                current.close();
+                current = null;
+            } else if( read > 0 ) {
+                return read == buffer.length ? buffer : Arrays.copyOf(buffer, read);
+            }
+        }
+    }
+
+    private void closeCurrent() {
+        try {
+            if( current != null ) {
+                current.close();
+                current = null;
+            }
+        } catch ( IOException e ) {
+            log.debug(Exceptions.asString(e));
+        }
+    }
+
+    private void addCallback( Runnable callback ) {
+        synchronized( whenWritten ) {
+            if( !written ) {
+                whenWritten.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    private void finished() {
+        completed = true;
+        List<Runnable> callbacks;
+        synchronized( whenWritten ) {
+            if( written ) {
+                return;
+            }
+            written = true;
+            callbacks = new ArrayList<>(whenWritten);
+            whenWritten.clear();
+        }
+        for( Runnable callback : callbacks ) {
+            try {
+                callback.run();
+            } catch ( RuntimeException e ) {
+                log.warn(Exceptions.asString(e));
+            }
+        }
+        //a read still going stops at its next chunk; one that's finished may have left its stream open
+        if( reading.compareAndSet(false, true) ) {
+            closeCurrent();
+            reading.set(false);
+        }
+    }
+
+    /**
+     * Hears when the response is done with, however it ended.
+     */
+    private final class Completion implements AsyncListener {
+        @Override
+        public void onComplete( AsyncEvent event ) {
+            finished();
+        }
+
+        @Override
+        public void onTimeout( AsyncEvent event ) {
+            finished();
+        }
+
+        @Override
+        public void onError( AsyncEvent event ) {
+            finished();
+        }
+
+        @Override
+        public void onStartAsync( AsyncEvent event ) {
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.http;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A single, satisfiable range from an HTTP Range header (RFC 7233), with both ends inclusive.
+ */
+public class ByteRange {
+
+    public static final String RANGE_HEADER = "Range";
+    public static final String IF_RANGE_HEADER = "If-Range";
+    private static final String BYTES_UNIT = "bytes=";
+    //past this, a client is either confused or trying to make us do a lot of small writes
+    public static final int MAX_RANGES = 32;
+
+    public final long start;
+    public final long end;
+
+    public ByteRange( long start, long end ) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long length() {
+        return end - start + 1;
+    }
+
+    public String contentRange( long totalLength ) {
+        return "bytes " + start + "-" + end + "/" + totalLength;
+    }
+
+    public static String unsatisfiedContentRange( long totalLength ) {
+        return "bytes */" + totalLength;
+    }
+
+    /**
+     * @param header the value of the Range header
+     * @param totalLength the full length of the resource
+     * @return null if there was no header, or it can't be parsed (so it should be ignored, and
+     * the whole resource sent), an empty list if none of the ranges can be satisfied, otherwise
+     * the satisfiable ranges, in the order requested, unless some overlapped or were adjacent (see coalesce()).
+     */
+    public static List<ByteRange> parse( String header, long totalLength ) {
+        if( header == null ) {
+            return null;
+        }
+        header = header.trim();
+        if( !header.regionMatches(true, 0, BYTES_UNIT, 0, BYTES_UNIT.length()) ) {
+            return null;
+        }
+        String[] specs = header.substring(BYTES_UNIT.length()).split(",");
+        if( specs.length > MAX_RANGES ) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>();
+        for( String spec : specs ) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if( dash < 0 ) {
+                return null;
+            }
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            try {
+                if( first.isEmpty() ) {
+                    //suffix range: the last N bytes
+                    long suffixLength = Long.parseLong(last);
+                    if( suffixLength < 0 ) {
+                        return null;
+                    }
+                    if( suffixLength > 0 && totalLength > 0 ) {
+                        ranges.add(new ByteRange(Math.max(0, totalLength - suffixLength), totalLength - 1));
+                    }
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if( start < 0 || end < start ) {
+                        return null;
+                    }
+                    if( start < totalLength ) {
+                        ranges.add(new ByteRange(start, Math.min(end, totalLength - 1)));
+                    }
+                }
+            } catch ( NumberFormatException e ) {
+                return null;
+            }
+        }
+        return ranges.isEmpty() ? Collections.<ByteRange>emptyList() : coalesce(ranges);
+    }
+
+    /**
+     * Merges overlapping and adjacent ranges (RFC 7233, 6.1), so a header can't have us send the same bytes
+     * over and over (bytes=0-,0-,0-...). Once any are merged, they're in ascending order.
+     */
+    static List<ByteRange> coalesce( List<ByteRange> ranges ) {
+        if( ranges.size() < 2 ) {
+            return ranges;
+        }
+        List<ByteRange> sorted = new ArrayList<>(ranges);
+        sorted.sort(Comparator.comparingLong(range -> range.start));
+        List<ByteRange> merged = new ArrayList<>();
+        ByteRange current = sorted.get(0);
+        for( ByteRange next : sorted.subList(1, sorted.size()) ) {
+            if( next.start <= current.end + 1 ) {
+                current = new ByteRange(current.start, Math.max(current.end, next.end));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged.size() == ranges.size() ? ranges : merged;
+    }
+
+    @Override
+    public String toString() {
+        return start + "-" + end;
+    }
+}
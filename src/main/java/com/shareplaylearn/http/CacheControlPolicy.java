@@ -0,0 +1,66 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.http;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Cache-Control values for downloads, by presentation type.
+ * Downloads need an access token, so responses are private by default.
+ */
+public class CacheControlPolicy {
+
+    public static final String PROPERTY_PREFIX = "fileservice.cacheControl.";
+    //originals can be replaced by an upload under the same name, so have clients revalidate
+    public static final String ORIGINAL_DEFAULT = "private, no-cache";
+    //derived presentations (previews, thumbnails) are re-validated once a day
+    public static final String DERIVED_DEFAULT = "private, max-age=86400";
+
+    private final Map<String,String> byPresentationType = new HashMap<>();
+    private final String derivedDefault;
+
+    public CacheControlPolicy( String originalPresentationType, String originalDefault, String derivedDefault ) {
+        this.byPresentationType.put(originalPresentationType, originalDefault);
+        this.derivedDefault = derivedDefault;
+    }
+
+    public CacheControlPolicy set( String presentationType, String cacheControl ) {
+        byPresentationType.put(presentationType, cacheControl);
+        return this;
+    }
+
+    public String forPresentationType( String presentationType ) {
+        String cacheControl = byPresentationType.get(presentationType);
+        return cacheControl != null ? cacheControl : derivedDefault;
+    }
+
+    /**
+     * Picks up any fileservice.cacheControl.&lt;presentationType&gt; system properties.
+     */
+    public static CacheControlPolicy fromSystemProperties( String originalPresentationType ) {
+        CacheControlPolicy policy = new CacheControlPolicy( originalPresentationType, ORIGINAL_DEFAULT,
+                System.getProperty(PROPERTY_PREFIX + "default", DERIVED_DEFAULT) );
+        for( String name : System.getProperties().stringPropertyNames() ) {
+            if( name.startsWith(PROPERTY_PREFIX) && !name.equals(PROPERTY_PREFIX + "default") ) {
+                policy.set(name.substring(PROPERTY_PREFIX.length()), System.getProperty(name));
+            }
+        }
+        return policy;
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.http;
+
+import com.shareplaylearn.cache.ItemKey;
+import com.shareplaylearn.storage.ItemStore;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Which downloads are answered with a redirect (302) rather than the bytes, and where to: big items, or
+ * items of the chosen presentation types, are sent to a short-lived URL the store signs itself (see
+ * ItemStore.presign()), so the transfer goes straight from storage to the client. Items of stores that
+ * can't make one (i.e. anything but the bucket store) are always served by us.
+ */
+public class DownloadRedirects {
+
+    private final long minBytes;
+    private final Set<String> presentationTypes;
+    private final long ttlMillis;
+
+    /**
+     * @param minBytes items at least this big are redirected, when the store knows their size up front;
+     *                 0 (or less) to not redirect by size
+     * @param presentationTypes these are always redirected
+     */
+    public DownloadRedirects( long minBytes, Set<String> presentationTypes, long ttl, TimeUnit unit ) {
+        this.minBytes = minBytes;
+        this.presentationTypes = new HashSet<>(presentationTypes);
+        this.ttlMillis = unit.toMillis(ttl);
+    }
+
+    /**
+     * Redirects nothing.
+     */
+    public static DownloadRedirects disabled() {
+        return new DownloadRedirects( 0, Collections.emptySet(), 0, TimeUnit.SECONDS );
+    }
+
+    /**
+     * From fileservice.redirect.*: see the README.
+     */
+    public static DownloadRedirects fromSystemProperties() {
+        Set<String> presentationTypes = new HashSet<>();
+        for( String presentationType : System.getProperty("fileservice.redirect.presentationTypes", "").split(",") ) {
+            if( presentationType.trim().length() > 0 ) {
+                presentationTypes.add(presentationType.trim());
+            }
+        }
+        return new DownloadRedirects( Long.getLong("fileservice.redirect.minBytes", 0L), presentationTypes,
+                Long.getLong("fileservice.redirect.ttlSeconds", 300L), TimeUnit.SECONDS );
+    }
+
+    public boolean redirects( String presentationType ) {
+        return presentationTypes.contains(presentationType);
+    }
+
+    public boolean redirects( long size ) {
+        return minBytes > 0 && size >= minBytes;
+    }
+
+    /**
+     * Where to send the download of this item.
+     * @return the store's own URL for it, or null if it can't make one (and we should serve it)
+     */
+    public String url( ItemStore store, String userName, ItemKey item ) throws IOException {
+        return store.presign(userName, item, System.currentTimeMillis() + ttlMillis);
+    }
+}
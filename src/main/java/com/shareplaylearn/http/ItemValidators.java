@@ -0,0 +1,115 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.http;
+
+import com.shareplaylearn.cache.ItemKey;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the validators of items we've served from stores that can't stat() them (i.e. UserItemManager),
+ * so a conditional GET can be answered with a 304 before going anywhere near storage.
+ * UserItemManager has no place to keep per-item metadata, so this is a bounded in-process
+ * index: ETags are content hashes, computed the first time an item is served, as they are from the
+ * digests of stores that keep them, and Last-Modified is the upload time, if the item was uploaded since
+ * we started. Otherwise we don't know when it was stored, so there's no Last-Modified.
+ */
+public class ItemValidators {
+
+    private final LinkedHashMap<ItemKey,Validator> validators;
+    private final LinkedHashMap<String,Long> uploadTimes;
+
+    public ItemValidators( final int maxEntries ) {
+        this.validators = new LinkedHashMap<ItemKey,Validator>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<ItemKey,Validator> eldest ) {
+                return size() > maxEntries;
+            }
+        };
+        this.uploadTimes = new LinkedHashMap<String,Long>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String,Long> eldest ) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the validator we've already computed for this item, or null
+     */
+    public synchronized Validator get( ItemKey key ) {
+        return validators.get(key);
+    }
+
+    /**
+     * @return the validator for this item, computing it from the bytes if we don't have one yet
+     */
+    public Validator get( ItemKey key, byte[] bytes ) {
+        Validator validator = get(key);
+        if( validator != null ) {
+            return validator;
+        }
+        String etag = etagFor(bytes);
+        synchronized (this) {
+            validator = validators.get(key);
+            if( validator == null ) {
+                Long uploaded = uploadTimes.get(uploadKey(key.userId, key.filename));
+                validator = new Validator( etag, uploaded != null ? uploaded : Validator.UNKNOWN );
+                validators.put(key, validator);
+            }
+        }
+        return validator;
+    }
+
+    /**
+     * Forgets the validators of every presentation of an item that was just uploaded again.
+     */
+    public synchronized void uploaded( String userId, String filename ) {
+        uploadTimes.put(uploadKey(userId, filename), System.currentTimeMillis());
+        Iterator<ItemKey> keys = validators.keySet().iterator();
+        while( keys.hasNext() ) {
+            if( keys.next().isItem(userId, filename) ) {
+                keys.remove();
+            }
+        }
+    }
+
+    private static String uploadKey( String userId, String filename ) {
+        return userId + "/" + filename;
+    }
+
+    /**
+     * A strong ETag: the first 128 bits of the content's SHA-256, in hex.
+     */
+    public static String etagFor( byte[] bytes ) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(bytes);
+            StringBuilder etag = new StringBuilder(34).append('"');
+            for( int i = 0; i < 16; ++i ) {
+                etag.append(String.format("%02x", hash[i]));
+            }
+            return etag.append('"').toString();
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException("SHA-256 is required by every JVM", e);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.http;
+
+import spark.Request;
+
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * The conditional and range headers of a GET (RFC 7232 and 7233), and how they apply to an item.
+ */
+public class RequestConditions {
+
+    public static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    public static final String IF_MODIFIED_SINCE_HEADER = "If-Modified-Since";
+    public static final RequestConditions NONE = new RequestConditions(null, null, null, null);
+
+    public final String range;
+    public final String ifRange;
+    public final String ifNoneMatch;
+    public final String ifModifiedSince;
+
+    public RequestConditions( String range, String ifRange, String ifNoneMatch, String ifModifiedSince ) {
+        this.range = range;
+        this.ifRange = ifRange;
+        this.ifNoneMatch = ifNoneMatch;
+        this.ifModifiedSince = ifModifiedSince;
+    }
+
+    public static RequestConditions fromRequest( Request req ) {
+        return new RequestConditions( req.headers(ByteRange.RANGE_HEADER), req.headers(ByteRange.IF_RANGE_HEADER),
+                req.headers(IF_NONE_MATCH_HEADER), req.headers(IF_MODIFIED_SINCE_HEADER) );
+    }
+
+    /**
+     * @return true if the client's copy is current, and it should get a 304.
+     * If-Modified-Since is only considered when there's no If-None-Match.
+     */
+    public boolean notModified( Validator validator ) {
+        if( validator == null ) {
+            return false;
+        }
+        if( ifNoneMatch != null ) {
+            for( String tag : ifNoneMatch.split(",") ) {
+                tag = tag.trim();
+                //If-None-Match uses the weak comparison
+                if( tag.startsWith("W/") ) {
+                    tag = tag.substring(2);
+                }
+                if( tag.equals("*") || tag.equals(validator.etag) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        long since = parseDate(ifModifiedSince);
+        return since >= 0 && validator.hasLastModified() && validator.lastModified <= since;
+    }
+
+    /**
+     * @return the Range header, if it should be honored: i.e. there was no If-Range,
+     * or If-Range matches the current validator (using the strong comparison).
+     */
+    public String effectiveRange( Validator validator ) {
+        if( ifRange == null ) {
+            return range;
+        }
+        if( validator == null ) {
+            return null;
+        }
+        String condition = ifRange.trim();
+        if( condition.startsWith("\"") ) {
+            return condition.equals(validator.etag) ? range : null;
+        }
+        if( condition.startsWith("W/") || !validator.hasLastModified() ) {
+            return null;
+        }
+        return parseDate(condition) == validator.lastModified ? range : null;
+    }
+
+    /**
+     * @return the date in millis, or -1 if it's missing or malformed (which means ignore the header)
+     */
+    static long parseDate( String httpDate ) {
+        if( httpDate == null ) {
+            return -1;
+        }
+        try {
+            return ZonedDateTime.parse(httpDate.trim(), DateTimeFormatter.RFC_1123_DATE_TIME)
+                    .toInstant().toEpochMilli();
+        } catch ( DateTimeParseException e ) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.http;
+
+/**
+ * The HTTP validators for one presentation of an item: a strong ETag, derived from
+ * the item's content, and a Last-Modified time (in whole seconds, as HTTP dates are).
+ */
+public class Validator {
+    //for items we don't know the stored time of: they're sent without a Last-Modified
+    public static final long UNKNOWN = -1;
+
+    public final String etag;
+    public final long lastModified;
+
+    public Validator( String etag, long lastModified ) {
+        this.etag = etag;
+        this.lastModified = lastModified < 0 ? UNKNOWN : lastModified - (lastModified % 1000);
+    }
+
+    /**
+     * @param digest of the content, in hex: the ETag is its first 128 bits, so a SHA-256 digest gives the
+     *               same ETag as ItemValidators.etagFor() does for the same bytes
+     */
+    public static Validator forDigest( String digest, long lastModified ) {
+        return new Validator( "\"" + digest.substring(0, Math.min(32, digest.length())) + "\"", lastModified );
+    }
+
+    public boolean hasLastModified() {
+        return lastModified != UNKNOWN;
+    }
+
+    /**
+     * @return the validator for another representation of the same content (e.g. base64 encoded),
+     * which needs its own ETag, but shares the modification time.
+     */
+    public Validator forRepresentation( String representation ) {
+        return new Validator( etag.substring(0, etag.length() - 1) + "-" + representation + "\"", lastModified );
+    }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Fixed-size chunk copying between streams, so we never pull a whole file through
+ * a growing buffer just to hand it on somewhere else.
+ */
+public class Streams {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+    //arrays can't quite reach Integer.MAX_VALUE on most VMs
+    public static final long MAX_BUFFERED_SIZE = Integer.MAX_VALUE - 8;
+
+    /**
+     * Copies everything left in the input to the output, one chunk at a time.
+     * @return the number of bytes copied
+     */
+    public static long copy( InputStream in, OutputStream out ) throws IOException {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        long total = 0;
+        int read;
+        while( (read = in.read(chunk)) != -1 ) {
+            out.write(chunk, 0, read);
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Copies exactly length bytes from the input to the output, one chunk at a time.
+     * @throws EOFException if the input ends first
+     */
+    public static void copy( InputStream in, OutputStream out, long length ) throws IOException {
+        byte[] chunk = new byte[(int)Math.min(CHUNK_SIZE, Math.max(length, 1))];
+        long remaining = length;
+        while( remaining > 0 ) {
+            int read = in.read(chunk, 0, (int)Math.min(chunk.length, remaining));
+            if( read == -1 ) {
+                throw new EOFException("Stream ended with " + remaining + " of " + length + " bytes left to copy.");
+            }
+            out.write(chunk, 0, read);
+            remaining -= read;
+        }
+    }
+
+    /**
+     * Reads the stream into a single array of exactly expectedSize bytes, filled in
+     * chunks. Unlike IOUtils.toByteArray(), this never over-allocates or copies the
+     * buffer as it grows, so a file costs its own size on the heap and nothing more.
+     * @param expectedSize the declared size of the stream, or a negative number if unknown
+     * @throws IOException if the stream doesn't match the declared size, or is too big to buffer
+     */
+    public static byte[] readFully( InputStream in, long expectedSize ) throws IOException {
+        if( expectedSize < 0 ) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(CHUNK_SIZE);
+            copy(in, out);
+            return out.toByteArray();
+        }
+        if( expectedSize > MAX_BUFFERED_SIZE ) {
+            throw new IOException("Stream of " + expectedSize + " bytes is too large to buffer.");
+        }
+        byte[] buffer = new byte[(int)expectedSize];
+        int offset = 0;
+        while( offset < buffer.length ) {
+            int read = in.read(buffer, offset, Math.min(CHUNK_SIZE, buffer.length - offset));
+            if( read == -1 ) {
+                throw new IOException("Stream ended after " + offset + " bytes, expected " + expectedSize);
+            }
+            offset += read;
+        }
+        if( in.read() != -1 ) {
+            throw new IOException("Stream was longer than the expected " + expectedSize + " bytes.");
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.listing;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * One user's items, ordered by a sequence number that's bumped every time an item is
+ * added or changes. Paging through the items in sequence order, and asking for
+ * "everything after sequence N", are then the same query, and neither needs a listing.
+ * The index is built by sync()ing it against a full listing from storage, which assigns
+ * new sequence numbers to whatever is new or different since the last sync, and then kept
+ * current by apply()ing each change as it's made, so it doesn't need listing again.
+ * Deletes aren't tracked, since the service doesn't support them.
+ */
+public class ChangeIndex<T> {
+
+    public static class Page<T> {
+        public final List<T> items;
+        public final long lastSequence;
+        public final boolean hasMore;
+
+        Page( List<T> items, long lastSequence, boolean hasMore ) {
+            this.items = items;
+            this.lastSequence = lastSequence;
+            this.hasMore = hasMore;
+        }
+    }
+
+    private static class Indexed<T> {
+        final T item;
+        final String fingerprint;
+        //System.nanoTime() of the listing it came from, or of when it was applied
+        final long indexedAt;
+
+        Indexed( T item, String fingerprint, long indexedAt ) {
+            this.item = item;
+            this.fingerprint = fingerprint;
+            this.indexedAt = indexedAt;
+        }
+    }
+
+    //changes whenever the index is rebuilt from scratch, which invalidates any cursors into it
+    public final String epoch = Long.toHexString(ThreadLocalRandom.current().nextLong());
+    private final Function<T,String> nameOf;
+    private final Function<T,String> fingerprintOf;
+    private final TreeMap<Long,Indexed<T>> bySequence = new TreeMap<>();
+    private final Map<String,Long> sequenceByName = new HashMap<>();
+    private long sequence = 0;
+    private long syncedAt = 0;
+    private boolean synced = false;
+    private boolean stale = false;
+    private long staleSince = 0;
+
+    /**
+     * @param nameOf identifies an item across listings
+     * @param fingerprintOf changes whenever anything about the item we'd return changes
+     */
+    public ChangeIndex( Function<T,String> nameOf, Function<T,String> fingerprintOf ) {
+        this.nameOf = nameOf;
+        this.fingerprintOf = fingerprintOf;
+    }
+
+    /**
+     * @param maxAgeNanos how long a sync is good for, or 0 (or less) for as long as every change is applied
+     * @return true if the index has never been synced, was marked stale, or was last synced
+     * more than maxAgeNanos ago
+     */
+    public synchronized boolean needsSync( long maxAgeNanos ) {
+        return !synced || stale || (maxAgeNanos > 0 && System.nanoTime() - syncedAt > maxAgeNanos);
+    }
+
+    /**
+     * Something changed (e.g. an upload) that we can't apply(), so the next query should sync first.
+     */
+    public synchronized void markStale() {
+        stale = true;
+        staleSince = System.nanoTime();
+    }
+
+    /**
+     * @param listing every item the user currently has
+     * @param listedAt System.nanoTime() from before the listing was fetched
+     */
+    public synchronized void sync( List<T> listing, long listedAt ) {
+        for( T item : listing ) {
+            index(item, listedAt);
+        }
+        //a change marked after the listing started may not be in it, so leave that for the next sync
+        if( stale && listedAt - staleSince > 0 ) {
+            stale = false;
+        }
+        if( !synced || listedAt - syncedAt > 0 ) {
+            syncedAt = listedAt;
+        }
+        synced = true;
+    }
+
+    /**
+     * An item that was just added or changed. Until the index is first synced there's nothing to apply
+     * it to: that sync lists it anyway.
+     */
+    public synchronized void apply( T item ) {
+        if( synced ) {
+            index(item, System.nanoTime());
+        }
+    }
+
+    private void index( T item, long indexedAt ) {
+        String name = nameOf.apply(item);
+        String fingerprint = fingerprintOf.apply(item);
+        Long previous = sequenceByName.get(name);
+        if( previous != null ) {
+            Indexed<T> indexed = bySequence.get(previous);
+            //a listing that started before the item was applied may have an older version of it
+            if( indexed.fingerprint.equals(fingerprint) || indexed.indexedAt - indexedAt > 0 ) {
+                return;
+            }
+            bySequence.remove(previous);
+        }
+        ++sequence;
+        bySequence.put(sequence, new Indexed<>(item, fingerprint, indexedAt));
+        sequenceByName.put(name, sequence);
+    }
+
+    /**
+     * @return up to limit items added or changed after the given sequence number, oldest change first
+     */
+    public synchronized Page<T> after( long afterSequence, int limit ) {
+        NavigableMap<Long,Indexed<T>> tail = bySequence.tailMap(afterSequence, false);
+        List<T> items = new ArrayList<>(Math.min(limit, tail.size()));
+        //with nothing new, the cursor stays where it is: it's still the point to sync from
+        long lastSequence = Math.min(afterSequence, sequence);
+        for( Map.Entry<Long,Indexed<T>> entry : tail.entrySet() ) {
+            if( items.size() == limit ) {
+                break;
+            }
+            items.add(entry.getValue().item);
+            lastSequence = entry.getKey();
+        }
+        return new Page<>(items, lastSequence, items.size() < tail.size());
+    }
+}
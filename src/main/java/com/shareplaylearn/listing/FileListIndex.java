@@ -0,0 +1,111 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.listing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * The ChangeIndex of each recently active user (least recently used are dropped
+ * past maxUsers), and the opaque cursors clients use to page through them.
+ * A cursor names the index it came from, so a cursor from before a restart or an
+ * eviction is recognised, and the client told to start over.
+ */
+public class FileListIndex<T> {
+
+    private final LinkedHashMap<String,ChangeIndex<T>> indexes;
+    private final Function<T,String> nameOf;
+    private final Function<T,String> fingerprintOf;
+    private final long maxAgeNanos;
+
+    public FileListIndex( final int maxUsers, long maxAge, TimeUnit unit,
+                          Function<T,String> nameOf, Function<T,String> fingerprintOf ) {
+        this.indexes = new LinkedHashMap<String,ChangeIndex<T>>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String,ChangeIndex<T>> eldest ) {
+                return size() > maxUsers;
+            }
+        };
+        this.maxAgeNanos = unit.toNanos(maxAge);
+        this.nameOf = nameOf;
+        this.fingerprintOf = fingerprintOf;
+    }
+
+    public synchronized ChangeIndex<T> forUser( String userId ) {
+        ChangeIndex<T> index = indexes.get(userId);
+        if( index == null ) {
+            index = new ChangeIndex<>(nameOf, fingerprintOf);
+            indexes.put(userId, index);
+        }
+        return index;
+    }
+
+    /**
+     * One of the user's items changed (e.g. they uploaded it).
+     * @param item what it is now, or null if we can't tell without a listing, so resync before the next query
+     */
+    public void changed( String userId, T item ) {
+        ChangeIndex<T> index;
+        synchronized (this) {
+            index = indexes.get(userId);
+        }
+        if( index == null ) {
+            return;
+        }
+        if( item != null ) {
+            index.apply(item);
+        } else {
+            index.markStale();
+        }
+    }
+
+    public long getMaxAgeNanos() {
+        return maxAgeNanos;
+    }
+
+    public static String cursor( ChangeIndex<?> index, long sequence ) {
+        return Base64.getUrlEncoder().withoutPadding()
+                .encodeToString((index.epoch + ":" + sequence).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the sequence number the cursor points at, or -1 if it's from an index that no longer exists
+     * @throws IllegalArgumentException if it isn't a cursor at all
+     */
+    public static long sequence( ChangeIndex<?> index, String cursor ) {
+        String decoded = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        int separator = decoded.indexOf(':');
+        if( separator < 0 ) {
+            throw new IllegalArgumentException("Malformed cursor: " + cursor);
+        }
+        long sequence;
+        try {
+            sequence = Long.parseLong(decoded.substring(separator + 1));
+        } catch ( NumberFormatException e ) {
+            throw new IllegalArgumentException("Malformed cursor: " + cursor, e);
+        }
+        if( sequence < 0 ) {
+            throw new IllegalArgumentException("Malformed cursor: " + cursor);
+        }
+        return decoded.substring(0, separator).equals(index.epoch) ? sequence : -1;
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.metrics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies, in microseconds, counted into log-linear buckets: exact below 8us, then 8 buckets
+ * per power of two, so a percentile is at most 12.5% over the real one. Recording is a couple of
+ * LongAdder increments, with no locking, so it's cheap enough to do on every request.
+ * Percentiles are read from the counts as they are, so they're approximate while recording carries on.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //2^40us is about 12 days, anything longer is counted as that
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final LongAdder[] counts = new LongAdder[BUCKETS];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMicros = new LongAdder();
+    private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for( int i = 0; i < BUCKETS; ++i ) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    public void record( long nanos ) {
+        long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        counts[bucket(micros)].increment();
+        count.increment();
+        sumMicros.add(micros);
+        maxMicros.accumulate(micros);
+    }
+
+    public long count() {
+        return count.sum();
+    }
+
+    public long sumMicros() {
+        return sumMicros.sum();
+    }
+
+    public long maxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * @param quantile e.g. 0.99
+     * @return the latency (in microseconds) that fraction of recordings were at or under, or 0 if there are none
+     */
+    public long percentileMicros( double quantile ) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for( int i = 0; i < BUCKETS; ++i ) {
+            snapshot[i] = counts[i].sum();
+            total += snapshot[i];
+        }
+        if( total == 0 ) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for( int i = 0; i < BUCKETS; ++i ) {
+            seen += snapshot[i];
+            if( seen >= rank ) {
+                return Math.min(upperBound(i), maxMicros());
+            }
+        }
+        return maxMicros();
+    }
+
+    public Map<String,Long> snapshot() {
+        Map<String,Long> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", count());
+        snapshot.put("sumMicros", sumMicros());
+        snapshot.put("p50Micros", percentileMicros(0.5));
+        snapshot.put("p99Micros", percentileMicros(0.99));
+        snapshot.put("p999Micros", percentileMicros(0.999));
+        snapshot.put("maxMicros", maxMicros());
+        return snapshot;
+    }
+
+    static int bucket( long micros ) {
+        if( micros < SUB_BUCKETS ) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if( exponent > MAX_EXPONENT ) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * The largest value counted into a bucket.
+     */
+    static long upperBound( int bucket ) {
+        if( bucket < SUB_BUCKETS ) {
+            return bucket;
+        }
+        int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + SUB_BUCKET_BITS;
+        long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (SUB_BUCKETS + subBucket) * width + width - 1;
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.metrics;
+
+import com.shareplaylearn.http.AsyncBody;
+import spark.Route;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The service's timers (latency histograms), counters, and gauges, by name.
+ * Names are dotted, e.g. "route.download"; in Prometheus output they become
+ * fileservice_route_download_seconds etc.
+ */
+public class Metrics {
+
+    private final ConcurrentHashMap<String,LatencyHistogram> timers = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,LongAdder> counters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String,LongAdder> gauges = new ConcurrentHashMap<>();
+
+    public LatencyHistogram timer( String name ) {
+        return timers.computeIfAbsent(name, n -> new LatencyHistogram());
+    }
+
+    public LongAdder counter( String name ) {
+        return counters.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * A value that goes up and down, like requests in flight.
+     */
+    public LongAdder gauge( String name ) {
+        return gauges.computeIfAbsent(name, n -> new LongAdder());
+    }
+
+    /**
+     * Records nanos against the named timer, and the current request's phase.
+     */
+    public void record( String timer, RequestTiming.Phase phase, long nanos ) {
+        timer(timer).record(nanos);
+        RequestTiming.add(phase, nanos);
+    }
+
+    /**
+     * Wraps a route so its latency, requests, server errors and requests in flight are recorded under
+     * the given name, and its response carries a Server-Timing header.
+     * A body written after the route hands back (an AsyncBody) is timed, and in flight, until it's written.
+     */
+    public Route timed( String name, Route route ) {
+        LatencyHistogram latency = timer("route." + name);
+        LongAdder requests = counter("requests." + name);
+        LongAdder serverErrors = counter("serverErrors." + name);
+        LongAdder inFlight = gauge("inFlight." + name);
+        return (req, res) -> {
+            requests.increment();
+            inFlight.increment();
+            RequestTiming timing = RequestTiming.start();
+            Runnable done = () -> {
+                latency.record(System.nanoTime() - timing.startNanos);
+                inFlight.decrement();
+            };
+            boolean writing = false;
+            try {
+                Object body = route.handle(req, res);
+                RequestTiming.writeHeader(res.raw());
+                if( res.raw().getStatus() >= 500 ) {
+                    serverErrors.increment();
+                }
+                writing = AsyncBody.whenWritten(req.raw(), done);
+                return body;
+            } catch ( Exception e ) {
+                serverErrors.increment();
+                throw e;
+            } finally {
+                RequestTiming.end();
+                if( !writing ) {
+                    done.run();
+                }
+            }
+        };
+    }
+
+    public Map<String,Object> snapshot() {
+        Map<String,Object> timerSnapshots = new TreeMap<>();
+        timers.forEach( (name, timer) -> timerSnapshots.put(name, timer.snapshot()) );
+        Map<String,Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("timers", timerSnapshots);
+        snapshot.put("counters", sums(counters));
+        snapshot.put("gauges", sums(gauges));
+        return snapshot;
+    }
+
+    private static Map<String,Long> sums( Map<String,LongAdder> adders ) {
+        Map<String,Long> sums = new TreeMap<>();
+        adders.forEach( (name, adder) -> sums.put(name, adder.sum()) );
+        return sums;
+    }
+
+    /**
+     * Writes everything in the Prometheus text format: timers as summaries (in seconds),
+     * counters as counters, gauges as gauges.
+     */
+    public void writePrometheus( Writer out ) throws IOException {
+        for( Map.Entry<String,LatencyHistogram> timer : new TreeMap<>(timers).entrySet() ) {
+            String name = prometheusName(timer.getKey()) + "_seconds";
+            LatencyHistogram histogram = timer.getValue();
+            out.write("# TYPE " + name + " summary\n");
+            for( String quantile : new String[] { "0.5", "0.99", "0.999" } ) {
+                out.write(name + "{quantile=\"" + quantile + "\"} " +
+                        seconds(histogram.percentileMicros(Double.parseDouble(quantile))) + "\n");
+            }
+            out.write(name + "_sum " + seconds(histogram.sumMicros()) + "\n");
+            out.write(name + "_count " + histogram.count() + "\n");
+        }
+        for( Map.Entry<String,Long> counter : sums(counters).entrySet() ) {
+            writePrometheus(out, counter.getKey() + ".total", "counter", counter.getValue());
+        }
+        for( Map.Entry<String,Long> gauge : sums(gauges).entrySet() ) {
+            writePrometheus(out, gauge.getKey(), "gauge", gauge.getValue());
+        }
+    }
+
+    public static void writePrometheus( Writer out, String name, String type, long value ) throws IOException {
+        String prometheusName = prometheusName(name);
+        out.write("# TYPE " + prometheusName + " " + type + "\n");
+        out.write(prometheusName + " " + value + "\n");
+    }
+
+    static String prometheusName( String name ) {
+        StringBuilder prometheusName = new StringBuilder("fileservice_");
+        for( int i = 0; i < name.length(); ++i ) {
+            char c = name.charAt(i);
+            if( Character.isUpperCase(c) ) {
+                prometheusName.append('_').append(Character.toLowerCase(c));
+            } else if( (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') ) {
+                prometheusName.append(c);
+            } else {
+                prometheusName.append('_');
+            }
+        }
+        return prometheusName.toString();
+    }
+
+    private static String seconds( long micros ) {
+        return Double.toString(micros / 1e6);
+    }
+}
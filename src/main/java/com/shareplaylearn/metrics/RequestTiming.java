@@ -0,0 +1,94 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.metrics;
+
+import javax.servlet.http.HttpServletResponse;
+import java.util.Locale;
+
+/**
+ * Where the time of the request being handled on this thread went, sent back to the client
+ * as a Server-Timing header. Only time spent on the request thread itself is counted, and only
+ * what's happened by the time the header goes out: responses we stream are committed before the
+ * body is serialized, so their "ser" is whatever was done before that.
+ */
+public class RequestTiming {
+
+    public enum Phase {
+        AUTH("auth"), STORAGE("storage"), SERIALIZE("ser");
+
+        final String metricName;
+
+        Phase( String metricName ) {
+            this.metricName = metricName;
+        }
+    }
+
+    public static final String SERVER_TIMING_HEADER = "Server-Timing";
+    private static final ThreadLocal<RequestTiming> CURRENT = new ThreadLocal<>();
+
+    final long startNanos = System.nanoTime();
+    private final long[] phaseNanos = new long[Phase.values().length];
+    private boolean headerWritten;
+
+    static RequestTiming start() {
+        RequestTiming timing = new RequestTiming();
+        CURRENT.set(timing);
+        return timing;
+    }
+
+    static void end() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Adds to the current request's time in that phase, if this thread is handling one.
+     */
+    public static void add( Phase phase, long nanos ) {
+        RequestTiming timing = CURRENT.get();
+        if( timing != null ) {
+            timing.phaseNanos[phase.ordinal()] += nanos;
+        }
+    }
+
+    /**
+     * Sets the Server-Timing header, if it hasn't been already. Anything that commits the response
+     * itself (by streaming a body) should call this just before it does.
+     */
+    public static void writeHeader( HttpServletResponse res ) {
+        RequestTiming timing = CURRENT.get();
+        if( timing == null || timing.headerWritten || res.isCommitted() ) {
+            return;
+        }
+        res.setHeader(SERVER_TIMING_HEADER, timing.header());
+        timing.headerWritten = true;
+    }
+
+    String header() {
+        StringBuilder header = new StringBuilder();
+        for( Phase phase : Phase.values() ) {
+            if( phaseNanos[phase.ordinal()] > 0 ) {
+                header.append(phase.metricName).append(";dur=").append(millis(phaseNanos[phase.ordinal()])).append(", ");
+            }
+        }
+        return header.append("total;dur=").append(millis(System.nanoTime() - startNanos)).toString();
+    }
+
+    private static String millis( long nanos ) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+}
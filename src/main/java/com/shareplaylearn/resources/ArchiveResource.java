@@ -0,0 +1,283 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.resources;
+
+import com.shareplaylearn.FileService;
+import com.shareplaylearn.cache.ItemKey;
+import com.shareplaylearn.exceptions.Exceptions;
+import com.shareplaylearn.io.Streams;
+import com.shareplaylearn.metrics.RequestTiming;
+import com.shareplaylearn.models.ItemSchema;
+import com.shareplaylearn.storage.ItemStat;
+import com.shareplaylearn.storage.ListedItem;
+import com.shareplaylearn.storage.StorageException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.eclipse.jetty.http.HttpStatus.Code.*;
+
+/**
+ * A ZIP of several of a user's files, or all of them, written as it's built.
+ * Items are opened a few ahead of the one being written (FileService.archiveReadAhead), so storage
+ * and the client are both kept busy. Each is streamed from the store into the zip, so what's in memory
+ * is a few streams' buffers, not whole items; only stores that can't stream (i.e. that can't stat() an
+ * item) have theirs read in, and then only that many at a time. Nothing is written to disk.
+ */
+public class ArchiveResource {
+
+    private static final Logger log = LoggerFactory.getLogger(ArchiveResource.class);
+    //we've already sent a 200 by the time an item fails, so failures are listed in here instead
+    public static final String ERRORS_ENTRY = "errors.txt";
+
+    static class Entry {
+        final ItemKey key;
+        final String name;
+
+        Entry( ItemKey key, String name ) {
+            this.key = key;
+            this.name = name;
+        }
+    }
+
+    /**
+     * An item, ready to be copied into the zip.
+     */
+    static class Opened implements Closeable {
+        final InputStream in;
+        final long size;
+
+        Opened( InputStream in, long size ) {
+            this.in = in;
+            this.size = size;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * The items opened ahead of the one being written, so they're closed if the archive ends first,
+     * including any that finish opening after it has.
+     */
+    static class ReadAhead {
+        private final Set<Opened> unread = new HashSet<>();
+        private boolean closed;
+
+        synchronized Opened opened( Opened item ) throws IOException {
+            if( closed ) {
+                item.close();
+                throw new InterruptedIOException("The archive this was opened for has ended");
+            }
+            unread.add(item);
+            return item;
+        }
+
+        synchronized Opened taken( Opened item ) {
+            unread.remove(item);
+            return item;
+        }
+
+        synchronized void close() {
+            closed = true;
+            for( Opened item : unread ) {
+                try {
+                    item.close();
+                } catch ( IOException e ) {
+                    log.debug("Couldn't close an archive item: " + e);
+                }
+            }
+            unread.clear();
+        }
+    }
+
+    /**
+     * GET /file_api/file/:userName/:userId/archive?file=fileType/presentationType/filename&file=...
+     * With no file parameters, the archive has the original of everything in the user's file list.
+     */
+    public static String getArchive( Request req, Response res ) throws IOException {
+        String accessToken = req.headers(FileService.AUTHENTICATION_HEADER);
+        if( accessToken.startsWith("Bearer") ) {
+            String[] tokenFields = accessToken.split(" ");
+            if( tokenFields.length > 1 ) {
+                accessToken = tokenFields[1];
+            }
+        }
+        String[] files = req.queryParamsValues("file");
+        return getArchive( req.params("userName"), req.params("userId"), accessToken,
+                files == null ? Collections.emptyList() : Arrays.asList(files), res );
+    }
+
+    /**
+     * @param files fileType/presentationType/filename of each file to include, or empty for all of them
+     */
+    public static String getArchive( String userName, String userId, String accessToken,
+                                     List<String> files, Response res ) throws IOException {
+        if( !FileService.isAuthorized(accessToken, userId) ) {
+            res.status(UNAUTHORIZED.getCode());
+            res.body(UNAUTHORIZED.toString());
+            return res.body();
+        }
+        List<Entry> entries;
+        try {
+            entries = files.isEmpty() ? libraryEntries(userName, userId) : requestedEntries(userId, files);
+        } catch ( IllegalArgumentException e ) {
+            res.status(BAD_REQUEST.getCode());
+            res.body(e.getMessage());
+            return res.body();
+        } catch ( StorageException e ) {
+            log.error(Exceptions.asString(e));
+            res.status(e.getStatusCode());
+            res.body(e.getMessage());
+            return res.body();
+        }
+
+        HttpServletResponse raw = res.raw();
+        res.status(OK.getCode());
+        raw.setContentType("application/zip");
+        raw.setHeader("Content-Disposition", "attachment; filename=\"" + userName.replace("\"", "") + ".zip\"");
+        ArrayDeque<Future<Opened>> fetching = new ArrayDeque<>();
+        ReadAhead readAhead = new ReadAhead();
+        List<String> errors = new ArrayList<>();
+        RequestTiming.writeHeader(raw);
+        //closing the zip writes its central directory, and closes (so commits) the response
+        try (ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(raw.getOutputStream(), Streams.CHUNK_SIZE))) {
+            //most of what people store (images) is compressed already, so don't work hard at it
+            zip.setLevel(Deflater.BEST_SPEED);
+            int next = 0;
+            for( Entry entry : entries ) {
+                while( next < entries.size() && fetching.size() < Math.max(1, FileService.archiveReadAhead) ) {
+                    Entry ahead = entries.get(next++);
+                    fetching.add( FileService.archiveExecutor.submit( () ->
+                            readAhead.opened(open(userName, ahead.key)) ) );
+                }
+                Opened item;
+                try {
+                    item = readAhead.taken(fetching.remove().get());
+                } catch ( ExecutionException e ) {
+                    log.warn("Leaving " + entry.key + " out of archive: " + Exceptions.asString(e.getCause()));
+                    errors.add(entry.name + ": " + e.getCause());
+                    continue;
+                }
+                //once we've started an entry there's no leaving it out, so a failure reading it ends the archive
+                try (Opened copying = item) {
+                    zip.putNextEntry(new ZipEntry(entry.name));
+                    Streams.copy(copying.in, zip, copying.size);
+                    zip.closeEntry();
+                }
+            }
+            if( !errors.isEmpty() ) {
+                zip.putNextEntry(new ZipEntry(ERRORS_ENTRY));
+                zip.write(String.join("\n", errors).getBytes(StandardCharsets.UTF_8));
+                zip.closeEntry();
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing archive for " + userId);
+        } finally {
+            //e.g. the client went away: nobody wants what's been opened, or what's still being opened
+            readAhead.close();
+            for( Future<Opened> ahead : fetching ) {
+                ahead.cancel(true);
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Opens the item in the store, if it can stream it, and otherwise reads it in (from the cache, if
+     * it's there, but without adding it: an archive shouldn't push out what's being downloaded).
+     */
+    private static Opened open( String userName, ItemKey key ) throws IOException {
+        ItemStat stat = FileService.itemStore.stat(userName, key);
+        if( stat != null ) {
+            return new Opened(FileService.itemStore.open(userName, key), stat.size);
+        }
+        byte[] bytes = FileService.itemCache.get(key);
+        if( bytes == null ) {
+            bytes = FileService.itemStore.get(userName, key);
+        }
+        return new Opened(new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    private static List<Entry> requestedEntries( String userId, List<String> files ) {
+        List<Entry> entries = new ArrayList<>(files.size());
+        Set<String> names = new HashSet<>();
+        for( String file : files ) {
+            String[] fields = file.split("/", 3);
+            if( fields.length < 3 || fields[2].isEmpty() ) {
+                throw new IllegalArgumentException("Expected fileType/presentationType/filename, got: " + file);
+            }
+            entries.add(entry(userId, fields[0], fields[1], fields[2], names));
+        }
+        return entries;
+    }
+
+    private static List<Entry> libraryEntries( String userName, String userId ) throws IOException {
+        String original = ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE.toString();
+        List<ListedItem> items = FileListResource.fetchFileList(userName, userId);
+        List<Entry> entries = new ArrayList<>(items.size());
+        Set<String> names = new HashSet<>();
+        for( ListedItem item : items ) {
+            if( item.name != null ) {
+                entries.add(entry(userId, item.fileType, original, item.name, names));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Originals go in under their own name, other presentations under presentationType/filename.
+     * Names that would clash anyway get a number.
+     */
+    private static Entry entry( String userId, String fileType, String presentationTypeArg, String filename,
+                                Set<String> names ) {
+        ItemSchema.PresentationType presentationType = ItemSchema.PresentationType.fromString(presentationTypeArg);
+        String name = presentationType == ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE ?
+                filename : presentationType + "/" + filename;
+        String unique = name;
+        for( int i = 2; !names.add(unique); ++i ) {
+            unique = name + " (" + i + ")";
+        }
+        return new Entry( new ItemKey(userId, fileType, presentationType.toString(), filename), unique );
+    }
+}
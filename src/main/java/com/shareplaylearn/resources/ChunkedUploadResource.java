@@ -0,0 +1,267 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.resources;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.shareplaylearn.FileService;
+import com.shareplaylearn.exceptions.Exceptions;
+import com.shareplaylearn.exceptions.InternalErrorException;
+import com.shareplaylearn.upload.UploadSession;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import spark.Request;
+import spark.Response;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.eclipse.jetty.http.HttpStatus.Code.*;
+
+/**
+ * Uploads in pieces, for files too big to send in one go:
+ *  POST   /file_api/upload                  {"userName", "userId", "filename", "contentType", "size"}
+ *                                           starts an upload, and says how big each chunk should be
+ *  PUT    /file_api/upload/:uploadId/:chunk the chunk's bytes, as the body. Any chunk can be sent again.
+ *  GET    /file_api/upload/:uploadId        which chunks are still missing, e.g. after a dropped connection
+ *  POST   /file_api/upload/:uploadId/commit stores the file, exactly as a form upload would
+ *  DELETE /file_api/upload/:uploadId        gives up on it
+ * Every call needs the uploading user's access token in the Authorization header.
+ */
+public class ChunkedUploadResource {
+
+    private static final Logger log = LoggerFactory.getLogger(ChunkedUploadResource.class);
+    private static final Gson GSON = new Gson();
+
+    private static class UploadRequest {
+        String userName;
+        String userId;
+        String filename;
+        String contentType;
+        Long size;
+    }
+
+    public static String initiate( Request req, Response res ) throws IOException {
+        UploadRequest upload;
+        try {
+            upload = GSON.fromJson(req.body(), UploadRequest.class);
+        } catch ( JsonParseException e ) {
+            upload = null;
+        }
+        if( upload == null || isBlank(upload.userName) || isBlank(upload.userId) || isBlank(upload.filename)
+                || isBlank(upload.contentType) || upload.size == null ) {
+            res.status(BAD_REQUEST.getCode());
+            res.body("Expected {\"userName\", \"userId\", \"filename\", \"contentType\", \"size\"}, got: " + req.body());
+            return res.body();
+        }
+        if( !FileService.isAuthorized(accessToken(req), upload.userId) ) {
+            res.status(UNAUTHORIZED.getCode());
+            res.body(UNAUTHORIZED.toString());
+            return res.body();
+        }
+        if( upload.size <= 0 ) {
+            res.status(BAD_REQUEST.getCode());
+            res.body("Size was invalid: " + upload.size);
+            return res.body();
+        }
+        //the chunks are streamed into the store at commit, but some stores still need the whole file in memory
+        long maxSize = FileService.itemStore.maxItemSize();
+        if( upload.size > maxSize ) {
+            res.status(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+            res.body("Files can be at most " + maxSize + " bytes.");
+            return res.body();
+        }
+        //before any chunks are sent, rather than at commit
+        if( FileService.usage.wouldExceed(FileService.itemStore, upload.userName, upload.userId,
+                upload.filename, upload.size) ) {
+            res.status(INSUFFICIENT_STORAGE.getCode());
+            res.body(FileService.usage.quotaMessage(upload.userId, upload.size));
+            return res.body();
+        }
+        UploadSession session = FileService.uploadSessions.create( upload.userName, upload.userId,
+                upload.filename, upload.contentType, upload.size );
+        if( session == null ) {
+            res.status(SERVICE_UNAVAILABLE.getCode());
+            res.body("Too many uploads in progress (for this user, or overall), try again later.");
+            return res.body();
+        }
+        res.status(CREATED.getCode());
+        res.header("Location", "/file_api/upload/" + session.id);
+        return status(session, res);
+    }
+
+    public static String putChunk( Request req, Response res ) throws IOException {
+        UploadSession session = authorizedSession(req, res);
+        if( session == null ) {
+            return res.body();
+        }
+        int chunk;
+        try {
+            chunk = Integer.parseInt(req.params("chunk"));
+        } catch ( NumberFormatException e ) {
+            chunk = -1;
+        }
+        long expectedLength = session.chunkLength(chunk);
+        if( expectedLength < 0 ) {
+            res.status(NOT_FOUND.getCode());
+            res.body("No chunk " + req.params("chunk") + ", chunks are 0 to " + (session.chunkCount() - 1));
+            return res.body();
+        }
+        long contentLength = req.raw().getContentLengthLong();
+        if( contentLength < 0 ) {
+            res.status(LENGTH_REQUIRED.getCode());
+            res.body("Chunks need a Content-Length.");
+            return res.body();
+        }
+        if( contentLength != expectedLength ) {
+            res.status(BAD_REQUEST.getCode());
+            res.body("Chunk " + chunk + " should be " + expectedLength + " bytes, was: " + contentLength);
+            return res.body();
+        }
+        try {
+            session.writeChunk(chunk, req.raw().getInputStream());
+        } catch ( EOFException e ) {
+            res.status(BAD_REQUEST.getCode());
+            res.body("Chunk " + chunk + " ended early, send it again.");
+            return res.body();
+        } catch ( IllegalStateException e ) {
+            res.status(CONFLICT.getCode());
+            res.body(e.getMessage());
+            return res.body();
+        }
+        res.status(OK.getCode());
+        return status(session, res);
+    }
+
+    public static String getStatus( Request req, Response res ) throws IOException {
+        UploadSession session = authorizedSession(req, res);
+        if( session == null ) {
+            return res.body();
+        }
+        res.status(OK.getCode());
+        return status(session, res);
+    }
+
+    /**
+     * Hands the chunks, as one stream, to FileFormResource.uploadFile(), so we get the same
+     * checks, quota handling, and cache invalidation as a form upload. The stream goes straight into
+     * the store (which hashes it as it's written, see LocalItemStore), not onto the heap. If that fails,
+     * the chunks are kept, and the commit can be retried.
+     */
+    public static String commit( Request req, Response res ) throws IOException {
+        UploadSession session = authorizedSession(req, res);
+        if( session == null ) {
+            return res.body();
+        }
+        InputStream file;
+        try {
+            file = session.close();
+        } catch ( IllegalStateException e ) {
+            res.status(CONFLICT.getCode());
+            res.body(e.getMessage());
+            return res.body();
+        }
+        if( file == null ) {
+            res.status(CONFLICT.getCode());
+            return status(session, res);
+        }
+        boolean stored = false;
+        try (InputStream assembled = file) {
+            String result = FileFormResource.uploadFile( res, assembled, session.size, session.filename,
+                    session.userId, session.userName, accessToken(req), session.filename,
+                    (int) Math.min(session.size, Integer.MAX_VALUE), session.contentType );
+            stored = res.status() == CREATED.getCode();
+            return result;
+        } catch ( InternalErrorException | UncheckedIOException e ) {
+            log.error(Exceptions.asString(e));
+            res.status(INTERNAL_SERVER_ERROR.getCode());
+            res.body(e.getMessage());
+            return res.body();
+        } finally {
+            if( stored ) {
+                FileService.uploadSessions.remove(session);
+            } else {
+                session.reopen();
+            }
+        }
+    }
+
+    public static String abort( Request req, Response res ) throws IOException {
+        UploadSession session = authorizedSession(req, res);
+        if( session == null ) {
+            return res.body();
+        }
+        FileService.uploadSessions.remove(session);
+        res.status(NO_CONTENT.getCode());
+        res.body("");
+        return res.body();
+    }
+
+    /**
+     * @return the session named in the path, if it exists, and the caller's token is good for
+     *         its user. Otherwise null, with the response already filled in.
+     */
+    private static UploadSession authorizedSession( Request req, Response res ) throws IOException {
+        UploadSession session = FileService.uploadSessions.get(req.params("uploadId"));
+        if( session == null ) {
+            res.status(NOT_FOUND.getCode());
+            res.body("No upload in progress with id: " + req.params("uploadId"));
+            return null;
+        }
+        if( !FileService.isAuthorized(accessToken(req), session.userId) ) {
+            res.status(UNAUTHORIZED.getCode());
+            res.body(UNAUTHORIZED.toString());
+            return null;
+        }
+        return session;
+    }
+
+    private static String status( UploadSession session, Response res ) {
+        Map<String,Object> status = new LinkedHashMap<>();
+        status.put("uploadId", session.id);
+        status.put("filename", session.filename);
+        status.put("size", session.size);
+        status.put("chunkSize", session.chunkSize);
+        status.put("chunks", session.chunkCount());
+        status.put("received", session.receivedChunks());
+        status.put("missing", session.missingChunks());
+        res.type("application/json");
+        res.body(GSON.toJson(status));
+        return res.body();
+    }
+
+    private static String accessToken( Request req ) {
+        String accessToken = req.headers(FileService.AUTHENTICATION_HEADER);
+        if( accessToken != null && accessToken.startsWith("Bearer") ) {
+            String[] tokenFields = accessToken.split(" ");
+            if( tokenFields.length > 1 ) {
+                accessToken = tokenFields[1];
+            }
+        }
+        return accessToken;
+    }
+
+    private static boolean isBlank( String s ) {
+        return s == null || s.trim().length() == 0;
+    }
+}
@@ -17,12 +17,17 @@
  */
 package com.shareplaylearn.resources;
 
-import com.amazonaws.AmazonClientException;
-import com.shareplaylearn.UserItemManager;
+import com.google.gson.Gson;
 import com.shareplaylearn.exceptions.Exceptions;
 import com.shareplaylearn.exceptions.InternalErrorException;
 import com.shareplaylearn.exceptions.QuotaExceededException;
 import com.shareplaylearn.FileService;
+import com.shareplaylearn.http.AdmissionController;
+import com.shareplaylearn.io.Streams;
+import com.shareplaylearn.metrics.RequestTiming;
+import com.shareplaylearn.storage.ListedItem;
+import com.shareplaylearn.storage.StorageException;
+import com.shareplaylearn.storage.UsageTracker;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
@@ -32,8 +37,21 @@ import spark.utils.IOUtils;
 import javax.servlet.MultipartConfigElement;
 import javax.servlet.ServletException;
 import javax.servlet.http.Part;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.eclipse.jetty.http.HttpStatus.Code.*;
 
@@ -43,6 +61,9 @@ import static org.eclipse.jetty.http.HttpStatus.Code.*;
 public class FileFormResource {
 
     protected static Logger log = LoggerFactory.getLogger(FileFormResource.class);
+    //allowed for the form fields, and each part's headers, on top of the files in a form's Content-Length
+    private static final long FORM_OVERHEAD_BYTES = 64 * 1024;
+    private static final Gson GSON = new Gson();
 
     private static String getFormString( Request req, String fieldName ) throws IOException, ServletException {
         if( fieldName == null ) {
@@ -68,9 +89,11 @@ public class FileFormResource {
                 req.raw().setAttribute("org.eclipse.jetty.multipartConfig", multipartConfigElement);
             }
 
+            if( overQuotaBeforeReading(req, res) ) {
+                return res.body();
+            }
             Part filePart = req.raw().getPart("file");
             String submittedFilename = filePart.getSubmittedFileName();
-            InputStream file = filePart.getInputStream();
             String userId = getFormString(req,"user_id");
             String userName = getFormString(req,"user_name");
             String accessToken = getFormString(req,"access_token");
@@ -78,8 +101,14 @@ public class FileFormResource {
             int contentLength = req.contentLength();
             String contentType = req.contentType();
 
-            return uploadFile( res, file, submittedFilename, userId, userName, accessToken,
-                    requestedFilename, contentLength, contentType);
+            //Jetty spools the part to disk (the file size threshold is 0), so we read it back
+            //from there, and clean up the temp file ourselves once it's been stored.
+            try (InputStream file = filePart.getInputStream()) {
+                return uploadFile(res, file, filePart.getSize(), submittedFilename, userId, userName,
+                        accessToken, requestedFilename, contentLength, contentType);
+            } finally {
+                filePart.delete();
+            }
         } catch (IOException | ServletException | InternalErrorException e) {
             log.error(Exceptions.asString(e));
             res.status(INTERNAL_SERVER_ERROR.getCode());
@@ -93,6 +122,50 @@ public class FileFormResource {
         }
     }
 
+    /**
+     * Jetty reads (and spools to disk) the whole body the first time a part is asked for, and the user and
+     * token are in there, so before that, all we can go by is the Content-Length, and the query string.
+     * A form bigger than the quota itself is turned away. So is one that would put its user over theirs,
+     * if it says who they are, with ?user_id=...&user_name=... and their token in the Authorization header
+     * (and &filename=... when it replaces an item, so what's replaced is counted as freed).
+     * @return true if the request was answered with a 507
+     */
+    private static boolean overQuotaBeforeReading( Request req, Response res ) throws IOException {
+        long size = req.raw().getContentLengthLong() - FORM_OVERHEAD_BYTES;
+        if( size <= 0 || !FileService.usage.enabled() ) {
+            return false;
+        }
+        if( FileService.usage.exceedsQuota(size) ) {
+            res.status(INSUFFICIENT_STORAGE.getCode());
+            res.body("This upload is bigger than the storage quota.");
+            return true;
+        }
+        String userId = req.queryParams("user_id");
+        String userName = req.queryParams("user_name");
+        String accessToken = bearerToken(req);
+        if( userId == null || userName == null || accessToken == null ||
+                !FileService.isAuthorized(accessToken, userId) ) {
+            return false;
+        }
+        if( FileService.usage.wouldExceed(FileService.itemStore, userName, userId, req.queryParams("filename"), size) ) {
+            res.status(INSUFFICIENT_STORAGE.getCode());
+            res.body(FileService.usage.quotaMessage(userId, size));
+            return true;
+        }
+        return false;
+    }
+
+    private static String bearerToken( Request req ) {
+        String accessToken = req.headers(FileService.AUTHENTICATION_HEADER);
+        if( accessToken != null && accessToken.startsWith("Bearer") ) {
+            String[] tokenFields = accessToken.split(" ");
+            if( tokenFields.length > 1 ) {
+                accessToken = tokenFields[1];
+            }
+        }
+        return accessToken;
+    }
+
     public static String uploadFile (
             Response res,
             InputStream file, String submittedFilename,
@@ -100,13 +173,29 @@ public class FileFormResource {
             String accessToken, String requestedFilename,
             int contentLength, String contentType
     ) throws IOException, InternalErrorException {
+        return uploadFile( res, file, -1, submittedFilename, userId, userName, accessToken,
+                requestedFilename, contentLength, contentType );
+    }
+
+    /**
+     * @param fileSize the size of the file stream, if known (e.g. from the multipart headers),
+     *                 otherwise negative. When known, the file is streamed into the store (which
+     *                 may still read it in, if it only takes whole items); otherwise it's read in first.
+     */
+    public static String uploadFile (
+            Response res,
+            InputStream file, long fileSize, String submittedFilename,
+            String userId, String userName,
+            String accessToken, String requestedFilename,
+            int contentLength, String contentType
+    ) throws IOException, InternalErrorException {
 
         if (accessToken == null || accessToken.trim().length() == 0) {
             res.status(BAD_REQUEST.getCode());
             res.body("No access token given.");
             return res.body();
         } else {
-            if(!FileService.tokenValidator.isValid(accessToken, userId)) {
+            if(!FileService.isAuthorized(accessToken, userId)) {
                 res.status(UNAUTHORIZED.getCode());
                 res.body(UNAUTHORIZED.toString());
                 return res.body();
@@ -153,10 +242,32 @@ public class FileFormResource {
             return res.body();
         }
 
-        UserItemManager userItemManager = new UserItemManager( userName, userId );
-        byte[] fileBuffer = org.apache.commons.io.IOUtils.toByteArray(file);
+        //only now do we know whose upload this is, for sure
+        try( AdmissionController.Ticket ticket = FileService.admission.enterAsUser(userId) ) {
+            if( !ticket.admitted() ) {
+                return FileService.admission.reject(res, ticket);
+            }
+            return storeUpload( res, file, fileSize, userId, userName, filename );
+        }
+    }
+
+    private static String storeUpload( Response res, InputStream file, long fileSize,
+                                       String userId, String userName, String filename ) throws IOException {
+        //turn away what can't fit before reading it in (storeItem() checks again, exactly)
+        if( fileSize >= 0 &&
+                FileService.usage.wouldExceed(FileService.itemStore, userName, userId, filename, fileSize) ) {
+            res.status(INSUFFICIENT_STORAGE.getCode());
+            res.body(FileService.usage.quotaMessage(userId, fileSize));
+            return res.body();
+        }
+        if( fileSize < 0 ) {
+            //nothing to reserve quota against until we know how big it is
+            byte[] bytes = Streams.readFully(file, -1);
+            file = new ByteArrayInputStream(bytes);
+            fileSize = bytes.length;
+        }
         try {
-            userItemManager.addItem( filename, fileBuffer );
+            storeItem( userName, userId, filename, file, fileSize );
             res.status(CREATED.getCode());
             res.body(CREATED.toString());
             return res.body();
@@ -164,11 +275,205 @@ public class FileFormResource {
             res.status( INSUFFICIENT_STORAGE.getCode() );
             res.body( Exceptions.asString(e) );
             return res.body();
-        } catch (AmazonClientException e) {
-            res.status(INTERNAL_SERVER_ERROR.getCode());
+        } catch (StorageException e) {
+            res.status(e.getStatusCode());
             res.body(Exceptions.asString(e));
             return res.body();
         }
     }
 
+    /**
+     * Streams the item into the store, and lets everything caching the user's items know it's changed.
+     * Its other presentations are derived afterwards, if the store doesn't make them itself.
+     */
+    private static void storeItem( String userName, String userId, String filename, InputStream file, long size )
+            throws IOException, QuotaExceededException {
+        UsageTracker.Reservation reservation = FileService.usage.reserve( FileService.itemStore, userName, userId,
+                filename, size );
+        if( reservation == null ) {
+            throw new QuotaExceededException( FileService.usage.quotaMessage(userId, size) );
+        }
+        try {
+            FileService.itemStore.put( userName, userId, filename, file, size );
+        } catch ( IOException | QuotaExceededException | RuntimeException e ) {
+            reservation.cancel();
+            throw e;
+        }
+        FileService.itemCache.invalidate( userId, filename );
+        FileService.itemValidators.uploaded( userId, filename );
+        FileService.fileListCache.invalidate( userId );
+        FileService.fileListIndex.changed( userId, describe(userName, userId, filename) );
+        FileService.metrics.counter("uploads.items").increment();
+        FileService.metrics.counter("uploads.bytes").add( size );
+        FileService.derivations.submit( userName, userId, filename );
+    }
+
+    /**
+     * @return the item's new file list entry, or null if the store can't say without a listing (or failed to)
+     */
+    private static ListedItem describe( String userName, String userId, String filename ) {
+        try {
+            return FileService.itemStore.describe( userName, userId, filename );
+        } catch ( IOException e ) {
+            log.warn("Couldn't describe " + filename + " for " + userId + ", its file list will be resynced: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Like handleFormPost(), but takes any number of file parts (each part with a submitted
+     * filename is a file), and answers with the outcome of each, in the order they were sent:
+     * [{"filename": "...", "status": 201, "message": "..."}, ...]
+     */
+    public static String handleBatchFormPost(Request req, Response res) {
+        try {
+            if (req.raw().getAttribute("org.eclipse.jetty.multipartConfig") == null) {
+                MultipartConfigElement multipartConfigElement = new MultipartConfigElement(System.getProperty("java.io.tmpdir"));
+                req.raw().setAttribute("org.eclipse.jetty.multipartConfig", multipartConfigElement);
+            }
+            if( overQuotaBeforeReading(req, res) ) {
+                return res.body();
+            }
+            List<Part> fileParts = new ArrayList<>();
+            for( Part part : req.raw().getParts() ) {
+                if( part.getSubmittedFileName() != null ) {
+                    fileParts.add(part);
+                }
+            }
+            try {
+                return uploadFiles( res, fileParts, getFormString(req,"user_id"), getFormString(req,"user_name"),
+                        getFormString(req,"access_token") );
+            } finally {
+                for( Part part : fileParts ) {
+                    part.delete();
+                }
+            }
+        } catch ( Throwable t ) {
+            log.error(Exceptions.asString(t));
+            res.status(INTERNAL_SERVER_ERROR.getCode());
+            res.body(t.getMessage());
+            return res.body();
+        }
+    }
+
+    /**
+     * Checks the token once for the whole batch, and that all of it fits in the user's quota, then stores
+     * the files on up to FileService.batchParallelism threads. A file that fails doesn't stop the others,
+     * except that once one goes over quota (e.g. racing another upload), the rest aren't tried.
+     */
+    public static String uploadFiles( Response res, List<Part> files,
+                                      String userId, String userName, String accessToken ) throws IOException {
+        if (accessToken == null || accessToken.trim().length() == 0) {
+            res.status(BAD_REQUEST.getCode());
+            res.body("No access token given.");
+            return res.body();
+        }
+        if (userId == null || userId.trim().length() == 0 || userName == null || userName.trim().length() == 0) {
+            res.status(BAD_REQUEST.getCode());
+            res.body("No user id or user name given.");
+            return res.body();
+        }
+        if(!FileService.isAuthorized(accessToken, userId)) {
+            res.status(UNAUTHORIZED.getCode());
+            res.body(UNAUTHORIZED.toString());
+            return res.body();
+        }
+        if( files.isEmpty() ) {
+            res.status(BAD_REQUEST.getCode());
+            res.body("No files given");
+            return res.body();
+        }
+        try( AdmissionController.Ticket ticket = FileService.admission.enterAsUser(userId) ) {
+            if( !ticket.admitted() ) {
+                return FileService.admission.reject(res, ticket);
+            }
+            return storeBatch( res, files, userId, userName );
+        }
+    }
+
+    private static String storeBatch( Response res, List<Part> files, String userId, String userName )
+            throws IOException {
+        //turn the whole batch away before storing any of it, rather than leave it partly stored
+        Map<String,Long> sizes = new HashMap<>();
+        long total = 0;
+        for( Part file : files ) {
+            sizes.merge(file.getSubmittedFileName(), file.getSize(), Math::max);
+            total += file.getSize();
+        }
+        if( FileService.usage.wouldExceed(FileService.itemStore, userName, userId, sizes) ) {
+            res.status(INSUFFICIENT_STORAGE.getCode());
+            res.body(FileService.usage.quotaMessage(userId, total));
+            return res.body();
+        }
+
+        List<Map<String,Object>> results = new ArrayList<>(Collections.nCopies(files.size(), null));
+        AtomicInteger next = new AtomicInteger();
+        AtomicBoolean overQuota = new AtomicBoolean();
+        //each worker takes the next file that nobody has started on, until they're all done
+        Callable<Void> worker = () -> {
+            for( int i = next.getAndIncrement(); i < files.size(); i = next.getAndIncrement() ) {
+                results.set(i, uploadPart(files.get(i), userName, userId, overQuota));
+            }
+            return null;
+        };
+        int workers = Math.min(files.size(), FileService.batchParallelism);
+        List<Future<Void>> running = new ArrayList<>(workers);
+        try {
+            for( int i = 1; i < workers; ++i ) {
+                running.add( FileService.uploadExecutor.submit(worker) );
+            }
+            //this thread works on the batch too, rather than just waiting
+            worker.call();
+            for( Future<Void> work : running ) {
+                work.get();
+            }
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted storing batch for " + userId);
+        } catch ( Exception e ) {
+            //uploadPart() catches everything about the files themselves, so this is something worse
+            throw e instanceof IOException ? (IOException) e :
+                    new IOException(e instanceof ExecutionException ? e.getCause() : e);
+        }
+
+        res.status(OK.getCode());
+        res.type("application/json");
+        long start = System.nanoTime();
+        res.body( GSON.toJson(results) );
+        FileService.metrics.record("serialize.batchResults", RequestTiming.Phase.SERIALIZE, System.nanoTime() - start);
+        return res.body();
+    }
+
+    private static Map<String,Object> uploadPart( Part file, String userName, String userId,
+                                                  AtomicBoolean overQuota ) {
+        String filename = file.getSubmittedFileName();
+        Map<String,Object> result = new LinkedHashMap<>();
+        result.put("filename", filename);
+        if( filename.trim().length() == 0 ) {
+            return status(result, BAD_REQUEST.getCode(), "Could not determine filename.");
+        }
+        if( overQuota.get() ) {
+            return status(result, INSUFFICIENT_STORAGE.getCode(), "Not stored, quota was exceeded by an earlier file.");
+        }
+        try (InputStream in = file.getInputStream()) {
+            storeItem( userName, userId, filename, in, file.getSize() );
+            return status(result, CREATED.getCode(), CREATED.toString());
+        } catch ( QuotaExceededException e ) {
+            overQuota.set(true);
+            return status(result, INSUFFICIENT_STORAGE.getCode(), e.getMessage());
+        } catch ( StorageException e ) {
+            //not found, forbidden, too big, etc., as a single upload would be answered
+            log.info("Failed to store " + filename + " for " + userId + ": " + e.getStatusCode() + ": " + e.getMessage());
+            return status(result, e.getStatusCode(), e.getMessage());
+        } catch ( Exception e ) {
+            log.error("Failed to store " + filename + " for " + userId + ": " + Exceptions.asString(e));
+            return status(result, INTERNAL_SERVER_ERROR.getCode(), e.getMessage());
+        }
+    }
+
+    private static Map<String,Object> status( Map<String,Object> result, int status, String message ) {
+        result.put("status", status);
+        result.put("message", message);
+        return result;
+    }
 }
@@ -17,22 +17,29 @@
  */
 package com.shareplaylearn.resources;
 
-import com.amazonaws.AmazonClientException;
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.shareplaylearn.UserItemManager;
+import com.google.gson.stream.JsonWriter;
 import com.shareplaylearn.exceptions.Exceptions;
 import com.shareplaylearn.FileService;
-import com.shareplaylearn.models.UserItem;
+import com.shareplaylearn.io.Streams;
+import com.shareplaylearn.listing.ChangeIndex;
+import com.shareplaylearn.listing.FileListIndex;
+import com.shareplaylearn.metrics.RequestTiming;
+import com.shareplaylearn.storage.ListedItem;
+import com.shareplaylearn.storage.StorageException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
 import spark.Response;
 
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.List;
 
-import static org.eclipse.jetty.http.HttpStatus.Code.INTERNAL_SERVER_ERROR;
+import static org.eclipse.jetty.http.HttpStatus.Code.BAD_REQUEST;
 import static org.eclipse.jetty.http.HttpStatus.Code.OK;
 import static org.eclipse.jetty.http.HttpStatus.Code.UNAUTHORIZED;
 
@@ -43,6 +50,11 @@ import static org.eclipse.jetty.http.HttpStatus.Code.UNAUTHORIZED;
 public class FileListResource {
 
     private static final Logger log = LoggerFactory.getLogger(FileListResource.class);
+    public static final int DEFAULT_PAGE_SIZE = 100;
+    public static final int MAX_PAGE_SIZE = 1000;
+    //Gson is thread safe, so there's no need to build one per request
+    private static final Gson GSON = new Gson();
+
     public static String getFileList(Request req, Response res) throws IOException {
         String userName = req.params("userName");
         String userId = req.params("userId");
@@ -53,7 +65,30 @@ public class FileListResource {
                 accessToken = tokenFields[1];
             }
         }
-        return getFileList(userName, userId, accessToken, res);
+        boolean pretty = Boolean.parseBoolean(req.queryParams("pretty"));
+        String limit = req.queryParams("limit");
+        String cursor = req.queryParams("cursor");
+        if( cursor == null ) {
+            //since is the same thing: "everything after this point"
+            cursor = req.queryParams("since");
+        }
+        if( limit == null && cursor == null ) {
+            return getFileList(userName, userId, accessToken, pretty, res);
+        }
+        int pageSize = DEFAULT_PAGE_SIZE;
+        if( limit != null ) {
+            try {
+                pageSize = Integer.parseInt(limit);
+            } catch ( NumberFormatException e ) {
+                pageSize = -1;
+            }
+            if( pageSize <= 0 || pageSize > MAX_PAGE_SIZE ) {
+                res.status(BAD_REQUEST.getCode());
+                res.body("limit must be between 1 and " + MAX_PAGE_SIZE + ", was: " + limit);
+                return res.body();
+            }
+        }
+        return getFileListPage(userName, userId, accessToken, cursor, pageSize, pretty, res);
     }
 
     /**
@@ -69,24 +104,143 @@ public class FileListResource {
                                 String userId,
                                 String accessToken,
                                 Response res) throws IOException {
-        if( !FileService.tokenValidator.isValid(accessToken, userId) ) {
+        return getFileList(userName, userId, accessToken, false, res);
+    }
+
+    /**
+     * @param pretty indent the JSON, for people reading it. Compact otherwise.
+     */
+    public static String getFileList(String userName,
+                                String userId,
+                                String accessToken,
+                                boolean pretty,
+                                Response res) throws IOException {
+        if( !FileService.isAuthorized(accessToken, userId) ) {
             res.body(UNAUTHORIZED.toString());
             res.status(UNAUTHORIZED.getCode());
             return res.body();
         }
         res.status(OK.getCode());
-        Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        UserItemManager userItemManager = new UserItemManager( userName, userId );
-        List<UserItem> fileList;
+        List<ListedItem> fileList;
+        try {
+            fileList = fetchFileList(userName, userId);
+        } catch ( StorageException e ) {
+            log.error(Exceptions.asString(e));
+            res.status(e.getStatusCode());
+            res.body(Exceptions.asString(e));
+            return res.body();
+        }
+        try (JsonWriter writer = jsonWriter(res, pretty)) {
+            writeItems(writer, fileList);
+        }
+        //already written, and committed, so Spark has nothing left to do
+        return "";
+    }
+
+    /**
+     * Items in the order they were added or last changed, up to pageSize at a time, as
+     * {"items": [...], "cursor": "...", "hasMore": true|false, "reset": true|false}.
+     * The cursor is what to pass back for the next page, or, once hasMore is false,
+     * to get whatever changes after this. If the cursor we were given is no longer valid
+     * (e.g. we restarted), reset is true, and the items start from the beginning again.
+     * @param cursor the cursor from the previous page, or null to start from the beginning
+     */
+    public static String getFileListPage(String userName,
+                                         String userId,
+                                         String accessToken,
+                                         String cursor,
+                                         int pageSize,
+                                         boolean pretty,
+                                         Response res) throws IOException {
+        if( !FileService.isAuthorized(accessToken, userId) ) {
+            res.body(UNAUTHORIZED.toString());
+            res.status(UNAUTHORIZED.getCode());
+            return res.body();
+        }
+        ChangeIndex<ListedItem> index = FileService.fileListIndex.forUser(userId);
+        long afterSequence = 0;
+        if( cursor != null ) {
+            try {
+                afterSequence = FileListIndex.sequence(index, cursor);
+            } catch ( IllegalArgumentException e ) {
+                res.status(BAD_REQUEST.getCode());
+                res.body("Invalid cursor: " + cursor);
+                return res.body();
+            }
+        }
+        boolean reset = afterSequence < 0;
         try {
-            fileList = userItemManager.getItemList();
-        } catch ( AmazonClientException e ) {
+            if( index.needsSync(FileService.fileListIndex.getMaxAgeNanos()) ) {
+                long listedAt = System.nanoTime();
+                index.sync(fetchFileList(userName, userId), listedAt);
+            }
+        } catch ( StorageException e ) {
             log.error(Exceptions.asString(e));
-            res.status(INTERNAL_SERVER_ERROR.getCode());
+            res.status(e.getStatusCode());
             res.body(Exceptions.asString(e));
             return res.body();
         }
-        res.body( gson.toJson(fileList) );
-        return res.body();
+        ChangeIndex.Page<ListedItem> page = index.after(reset ? 0 : afterSequence, pageSize);
+        res.status(OK.getCode());
+        try (JsonWriter writer = jsonWriter(res, pretty)) {
+            writer.beginObject();
+            writer.name("items");
+            writeItems(writer, page.items);
+            writer.name("cursor").value(FileListIndex.cursor(index, page.lastSequence));
+            writer.name("hasMore").value(page.hasMore);
+            writer.name("reset").value(reset);
+            writer.endObject();
+        }
+        return "";
+    }
+
+    /**
+     * A writer straight onto the response stream, so big listings are never built up
+     * as one string. Closing it flushes and commits the response.
+     */
+    private static JsonWriter jsonWriter( Response res, boolean pretty ) throws IOException {
+        res.raw().setContentType("application/json; charset=utf-8");
+        RequestTiming.writeHeader(res.raw());
+        JsonWriter writer = new JsonWriter( new BufferedWriter(
+                new OutputStreamWriter(res.raw().getOutputStream(), StandardCharsets.UTF_8), Streams.CHUNK_SIZE) );
+        if( pretty ) {
+            writer.setIndent("  ");
+        }
+        return writer;
+    }
+
+    private static void writeItems( JsonWriter writer, List<ListedItem> items ) throws IOException {
+        long start = System.nanoTime();
+        writer.beginArray();
+        for( ListedItem item : items ) {
+            GSON.toJson(item.listing, item.listing.getClass(), writer);
+        }
+        writer.endArray();
+        //this includes writing to the client, once the buffer fills
+        FileService.metrics.record("serialize.fileList", RequestTiming.Phase.SERIALIZE, System.nanoTime() - start);
+    }
+
+    static List<ListedItem> fetchFileList( String userName, String userId ) throws IOException {
+        List<ListedItem> fileList = FileService.fileListCache.get(userId);
+        if( fileList == null ) {
+            long generation = FileService.fileListCache.generation(userId);
+            fileList = Collections.unmodifiableList( FileService.itemStore.list( userName, userId ) );
+            FileService.fileListCache.put( userId, fileList, generation );
+        }
+        return fileList;
+    }
+
+    /**
+     * How the change index tells items apart, across listings.
+     */
+    public static String itemName( ListedItem item ) {
+        return item.name != null ? item.name : itemFingerprint(item);
+    }
+
+    /**
+     * How the change index notices an item has changed: anything that would change what we return.
+     */
+    public static String itemFingerprint( ListedItem item ) {
+        return GSON.toJson(item.listing);
     }
 }
@@ -17,21 +17,41 @@
  */
 package com.shareplaylearn.resources;
 
-import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.shareplaylearn.UserItemManager;
+import com.shareplaylearn.cache.ItemKey;
 import com.shareplaylearn.exceptions.Exceptions;
-import com.shareplaylearn.exceptions.UnsupportedEncodingException;
 import com.shareplaylearn.FileService;
+import com.shareplaylearn.http.AsyncBody;
+import com.shareplaylearn.http.ByteRange;
+import com.shareplaylearn.http.RequestConditions;
+import com.shareplaylearn.http.Validator;
+import com.shareplaylearn.io.Streams;
+import com.shareplaylearn.metrics.RequestTiming;
 import com.shareplaylearn.models.ItemSchema;
+import com.shareplaylearn.storage.ItemStat;
+import com.shareplaylearn.storage.StorageException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import spark.Request;
 import spark.Response;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import static org.eclipse.jetty.http.HttpStatus.Code.*;
 
@@ -42,6 +62,9 @@ import static org.eclipse.jetty.http.HttpStatus.Code.*;
 public class FileResource {
 
     public static Logger log = LoggerFactory.getLogger(FileResource.class);
+    public static final String CONTENT_TYPE = "application/octect-stream";
+    public static final String BASE64_CONTENT_TYPE = "text/plain; charset=US-ASCII";
+    private static final String ORIGINAL = ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE.toString();
 
     public static String getFile(Request req, Response res ) {
         String userName = req.params("userName");
@@ -60,10 +83,11 @@ public class FileResource {
                 accessToken = tokenFields[1];
             }
         }
+        RequestConditions conditions = RequestConditions.fromRequest(req);
 
         try {
             return getFile(userName, userId, accessToken, fileType, presentationType,
-                    filename, encoding, res);
+                    filename, encoding, conditions, FileService.execution.asyncWrites ? req.raw() : null, res);
         } catch (IOException e) {
             log.error(Exceptions.asString(e));
             res.status(INTERNAL_SERVER_ERROR.getCode());
@@ -78,13 +102,52 @@ public class FileResource {
                            String fileType, String presentationTypeArg,
                            String filename, String encoding,
                            Response res ) throws IOException {
+        return getFile(userName, userId, accessToken, fileType, presentationTypeArg,
+                filename, encoding, RequestConditions.NONE, res);
+    }
+
+    /**
+     * @param conditions the conditional and range headers of the request. Ranges are only
+     *                   honored for unencoded (identity) downloads.
+     */
+    public static String getFile( String userName, String userId, String accessToken,
+                           String fileType, String presentationTypeArg,
+                           String filename, String encoding,
+                           RequestConditions conditions,
+                           Response res ) throws IOException {
+        return getFile(userName, userId, accessToken, fileType, presentationTypeArg,
+                filename, encoding, conditions, null, res);
+    }
 
-        if( !FileService.tokenValidator.isValid(accessToken, userId) ) {
+    /**
+     * @param asyncRequest if not null, unencoded downloads are written with non-blocking I/O (see AsyncBody),
+     *                     started on this request, after this returns.
+     */
+    public static String getFile( String userName, String userId, String accessToken,
+                           String fileType, String presentationTypeArg,
+                           String filename, String encoding,
+                           RequestConditions conditions,
+                           HttpServletRequest asyncRequest,
+                           Response res ) throws IOException {
+
+        if( !FileService.isAuthorized(accessToken, userId) ) {
             res.status(UNAUTHORIZED.getCode());
             res.body(UNAUTHORIZED.toString());
             return res.body();
         }
-        UserItemManager userItemManager = new UserItemManager( userName, userId );
+        return serveFile(userName, userId, fileType, presentationTypeArg, filename, encoding, conditions,
+                asyncRequest, res);
+    }
+
+    /**
+     * What getFile() does once the request is authorized.
+     */
+    private static String serveFile( String userName, String userId,
+                                     String fileType, String presentationTypeArg,
+                                     String filename, String encoding,
+                                     RequestConditions conditions,
+                                     HttpServletRequest asyncRequest,
+                                     Response res ) throws IOException {
         ItemSchema.PresentationType presentationType;
         try {
             presentationType = ItemSchema.PresentationType.fromString(presentationTypeArg);
@@ -94,37 +157,384 @@ public class FileResource {
             log.info( Exceptions.asString(e) );
             return res.body();
         }
+        if( encoding != null && !encoding.equals(UserItemManager.AvailableEncodings.IDENTITY) &&
+                !encoding.equals(UserItemManager.AvailableEncodings.BASE64) ) {
+            res.status(BAD_REQUEST.getCode());
+            res.body("Unsupported encoding: " + encoding);
+            return res.body();
+        }
+        ItemKey key = new ItemKey( userId, fileType, presentationType.toString(), filename );
+        String cacheControl = FileService.cacheControlPolicy.forPresentationType(presentationType.toString());
+        if( !ORIGINAL.equals(key.presentationType) && !awaitDerivation(userId, filename) ) {
+            //the original will do until it's derived; it's revalidated like one, so it's replaced once it is
+            log.debug("Serving the original of " + key + ", still deriving it");
+            key = new ItemKey( userId, fileType, ORIGINAL, filename );
+            cacheControl = FileService.cacheControlPolicy.forPresentationType(ORIGINAL);
+        }
+        //we encode base64 ourselves, from the same bytes as the plain download
+        boolean base64 = encoding != null && encoding.equals(UserItemManager.AvailableEncodings.BASE64);
+        //answer conditional GETs for things we've already served without touching storage
+        Validator known = representation(FileService.itemValidators.get(key), base64);
+        if( conditions.notModified(known) ) {
+            log.debug("Not modified: " + key);
+            return notModified(known, cacheControl, res);
+        }
+        //base64 is for clients that can't handle the bytes themselves, so it's always served here
+        boolean redirectable = !base64;
         try {
-            byte[] bytes = userItemManager.getItem( fileType, presentationType,
-                    filename, encoding );
+            if( redirectable && FileService.downloadRedirects.redirects(key.presentationType) &&
+                    redirect(userName, key, res) ) {
+                return res.body();
+            }
+            //stores that know an item's size can serve it (or a range of it) without us reading it in,
+            //and their digest and stored time are its validators, however it's served
+            ItemStat stat = FileService.itemStore.stat( userName, key );
+            Validator stored = null;
+            if( stat != null ) {
+                stored = representation(Validator.forDigest(stat.digest, stat.lastModified), base64);
+                if( conditions.notModified(stored) ) {
+                    return notModified(stored, cacheControl, res);
+                }
+            }
+            if( stat != null ) {
+                if( redirectable && FileService.downloadRedirects.redirects(stat.size) &&
+                        redirect(userName, key, res) ) {
+                    return res.body();
+                }
+                boolean large = FileService.admission.isLarge(stat.size);
+                if( large && !FileService.admission.enterLargeLane() ) {
+                    return FileService.admission.rejectLarge(res);
+                }
+                try {
+                    res.status(OK.getCode());
+                    setValidatorHeaders(stored, cacheControl, res);
+                    if( base64 ) {
+                        //encoded as it's read, so it's never all in memory either
+                        writeBase64(FileService.itemStore.open(userName, key), stat.size, res);
+                    } else {
+                        writeBytes(new StoreSource(userName, key, stat.size), conditions.effectiveRange(stored),
+                                asyncRequest, res);
+                    }
+                } finally {
+                    if( large ) {
+                        leaveLargeLane(asyncRequest);
+                    }
+                }
+                return res.body();
+            }
+            byte[] bytes = fetchItem( userName, key );
             res.status(OK.getCode());
-            if( encoding != null && encoding.equals(UserItemManager.AvailableEncodings.BASE64) ) {
-                log.debug("Writing " + filename + " to requester with encoding: " + encoding);
-                res.body( new String(bytes, StandardCharsets.UTF_8) );
-            } else {
-                log.debug("Writing " + filename + " to requester with encoding: " + encoding);
-                res.raw().setContentType("application/octect-stream");
-                res.raw().setContentLength(bytes.length);
-                res.raw().getOutputStream().write(bytes);
+            log.debug("Writing " + filename + " to requester with encoding: " + encoding);
+            Validator validator = representation(FileService.itemValidators.get(key, bytes), base64);
+            if( conditions.notModified(validator) ) {
+                return notModified(validator, cacheControl, res);
+            }
+            boolean large = FileService.admission.isLarge(bytes.length);
+            if( large && !FileService.admission.enterLargeLane() ) {
+                return FileService.admission.rejectLarge(res);
+            }
+            try {
+                setValidatorHeaders(validator, cacheControl, res);
+                if( base64 ) {
+                    writeBase64(new ByteArrayInputStream(bytes), bytes.length, res);
+                } else {
+                    writeBytes(new ArraySource(bytes), conditions.effectiveRange(validator), asyncRequest, res);
+                }
+            } finally {
+                if( large ) {
+                    leaveLargeLane(asyncRequest);
+                }
             }
             return res.body();
-        } catch (UnsupportedEncodingException e) {
-            res.status(BAD_REQUEST.getCode());
-            res.body("Unsupported encoding: " + encoding);
-            log.info( Exceptions.asString(e) );
+        } catch( StorageException e ) {
+            //not found, forbidden, etc.
+            log.info( e.getStatusCode() + ": " + e.getMessage() );
+            res.body( e.getMessage() );
+            res.status( e.getStatusCode() );
             return res.body();
-        } catch(AmazonS3Exception e) {
+        }
+    }
 
-            //this exception is what we get back for not found, forbidden, etc.
-            log.info( e.getMessage() );
-            log.info( e.getErrorMessage() );
-            Map<String,String> additionalDetails = e.getAdditionalDetails();
-            log.info( Arrays.toString(additionalDetails.values().toArray()));
-            log.info( e.getStatusCode() + "" );
+    /**
+     * Gives back a large download's place in the lane once it's written, which for an async write is after
+     * the request thread has handed back.
+     */
+    private static void leaveLargeLane( HttpServletRequest asyncRequest ) {
+        if( asyncRequest == null ||
+                !AsyncBody.whenWritten(asyncRequest, FileService.admission::leaveLargeLane) ) {
+            FileService.admission.leaveLargeLane();
+        }
+    }
 
-            res.body( e.getErrorMessage() );
-            res.status( e.getStatusCode() );
-            return res.body();
+    /**
+     * Sends the client to the store's signed URL for the item, rather than the bytes.
+     * @return false if the store can't make one, and the bytes should be served after all
+     */
+    private static boolean redirect( String userName, ItemKey key, Response res ) throws IOException {
+        String url = FileService.downloadRedirects.url(FileService.itemStore, userName, key);
+        if( url == null ) {
+            return false;
+        }
+        res.status(FOUND.getCode());
+        res.header("Location", url);
+        //the URL expires, so neither it, nor this, should be kept
+        res.header("Cache-Control", "private, no-store");
+        FileService.metrics.counter("downloads.redirected").increment();
+        res.body("");
+        return true;
+    }
+
+    /**
+     * @return false if the item's presentations are still being derived, after waiting a little for them
+     */
+    private static boolean awaitDerivation( String userId, String filename ) {
+        if( !FileService.derivations.isPending(userId, filename) ) {
+            return true;
+        }
+        try {
+            return FileService.derivations.await( userId, filename,
+                    FileService.derivationWaitMillis, TimeUnit.MILLISECONDS );
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static Validator representation( Validator validator, boolean base64 ) {
+        return validator != null && base64 ? validator.forRepresentation("base64") : validator;
+    }
+
+    private static void setValidatorHeaders( Validator validator, String cacheControl, Response res ) {
+        res.raw().setHeader("ETag", validator.etag);
+        if( validator.hasLastModified() ) {
+            res.raw().setDateHeader("Last-Modified", validator.lastModified);
+        }
+        res.raw().setHeader("Cache-Control", cacheControl);
+    }
+
+    private static String notModified( Validator validator, String cacheControl, Response res ) {
+        res.status(NOT_MODIFIED.getCode());
+        setValidatorHeaders(validator, cacheControl, res);
+        res.body("");
+        return res.body();
+    }
+
+    /**
+     * Items are served from FileService.itemCache when they're there, and only go to storage on a miss.
+     * Requests that miss on the same item at once share one fetch (and its outcome), each waiting up to
+     * FileService.itemFetchWaitMillis for it.
+     */
+    static byte[] fetchItem( String userName, ItemKey key ) throws IOException {
+        byte[] bytes = FileService.itemCache.get(key);
+        if( bytes != null ) {
+            return bytes;
+        }
+        long generation = FileService.itemCache.generation(key.userId);
+        try {
+            //a fetch started before an invalidation may have the old bytes, so only share fetches
+            //started since the last one
+            return FileService.itemFetches.get( Arrays.asList(generation, key), () -> {
+                byte[] fetched = FileService.itemStore.get( userName, key );
+                FileService.itemCache.put(key, fetched, generation);
+                return fetched;
+            }, FileService.itemFetchWaitMillis, TimeUnit.MILLISECONDS );
+        } catch ( TimeoutException e ) {
+            throw new StorageException( SERVICE_UNAVAILABLE.getCode(), "Timed out waiting for " + key + " from storage", e );
+        } catch ( IOException | RuntimeException e ) {
+            throw e;
+        } catch ( Exception e ) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Where the bytes of a download come from.
+     */
+    private interface ByteSource {
+        long length();
+
+        void write( long position, long count, OutputStream out ) throws IOException;
+
+        InputStream open( long position, long count ) throws IOException;
+    }
+
+    private static final class ArraySource implements ByteSource {
+        private final byte[] bytes;
+
+        ArraySource( byte[] bytes ) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public long length() {
+            return bytes.length;
+        }
+
+        @Override
+        public void write( long position, long count, OutputStream out ) throws IOException {
+            Streams.copy(open(position, count), out, count);
+        }
+
+        @Override
+        public InputStream open( long position, long count ) {
+            return new ByteArrayInputStream(bytes, (int) position, (int) count);
+        }
+    }
+
+    /**
+     * Straight from the store to the response, without holding the item in memory.
+     */
+    private static final class StoreSource implements ByteSource {
+        private final String userName;
+        private final ItemKey key;
+        private final long length;
+
+        StoreSource( String userName, ItemKey key, long length ) {
+            this.userName = userName;
+            this.key = key;
+            this.length = length;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public void write( long position, long count, OutputStream out ) throws IOException {
+            FileService.itemStore.transferTo( userName, key, position, count, Channels.newChannel(out) );
+        }
+
+        @Override
+        public InputStream open( long position, long count ) throws IOException {
+            InputStream in = FileService.itemStore.open( userName, key );
+            try {
+                IOUtils.skipFully(in, position);
+            } catch ( IOException e ) {
+                in.close();
+                throw e;
+            }
+            return new BoundedInputStream(in, count);
         }
     }
+
+    /**
+     * count bytes of a source, from position.
+     */
+    private static final class BodyPart {
+        final ByteSource source;
+        final long position;
+        final long count;
+
+        BodyPart( ByteSource source, long position, long count ) {
+            this.source = source;
+            this.position = position;
+            this.count = count;
+        }
+
+        BodyPart( byte[] bytes ) {
+            this( new ArraySource(bytes), 0, bytes.length );
+        }
+    }
+
+    /**
+     * Base64 encodes the size bytes of the item in as they're read from it and written out, a chunk at a time,
+     * so neither the item nor its encoded copy is ever all in memory. Ranges aren't supported here.
+     */
+    private static void writeBase64( InputStream in, long size, Response res ) throws IOException {
+        HttpServletResponse raw = res.raw();
+        raw.setContentType(BASE64_CONTENT_TYPE);
+        long length = 4 * ((size + 2) / 3);
+        raw.setContentLengthLong(length);
+        countDownload(length);
+        RequestTiming.writeHeader(raw);
+        //closing the encoder writes out the padding, and closes (and so commits) the response
+        try (InputStream item = in; OutputStream encoder = Base64.getEncoder().wrap(raw.getOutputStream())) {
+            Streams.copy(item, encoder, size);
+        }
+    }
+
+    /**
+     * Writes the file (or the requested ranges of it) to the raw output stream in
+     * bounded chunks, and flushes, so the response is committed before we hand back to Spark.
+     * @param range the Range header, if it applies (see RequestConditions.effectiveRange())
+     * @param asyncRequest if not null, the body is written by an AsyncBody instead, once we've handed back
+     */
+    private static void writeBytes( ByteSource source, String range, HttpServletRequest asyncRequest,
+                                    Response res ) throws IOException {
+        HttpServletResponse raw = res.raw();
+        raw.setHeader("Accept-Ranges", "bytes");
+        long length = source.length();
+        List<ByteRange> ranges = ByteRange.parse(range, length);
+
+        if( ranges != null && ranges.isEmpty() ) {
+            res.status(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            raw.setHeader("Content-Range", ByteRange.unsatisfiedContentRange(length));
+            res.body("Requested range not satisfiable: " + range);
+            return;
+        }
+
+        List<BodyPart> body = new ArrayList<>();
+        if( ranges == null ) {
+            raw.setContentType(CONTENT_TYPE);
+            raw.setContentLengthLong(length);
+            body.add(new BodyPart(source, 0, length));
+        } else if( ranges.size() == 1 ) {
+            ByteRange byteRange = ranges.get(0);
+            res.status(PARTIAL_CONTENT.getCode());
+            raw.setContentType(CONTENT_TYPE);
+            raw.setHeader("Content-Range", byteRange.contentRange(length));
+            raw.setContentLengthLong(byteRange.length());
+            body.add(new BodyPart(source, byteRange.start, byteRange.length()));
+        } else {
+            String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong());
+            List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+            long contentLength = 0;
+            for( ByteRange byteRange : ranges ) {
+                byte[] partHeader = ("\r\n--" + boundary + "\r\n" +
+                        "Content-Type: " + CONTENT_TYPE + "\r\n" +
+                        "Content-Range: " + byteRange.contentRange(length) + "\r\n\r\n")
+                        .getBytes(StandardCharsets.US_ASCII);
+                partHeaders.add(partHeader);
+                contentLength += partHeader.length + byteRange.length();
+            }
+            byte[] closingBoundary = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+            contentLength += closingBoundary.length;
+
+            res.status(PARTIAL_CONTENT.getCode());
+            raw.setContentType("multipart/byteranges; boundary=" + boundary);
+            raw.setContentLengthLong(contentLength);
+            for( int i = 0; i < ranges.size(); ++i ) {
+                ByteRange byteRange = ranges.get(i);
+                body.add(new BodyPart(partHeaders.get(i)));
+                body.add(new BodyPart(source, byteRange.start, byteRange.length()));
+            }
+            body.add(new BodyPart(closingBoundary));
+        }
+
+        long bodyLength = 0;
+        for( BodyPart part : body ) {
+            bodyLength += part.count;
+        }
+        countDownload(bodyLength);
+        RequestTiming.writeHeader(raw);
+        if( asyncRequest != null ) {
+            List<AsyncBody.Segment> segments = new ArrayList<>(body.size());
+            for( BodyPart part : body ) {
+                segments.add( () -> part.source.open(part.position, part.count) );
+            }
+            AsyncBody.write(asyncRequest, raw, segments, FileService.asyncReadExecutor);
+            return;
+        }
+        OutputStream out = raw.getOutputStream();
+        for( BodyPart part : body ) {
+            part.source.write(part.position, part.count, out);
+        }
+        out.flush();
+    }
+
+    private static void countDownload( long bytes ) {
+        FileService.metrics.counter("downloads.items").increment();
+        FileService.metrics.counter("downloads.bytes").add(bytes);
+    }
 }
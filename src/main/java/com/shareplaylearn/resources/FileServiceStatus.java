@@ -17,8 +17,87 @@
  */
 package com.shareplaylearn.resources;
 
+import com.google.gson.Gson;
+import com.shareplaylearn.FileService;
+import com.shareplaylearn.metrics.Metrics;
+import spark.Request;
+import spark.Response;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.eclipse.jetty.http.HttpStatus.Code.OK;
+
 /**
  * Created by stu on 5/30/16.
  */
 public class FileServiceStatus {
+
+    public static final String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    private static final Gson GSON = new Gson();
+
+    public static String getCacheStatus(Request req, Response res) {
+        res.status(OK.getCode());
+        res.type("application/json");
+        res.body( GSON.toJson(cacheStats()) );
+        return res.body();
+    }
+
+    /**
+     * Request latencies and counts, storage and token validation timings, the cache stats, how the
+     * derivation of presentations is keeping up, and how many requests admission control turned away,
+     * as JSON, or, with format=prometheus, in the Prometheus text format (those stats as gauges).
+     */
+    public static String getMetrics(Request req, Response res) throws IOException {
+        res.status(OK.getCode());
+        if( "prometheus".equals(req.queryParams("format")) ) {
+            StringWriter out = new StringWriter();
+            FileService.metrics.writePrometheus(out);
+            for( Map.Entry<String,Map<String,Long>> group : cacheStats().entrySet() ) {
+                for( Map.Entry<String,Long> stat : group.getValue().entrySet() ) {
+                    Metrics.writePrometheus(out, "cache." + group.getKey() + "." + stat.getKey(), "gauge",
+                            stat.getValue());
+                }
+            }
+            for( Map.Entry<String,Long> stat : FileService.derivations.stats().entrySet() ) {
+                Metrics.writePrometheus(out, "derivations." + stat.getKey(), "gauge", stat.getValue());
+            }
+            for( Map.Entry<String,Long> stat : FileService.admission.stats().entrySet() ) {
+                Metrics.writePrometheus(out, "admission." + stat.getKey(), "gauge", stat.getValue());
+            }
+            res.type(PROMETHEUS_CONTENT_TYPE);
+            res.body(out.toString());
+            return res.body();
+        }
+        Map<String,Object> metrics = new LinkedHashMap<>(FileService.metrics.snapshot());
+        metrics.put("caches", cacheStats());
+        metrics.put("derivations", FileService.derivations.stats());
+        metrics.put("admission", FileService.admission.stats());
+        res.type("application/json");
+        res.body( GSON.toJson(metrics) );
+        return res.body();
+    }
+
+    private static Map<String,Map<String,Long>> cacheStats() {
+        Map<String,Map<String,Long>> stats = new LinkedHashMap<>();
+        stats.put("items", FileService.itemCache.stats());
+        stats.put("fileLists", FileService.fileListCache.stats());
+        stats.put("itemFetches", fetchStats());
+        stats.put("contents", FileService.contentIndex.stats());
+        stats.put("usage", FileService.usage.stats());
+        if( FileService.accessValidator != null ) {
+            stats.put("tokens", FileService.accessValidator.stats());
+        }
+        return stats;
+    }
+
+    private static Map<String,Long> fetchStats() {
+        Map<String,Long> stats = new LinkedHashMap<>();
+        stats.put("inFlight", (long) FileService.itemFetches.inFlight());
+        stats.put("fetches", FileService.itemFetches.loads());
+        stats.put("shared", FileService.itemFetches.coalesced());
+        return stats;
+    }
 }
@@ -0,0 +1,351 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3ClientBuilder;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListObjectsV2Request;
+import com.amazonaws.services.s3.model.ListObjectsV2Result;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.shareplaylearn.cache.ItemKey;
+import com.shareplaylearn.exceptions.QuotaExceededException;
+import com.shareplaylearn.io.Streams;
+import com.shareplaylearn.models.ItemSchema;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import static org.eclipse.jetty.http.HttpStatus.Code.BAD_REQUEST;
+import static org.eclipse.jetty.http.HttpStatus.Code.NOT_FOUND;
+
+/**
+ * Items kept directly in an S3 (or S3 compatible) bucket, as items/(userId)/(presentationType)/(filename),
+ * URL encoded, rather than through UserItemManager. Items at least as big as the uploader's threshold go up
+ * as multipart uploads, streamed a few parts at a time (see MultipartUploader), so they never have to fit
+ * on the heap. Reads are ranged GETs, and downloads can skip us altogether, through presigned URLs
+ * (see DownloadRedirects). Like LocalItemStore, file types go by extension, and derived
+ * presentations come from FileService.derivations.
+ */
+public class BucketItemStore implements ItemStore {
+
+    private static final String ORIGINAL = ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE.toString();
+    //S3's limit on one object
+    private static final long MAX_OBJECT_SIZE = 5L * 1024 * 1024 * 1024 * 1024;
+
+    private final AmazonS3 s3;
+    private final String bucket;
+    private final MultipartUploader uploader;
+    private final MultipartTarget target = new BucketTarget();
+
+    public BucketItemStore( AmazonS3 s3, String bucket, MultipartUploader uploader ) {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.uploader = uploader;
+    }
+
+    /**
+     * A client with the default AWS credentials (environment, system properties, profile...).
+     * @param endpoint an S3 compatible endpoint (e.g. http://localhost:9000), or null for AWS's own, in the region
+     * @param pathStyle whether the bucket goes in the path rather than the host name, as most S3 compatible stores want
+     */
+    public static AmazonS3 client( String endpoint, String region, boolean pathStyle ) {
+        AmazonS3ClientBuilder builder = AmazonS3ClientBuilder.standard().withPathStyleAccessEnabled(pathStyle);
+        if( endpoint != null ) {
+            builder.withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region));
+        } else {
+            builder.withRegion(region);
+        }
+        return builder.build();
+    }
+
+    @Override
+    public void put( String userName, String userId, String filename, byte[] bytes ) throws IOException {
+        uploader.upload(target, key(userId, ORIGINAL, filename), bytes);
+    }
+
+    @Override
+    public void put( String userName, String userId, String filename, InputStream content, long size )
+            throws IOException, QuotaExceededException {
+        if( size < 0 ) {
+            ItemStore.super.put(userName, userId, filename, content, size);
+            return;
+        }
+        uploader.upload(target, key(userId, ORIGINAL, filename), content, size);
+    }
+
+    @Override
+    public long maxItemSize() {
+        return MAX_OBJECT_SIZE;
+    }
+
+    @Override
+    public boolean derivesPresentations() {
+        return false;
+    }
+
+    @Override
+    public String fileType( String filename ) {
+        return LocalItemStore.fileTypeOf(filename);
+    }
+
+    @Override
+    public boolean putPresentation( String userName, ItemKey key, byte[] bytes ) throws IOException {
+        if( ORIGINAL.equals(key.presentationType) ) {
+            throw new IllegalArgumentException("Originals are put(), not derived: " + key);
+        }
+        uploader.upload(target, key(key.userId, key.presentationType, key.filename), bytes);
+        return true;
+    }
+
+    @Override
+    public byte[] get( String userName, ItemKey key ) throws IOException {
+        try (S3Object object = s3.getObject(bucket, existing(key))) {
+            return Streams.readFully(object.getObjectContent(), object.getObjectMetadata().getContentLength());
+        } catch ( AmazonClientException e ) {
+            throw translate(key, e);
+        }
+    }
+
+    @Override
+    public InputStream open( String userName, ItemKey key ) throws IOException {
+        try {
+            return s3.getObject(bucket, existing(key)).getObjectContent();
+        } catch ( AmazonClientException e ) {
+            throw translate(key, e);
+        }
+    }
+
+    /**
+     * From a HEAD of the item. The digest is its S3 ETag: the MD5 of the content, or of its parts'.
+     */
+    @Override
+    public ItemStat stat( String userName, ItemKey key ) throws IOException {
+        try {
+            ObjectMetadata metadata = s3.getObjectMetadata(bucket, existing(key));
+            return new ItemStat(metadata.getContentLength(), metadata.getLastModified().getTime(),
+                    metadata.getETag());
+        } catch ( AmazonClientException e ) {
+            throw translate(key, e);
+        }
+    }
+
+    /**
+     * A presigned GET of the item, signed locally with our credentials: this doesn't go to the bucket, or
+     * check that the item is there.
+     */
+    @Override
+    public String presign( String userName, ItemKey key, long expiresAtMillis ) throws IOException {
+        try {
+            return s3.generatePresignedUrl(bucket, existing(key), new Date(expiresAtMillis)).toString();
+        } catch ( AmazonClientException e ) {
+            throw translate(key, e);
+        }
+    }
+
+    /**
+     * Copies a ranged GET of the item to the target.
+     */
+    @Override
+    public void transferTo( String userName, ItemKey key, long position, long count, WritableByteChannel target )
+            throws IOException {
+        if( position < 0 || count < 0 ) {
+            throw new IOException("Range " + position + "+" + count + " is outside " + key);
+        }
+        if( count == 0 ) {
+            return;
+        }
+        GetObjectRequest request = new GetObjectRequest(bucket, existing(key)).withRange(position, position + count - 1);
+        try (S3Object object = s3.getObject(request)) {
+            Streams.copy(object.getObjectContent(), Channels.newOutputStream(target), count);
+        } catch ( AmazonClientException e ) {
+            throw translate(key, e);
+        }
+    }
+
+    @Override
+    public List<ListedItem> list( String userName, String userId ) throws IOException {
+        String prefix = prefix(userId, ORIGINAL);
+        List<ListedItem> listed = new ArrayList<>();
+        ListObjectsV2Request request = new ListObjectsV2Request().withBucketName(bucket).withPrefix(prefix);
+        try {
+            ListObjectsV2Result page;
+            do {
+                page = s3.listObjectsV2(request);
+                for( S3ObjectSummary object : page.getObjectSummaries() ) {
+                    listed.add(listed(decode(object.getKey().substring(prefix.length())), object.getSize(),
+                            object.getLastModified().getTime()));
+                }
+                request.setContinuationToken(page.getNextContinuationToken());
+            } while( page.isTruncated() );
+        } catch ( AmazonClientException e ) {
+            throw S3ItemStore.translate(e);
+        }
+        return listed;
+    }
+
+    /**
+     * From a HEAD of the original.
+     */
+    @Override
+    public ListedItem describe( String userName, String userId, String filename ) throws IOException {
+        try {
+            ObjectMetadata metadata = s3.getObjectMetadata(bucket, key(userId, ORIGINAL, filename));
+            return listed(filename, metadata.getContentLength(), metadata.getLastModified().getTime());
+        } catch ( AmazonClientException e ) {
+            StorageException translated = S3ItemStore.translate(e);
+            if( translated.getStatusCode() == NOT_FOUND.getCode() ) {
+                return null;
+            }
+            throw translated;
+        }
+    }
+
+    private static ListedItem listed( String name, long size, long lastModified ) {
+        String type = LocalItemStore.fileTypeOf(name);
+        return new ListedItem(name, type, size, new LocalItemStore.Listing(name, type, size, lastModified));
+    }
+
+    /**
+     * Sends uploads to the bucket, with failures as IOExceptions, so the uploader retries them.
+     */
+    private class BucketTarget implements MultipartTarget {
+
+        @Override
+        public void put( String key, byte[] bytes, int offset, int length ) throws IOException {
+            ObjectMetadata metadata = new ObjectMetadata();
+            metadata.setContentLength(length);
+            try {
+                s3.putObject(bucket, key, new ByteArrayInputStream(bytes, offset, length), metadata);
+            } catch ( AmazonClientException e ) {
+                throw S3ItemStore.translate(e);
+            }
+        }
+
+        @Override
+        public String initiate( String key ) throws IOException {
+            try {
+                return s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+            } catch ( AmazonClientException e ) {
+                throw S3ItemStore.translate(e);
+            }
+        }
+
+        @Override
+        public String uploadPart( String key, String uploadId, int partNumber, byte[] bytes, int offset, int length )
+                throws IOException {
+            UploadPartRequest request = new UploadPartRequest().withBucketName(bucket).withKey(key)
+                    .withUploadId(uploadId).withPartNumber(partNumber)
+                    .withInputStream(new ByteArrayInputStream(bytes, offset, length)).withPartSize(length);
+            try {
+                return s3.uploadPart(request).getPartETag().getETag();
+            } catch ( AmazonClientException e ) {
+                throw S3ItemStore.translate(e);
+            }
+        }
+
+        @Override
+        public void complete( String key, String uploadId, List<String> partTags ) throws IOException {
+            List<PartETag> parts = new ArrayList<>(partTags.size());
+            for( int part = 0; part < partTags.size(); ++part ) {
+                parts.add(new PartETag(part + 1, partTags.get(part)));
+            }
+            try {
+                s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, parts));
+            } catch ( AmazonClientException e ) {
+                throw S3ItemStore.translate(e);
+            }
+        }
+
+        @Override
+        public void abort( String key, String uploadId ) throws IOException {
+            try {
+                s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+            } catch ( AmazonClientException e ) {
+                throw S3ItemStore.translate(e);
+            }
+        }
+    }
+
+    /**
+     * The key of an item, if it's stored under the file type it was asked for.
+     */
+    private String existing( ItemKey key ) throws StorageException {
+        if( !LocalItemStore.fileTypeOf(key.filename).equals(key.fileType) ) {
+            throw notFound(key);
+        }
+        return key(key.userId, key.presentationType, key.filename);
+    }
+
+    private static String key( String userId, String presentationType, String filename ) throws StorageException {
+        if( filename == null || filename.isEmpty() ) {
+            throw new StorageException(BAD_REQUEST.getCode(), "Invalid filename: " + filename);
+        }
+        if( presentationType == null || presentationType.isEmpty() ) {
+            throw new StorageException(BAD_REQUEST.getCode(), "Invalid presentation type: " + presentationType);
+        }
+        return prefix(userId, presentationType) + encode(filename);
+    }
+
+    private static String prefix( String userId, String presentationType ) {
+        return "items/" + encode(userId) + "/" + encode(presentationType) + "/";
+    }
+
+    private static StorageException translate( ItemKey key, AmazonClientException e ) {
+        StorageException translated = S3ItemStore.translate(e);
+        return translated.getStatusCode() == NOT_FOUND.getCode() ? notFound(key) : translated;
+    }
+
+    private static StorageException notFound( ItemKey key ) {
+        return new StorageException(NOT_FOUND.getCode(), "No such item: " + key.filename);
+    }
+
+    private static String encode( String segment ) {
+        try {
+            return URLEncoder.encode(segment, "UTF-8");
+        } catch ( UnsupportedEncodingException e ) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode( String segment ) {
+        try {
+            return URLDecoder.decode(segment, "UTF-8");
+        } catch ( UnsupportedEncodingException e ) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What content (by SHA-256) each user's items hold, for stores that keep every item's content
+ * separately (see S3ItemStore), so an upload of exactly what's already stored under that name can skip
+ * the write. Stores that keep each content once (see LocalItemStore) don't need it.
+ * Bounded, least recently used items are forgotten first; a forgotten item just means its next
+ * upload is written again.
+ */
+public class ContentIndex {
+
+    private final LinkedHashMap<String,String> digests;
+    private final LongAdder skippedUploads = new LongAdder();
+    private final LongAdder skippedBytes = new LongAdder();
+
+    public ContentIndex( final int maxItems ) {
+        this.digests = new LinkedHashMap<String,String>(Math.min(maxItems, 1024) + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String,String> eldest ) {
+                return size() > maxItems;
+            }
+        };
+    }
+
+    /**
+     * @return true if the item is known to hold exactly this content already. Counted as a skipped upload.
+     */
+    public synchronized boolean holds( String userId, String filename, String digest, long size ) {
+        if( digest.equals(digests.get(key(userId, filename))) ) {
+            skippedUploads.increment();
+            skippedBytes.add(size);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records that the item now holds this content (it's been stored).
+     */
+    public synchronized void stored( String userId, String filename, String digest ) {
+        digests.put(key(userId, filename), digest);
+    }
+
+    /**
+     * Forgets what the item holds, e.g. because it may have changed without us seeing it.
+     */
+    public synchronized void forget( String userId, String filename ) {
+        digests.remove(key(userId, filename));
+    }
+
+    public Map<String,Long> stats() {
+        Map<String,Long> stats = new LinkedHashMap<>();
+        stats.put("skippedUploads", skippedUploads.sum());
+        stats.put("skippedBytes", skippedBytes.sum());
+        synchronized (this) {
+            stats.put("items", (long) digests.size());
+        }
+        return stats;
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException("SHA-256 is required by every JVM", e);
+        }
+    }
+
+    public static String hex( byte[] digest ) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for( byte b : digest ) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static String key( String userId, String filename ) {
+        return userId + "/" + filename;
+    }
+}
@@ -0,0 +1,34 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+/**
+ * What a store can tell us about an item without reading it.
+ */
+public class ItemStat {
+    public final long size;
+    public final long lastModified;
+    //of the content, in hex, as the store records it (so it's what downloads use as their ETag)
+    public final String digest;
+
+    public ItemStat( long size, long lastModified, String digest ) {
+        this.size = size;
+        this.lastModified = lastModified;
+        this.digest = digest;
+    }
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import com.shareplaylearn.cache.ItemKey;
+import com.shareplaylearn.exceptions.QuotaExceededException;
+import com.shareplaylearn.io.Streams;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * Where users' items are kept. Items are addressed the same way the download route addresses them
+ * (see ItemKey); userName is there for stores that need it as well as the id.
+ * Failures that map to an HTTP status (not found, forbidden...) are StorageExceptions.
+ */
+public interface ItemStore {
+
+    /**
+     * Stores (or replaces) the original of an item. Readers see either the old item, or all of the new one.
+     */
+    void put( String userName, String userId, String filename, byte[] bytes ) throws IOException, QuotaExceededException;
+
+    /**
+     * Like put(byte[]), but reads the item from a stream of size bytes (negative if that's not known), so a
+     * store that can write as it reads never needs the whole item on the heap. This default reads it all in
+     * first, for stores that can't.
+     * @throws IOException if the stream doesn't hold size bytes; nothing is stored then
+     */
+    default void put( String userName, String userId, String filename, InputStream content, long size )
+            throws IOException, QuotaExceededException {
+        put(userName, userId, filename, Streams.readFully(content, size));
+    }
+
+    /**
+     * The largest item put() can take: for stores that only take whole items, that's what fits in one array.
+     */
+    default long maxItemSize() {
+        return Streams.MAX_BUFFERED_SIZE;
+    }
+
+    byte[] get( String userName, ItemKey key ) throws IOException;
+
+    List<ListedItem> list( String userName, String userId ) throws IOException;
+
+    /**
+     * @return the original's entry in list(), as it is now (e.g. just after it's been put), or null if
+     *         this store can only tell from a full listing
+     */
+    default ListedItem describe( String userName, String userId, String filename ) throws IOException {
+        return null;
+    }
+
+    /**
+     * A URL the item can be downloaded from directly, without going through us, until expiresAtMillis.
+     * @return null if this store can't make one (FileService.downloadRedirects signs its own instead)
+     */
+    default String presign( String userName, ItemKey key, long expiresAtMillis ) throws IOException {
+        return null;
+    }
+
+    /**
+     * Whether put() makes an item's derived presentations (previews, thumbnails...) itself. If it doesn't,
+     * FileService.derivations makes them in the background, and stores them with putPresentation().
+     */
+    default boolean derivesPresentations() {
+        return true;
+    }
+
+    /**
+     * The file type an item of that name is stored (and downloaded) under, or null if only the store knows,
+     * once it's stored.
+     */
+    default String fileType( String filename ) {
+        return null;
+    }
+
+    /**
+     * Stores (or replaces) a derived presentation of an item, for stores that don't derive their own.
+     * @return false if this store doesn't take derived presentations, and nothing was stored
+     */
+    default boolean putPresentation( String userName, ItemKey key, byte[] bytes ) throws IOException {
+        return false;
+    }
+
+    /**
+     * @return the item's size, modification time and digest, or null if this store can only tell by reading
+     *         it, in which case callers should just get() it.
+     */
+    default ItemStat stat( String userName, ItemKey key ) throws IOException {
+        return null;
+    }
+
+    default InputStream open( String userName, ItemKey key ) throws IOException {
+        return new ByteArrayInputStream(get(userName, key));
+    }
+
+    /**
+     * Writes count bytes of the item, from position, to the target.
+     */
+    default void transferTo( String userName, ItemKey key, long position, long count, WritableByteChannel target )
+            throws IOException {
+        byte[] bytes = get(userName, key);
+        if( position < 0 || count < 0 || position + count > bytes.length ) {
+            throw new IOException("Range " + position + "+" + count + " is outside " + key + " of " + bytes.length);
+        }
+        ByteBuffer range = ByteBuffer.wrap(bytes, (int) position, (int) count);
+        while( range.hasRemaining() ) {
+            target.write(range);
+        }
+    }
+}
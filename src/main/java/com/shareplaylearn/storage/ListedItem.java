@@ -0,0 +1,41 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+/**
+ * One entry of a user's file list: the name and file type it's stored under (the name is null
+ * if the store can't say where it is), its size (-1 if the store can't say), and whatever the store
+ * describes it with, which is what the file list shows for it.
+ */
+public class ListedItem {
+    public final String name;
+    public final String fileType;
+    public final long size;
+    public final Object listing;
+
+    public ListedItem( String name, String fileType, Object listing ) {
+        this(name, fileType, -1, listing);
+    }
+
+    public ListedItem( String name, String fileType, long size, Object listing ) {
+        this.name = name;
+        this.fileType = fileType;
+        this.size = size;
+        this.listing = listing;
+    }
+}
@@ -0,0 +1,480 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import com.shareplaylearn.cache.ItemKey;
+import com.shareplaylearn.exceptions.Exceptions;
+import com.shareplaylearn.io.Streams;
+import com.shareplaylearn.models.ItemSchema;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+import static org.eclipse.jetty.http.HttpStatus.Code.BAD_REQUEST;
+import static org.eclipse.jetty.http.HttpStatus.Code.NOT_FOUND;
+
+/**
+ * Items kept on local disk, content addressed: each distinct content is stored once, as
+ * root/blobs/(first byte of its sha256, in hex)/(sha256), however many items (of however many users) hold it.
+ * An item is a small file holding the sha256 of its content, at
+ * root/items/(first byte of sha256(userId), in hex)/(userId)/(presentationType)/(filename),
+ * with the user id and filename URL encoded. The shard directories keep any one directory from
+ * collecting every user, or every blob.
+ * <p>
+ * Each blob is counted by the items that refer to it; when an item is replaced and its old blob
+ * isn't referred to any more, the blob is deleted. The counts are kept in memory, and counted again
+ * from the items when the store is opened (which also clears out blobs a crash left unreferenced).
+ * <p>
+ * Everything is written to root/tmp first and renamed into place, so readers never see half a blob, or
+ * an item pointing at one. Writes go straight from the upload stream into that file, hashing it on the
+ * way, and reads straight from the blob (see transferTo()), so an item never has to fit on the heap.
+ * Only originals are put() here; derived presentations come from FileService.derivations.
+ */
+public class LocalItemStore implements ItemStore {
+
+    private static final Logger log = LoggerFactory.getLogger(LocalItemStore.class);
+    private static final String ORIGINAL = ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE.toString();
+    private static final String[] IMAGE_EXTENSIONS = { "jpg", "jpeg", "png", "gif", "bmp", "webp" };
+    private static final Pattern DIGEST = Pattern.compile("[0-9a-f]{64}");
+
+    private final Path items;
+    private final Path blobs;
+    private final Path tmp;
+    //how many items refer to each blob; only changed under that blob's lock
+    private final ConcurrentHashMap<String,Integer> references = new ConcurrentHashMap<>();
+    //striped by item path or blob hash; nothing holds more than one at a time
+    private final Object[] locks = new Object[64];
+
+    public LocalItemStore( Path root ) throws IOException {
+        this.items = Files.createDirectories(root.resolve("items"));
+        this.blobs = Files.createDirectories(root.resolve("blobs"));
+        this.tmp = Files.createDirectories(root.resolve("tmp"));
+        for( int i = 0; i < locks.length; ++i ) {
+            locks[i] = new Object();
+        }
+        //anything in here was being written when we last stopped
+        FileUtils.cleanDirectory(tmp.toFile());
+        countReferences();
+    }
+
+    @Override
+    public void put( String userName, String userId, String filename, byte[] bytes ) throws IOException {
+        write(path(userId, ORIGINAL, filename), new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    @Override
+    public void put( String userName, String userId, String filename, InputStream content, long size )
+            throws IOException {
+        write(path(userId, ORIGINAL, filename), content, size);
+    }
+
+    @Override
+    public long maxItemSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public boolean derivesPresentations() {
+        return false;
+    }
+
+    @Override
+    public String fileType( String filename ) {
+        return fileTypeOf(filename);
+    }
+
+    @Override
+    public boolean putPresentation( String userName, ItemKey key, byte[] bytes ) throws IOException {
+        if( ORIGINAL.equals(key.presentationType) ) {
+            throw new IllegalArgumentException("Originals are put(), not derived: " + key);
+        }
+        write(path(key.userId, key.presentationType, key.filename), new ByteArrayInputStream(bytes), bytes.length);
+        return true;
+    }
+
+    /**
+     * Stores the content as a blob (if it isn't stored already), then points the item at it.
+     * @param size what the stream should hold, or negative to take whatever it does
+     */
+    private void write( Path item, InputStream content, long size ) throws IOException {
+        Files.createDirectories(item.getParent());
+        String digest = storeBlob(content, size, item);
+        try {
+            link(item, digest);
+        } catch ( IOException | RuntimeException e ) {
+            release(digest);
+            throw e;
+        }
+    }
+
+    /**
+     * Copies the stream into a temp file a chunk at a time, hashing it on the way, then renames it into place
+     * as the blob for that hash, unless there's one already. Either way, the blob gains a reference.
+     * @return the hash
+     */
+    private String storeBlob( InputStream content, long size, Path item ) throws IOException {
+        Path partial = Files.createTempFile(tmp, "put", ".part");
+        try {
+            DigestInputStream hashing = new DigestInputStream(content, ContentIndex.newDigest());
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+                ReadableByteChannel source = Channels.newChannel(hashing);
+                long written = 0;
+                long transferred;
+                while( (transferred = channel.transferFrom(source, written, Streams.CHUNK_SIZE)) > 0 ) {
+                    written += transferred;
+                }
+                if( size >= 0 && written != size ) {
+                    throw new IOException("Expected " + size + " bytes for " + item.getFileName() + ", got " + written);
+                }
+                channel.force(true);
+            }
+            String digest = ContentIndex.hex(hashing.getMessageDigest().digest());
+            Path blob = blob(digest);
+            synchronized( lock(digest) ) {
+                if( !Files.exists(blob) ) {
+                    Files.createDirectories(blob.getParent());
+                    Files.move(partial, blob, StandardCopyOption.ATOMIC_MOVE);
+                }
+                references.merge(digest, 1, Integer::sum);
+            }
+            return digest;
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    /**
+     * Points the item at the blob, and releases the blob it pointed at before, if any.
+     */
+    private void link( Path item, String digest ) throws IOException {
+        Path partial = Files.createTempFile(tmp, "item", ".part");
+        try {
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(digest.getBytes(StandardCharsets.US_ASCII));
+                while( buffer.hasRemaining() ) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            String previous;
+            //so two puts of the same item can't both release what it held before
+            synchronized( lock(item.toString()) ) {
+                previous = Files.exists(item) ? readDigest(item) : null;
+                Files.move(partial, item, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if( previous != null ) {
+                release(previous);
+            }
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    /**
+     * Drops a reference to the blob, and deletes it if that was the last one.
+     */
+    private void release( String digest ) throws IOException {
+        synchronized( lock(digest) ) {
+            if( references.computeIfPresent(digest, (d, count) -> count > 1 ? count - 1 : null) == null ) {
+                Files.deleteIfExists(blob(digest));
+            }
+        }
+    }
+
+    /**
+     * @return how many items hold this content (by its sha256, in hex)
+     */
+    public int references( String digest ) {
+        return references.getOrDefault(digest, 0);
+    }
+
+    @Override
+    public byte[] get( String userName, ItemKey key ) throws IOException {
+        return fromBlob(key, (item, blob) -> Files.readAllBytes(blob));
+    }
+
+    @Override
+    public InputStream open( String userName, ItemKey key ) throws IOException {
+        return fromBlob(key, (item, blob) -> Files.newInputStream(blob));
+    }
+
+    /**
+     * The size and digest are the content's; the modification time is when the item was last stored.
+     */
+    @Override
+    public ItemStat stat( String userName, ItemKey key ) throws IOException {
+        return fromBlob(key, LocalItemStore::stat);
+    }
+
+    private static ItemStat stat( Path item, Path blob ) throws IOException {
+        return new ItemStat(Files.size(blob), Files.getLastModifiedTime(item).toMillis(),
+                blob.getFileName().toString());
+    }
+
+    /**
+     * Hands the range to the kernel (sendfile, where there is one) rather than copying it through the heap.
+     */
+    @Override
+    public void transferTo( String userName, ItemKey key, long position, long count, WritableByteChannel target )
+            throws IOException {
+        fromBlob(key, (item, blob) -> {
+            try (FileChannel channel = FileChannel.open(blob, StandardOpenOption.READ)) {
+                long start = position;
+                if( start < 0 || count < 0 || start + count > channel.size() ) {
+                    throw new IOException("Range " + start + "+" + count + " is outside " + key + " of " + channel.size());
+                }
+                long end = start + count;
+                while( start < end ) {
+                    long transferred = channel.transferTo(start, end - start, target);
+                    if( transferred <= 0 ) {
+                        //the file was truncated under us
+                        throw new IOException("Short transfer of " + key + " at " + start);
+                    }
+                    start += transferred;
+                }
+                return null;
+            }
+        });
+    }
+
+    private interface BlobReader<T> {
+        T read( Path item, Path blob ) throws IOException;
+    }
+
+    private <T> T fromBlob( ItemKey key, BlobReader<T> reader ) throws IOException {
+        try {
+            return fromBlob(existing(key), reader);
+        } catch ( NoSuchFileException e ) {
+            throw notFound(key);
+        }
+    }
+
+    /**
+     * Reads the item's blob, going back to the item once if the blob's gone: that happens when the item
+     * is replaced (releasing its old blob) between our reading which blob it points at, and opening it.
+     */
+    private <T> T fromBlob( Path item, BlobReader<T> reader ) throws IOException {
+        try {
+            return reader.read(item, blob(readDigest(item)));
+        } catch ( NoSuchFileException e ) {
+            return reader.read(item, blob(readDigest(item)));
+        }
+    }
+
+    @Override
+    public List<ListedItem> list( String userName, String userId ) throws IOException {
+        List<ListedItem> listed = new ArrayList<>();
+        Path originals = userDirectory(userId).resolve(ORIGINAL);
+        if( !Files.isDirectory(originals) ) {
+            return listed;
+        }
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(originals)) {
+            for( Path file : stream ) {
+                files.add(file);
+            }
+        }
+        files.sort(null);
+        for( Path file : files ) {
+            try {
+                listed.add(listed(file));
+            } catch ( NoSuchFileException e ) {
+                //deleted since we listed the directory
+            }
+        }
+        return listed;
+    }
+
+    @Override
+    public ListedItem describe( String userName, String userId, String filename ) throws IOException {
+        try {
+            return listed(path(userId, ORIGINAL, filename));
+        } catch ( NoSuchFileException e ) {
+            return null;
+        }
+    }
+
+    private ListedItem listed( Path file ) throws IOException {
+        ItemStat stat = fromBlob(file, LocalItemStore::stat);
+        String name = decode(file.getFileName().toString());
+        String type = fileTypeOf(name);
+        return new ListedItem(name, type, stat.size, new Listing(name, type, stat.size, stat.lastModified));
+    }
+
+    /**
+     * What the file list shows for a local item.
+     */
+    static class Listing {
+        final String name;
+        final String type;
+        final long size;
+        final long lastModified;
+
+        Listing( String name, String type, long size, long lastModified ) {
+            this.name = name;
+            this.type = type;
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * The file type an item is served under, going by its extension, as there's nothing else on disk to go by.
+     */
+    static String fileTypeOf( String filename ) {
+        int dot = filename.lastIndexOf('.');
+        String extension = dot < 0 ? "" : filename.substring(dot + 1).toLowerCase(Locale.ROOT);
+        for( String imageExtension : IMAGE_EXTENSIONS ) {
+            if( imageExtension.equals(extension) ) {
+                return "image";
+            }
+        }
+        return "unknown";
+    }
+
+    /**
+     * Counts every item's reference to its blob, then deletes the blobs nothing refers to, which a crash
+     * between storing a blob and pointing an item at it can leave. Only run as the store is opened.
+     */
+    private void countReferences() throws IOException {
+        Files.walkFileTree(items, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile( Path item, BasicFileAttributes attributes ) {
+                try {
+                    references.merge(readDigest(item), 1, Integer::sum);
+                } catch ( IOException e ) {
+                    log.warn("Skipping unreadable item " + item + ": " + Exceptions.asString(e));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        Files.walkFileTree(blobs, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile( Path blob, BasicFileAttributes attributes ) throws IOException {
+                if( !references.containsKey(blob.getFileName().toString()) ) {
+                    log.info("Deleting unreferenced blob " + blob);
+                    Files.delete(blob);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static String readDigest( Path item ) throws IOException {
+        String digest = new String(Files.readAllBytes(item), StandardCharsets.US_ASCII);
+        if( !DIGEST.matcher(digest).matches() ) {
+            throw new IOException("Not an item: " + item);
+        }
+        return digest;
+    }
+
+    private Path blob( String digest ) {
+        return blobs.resolve(digest.substring(0, 2)).resolve(digest);
+    }
+
+    private Object lock( String name ) {
+        return locks[(name.hashCode() & Integer.MAX_VALUE) % locks.length];
+    }
+
+    /**
+     * The path of an item, if it's stored under the file type it was asked for.
+     */
+    private Path existing( ItemKey key ) throws IOException {
+        if( !fileTypeOf(key.filename).equals(key.fileType) ) {
+            throw new NoSuchFileException(key.toString());
+        }
+        return path(key.userId, key.presentationType, key.filename);
+    }
+
+    private Path path( String userId, String presentationType, String filename ) throws StorageException {
+        if( filename == null || filename.isEmpty() || filename.equals(".") || filename.equals("..") ) {
+            throw new StorageException(BAD_REQUEST.getCode(), "Invalid filename: " + filename);
+        }
+        if( presentationType == null || presentationType.isEmpty() ) {
+            throw new StorageException(BAD_REQUEST.getCode(), "Invalid presentation type: " + presentationType);
+        }
+        return userDirectory(userId).resolve(encode(presentationType)).resolve(encode(filename));
+    }
+
+    private Path userDirectory( String userId ) {
+        return items.resolve(shard(userId)).resolve(encode(userId));
+    }
+
+    private static String shard( String userId ) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(userId.getBytes(StandardCharsets.UTF_8));
+            return String.format("%02x", digest[0]);
+        } catch ( NoSuchAlgorithmException e ) {
+            //every JVM has to have SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * URL encoding never leaves a '/' (or anything else the filesystem cares about) in a path segment.
+     */
+    private static String encode( String segment ) {
+        try {
+            return URLEncoder.encode(segment, "UTF-8");
+        } catch ( UnsupportedEncodingException e ) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode( String segment ) {
+        try {
+            return URLDecoder.decode(segment, "UTF-8");
+        } catch ( UnsupportedEncodingException e ) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static StorageException notFound( ItemKey key ) {
+        return new StorageException(NOT_FOUND.getCode(), "No such item: " + key.filename);
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * An object store that takes objects either in one put, or as numbered parts that are
+ * stitched together by a final complete() (the S3 multipart upload model).
+ * Parts of the same upload may be sent concurrently, and any part may be sent more than once.
+ */
+public interface MultipartTarget {
+
+    void put( String key, byte[] bytes, int offset, int length ) throws IOException;
+
+    /**
+     * @return the id of the new upload, to pass to the other calls
+     */
+    String initiate( String key ) throws IOException;
+
+    /**
+     * @param partNumber from 1, as in S3
+     * @return whatever the store uses to identify the part when completing (the part's ETag, in S3)
+     */
+    String uploadPart( String key, String uploadId, int partNumber, byte[] bytes, int offset, int length )
+            throws IOException;
+
+    /**
+     * @param partTags what uploadPart() returned for each part, in part order
+     */
+    void complete( String key, String uploadId, List<String> partTags ) throws IOException;
+
+    void abort( String key, String uploadId ) throws IOException;
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import com.shareplaylearn.concurrent.BoundedExecutors;
+import com.shareplaylearn.exceptions.Exceptions;
+import com.shareplaylearn.io.Streams;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes objects to a MultipartTarget: small ones in a single put, larger ones as parts
+ * uploaded concurrently on a shared, bounded pool, each part retried on its own,
+ * then completed (or aborted, if a part can't be sent). Large objects are read from their stream
+ * a part at a time, so only a few parts of one are ever in memory, however big it is.
+ */
+public class MultipartUploader {
+
+    private static final Logger log = LoggerFactory.getLogger(MultipartUploader.class);
+    //S3's limit
+    public static final int MAX_PARTS = 10000;
+
+    private final ExecutorService executor;
+    private final long thresholdBytes;
+    private final int partBytes;
+    private final int partsInFlight;
+    private final int maxAttempts;
+    private final long retryBackoffMillis;
+    private final LongAdder singlePuts = new LongAdder();
+    private final LongAdder multipartUploads = new LongAdder();
+    private final LongAdder partRetries = new LongAdder();
+    private final LongAdder failedUploads = new LongAdder();
+
+    /**
+     * @param executor where parts are uploaded. Shared by every upload, so it bounds how many
+     *                 parts are in flight across the whole service.
+     * @param thresholdBytes objects at least this big are sent in parts
+     * @param partBytes the size of each part (except the last). Raised if it would mean more than MAX_PARTS.
+     * @param partsInFlight how many parts of one object can be read in, and not yet sent, at once
+     * @param maxAttempts how many times to try each part (and single puts) before giving up
+     * @param retryBackoffMillis the wait before the first retry; doubled for each one after
+     */
+    public MultipartUploader( ExecutorService executor, long thresholdBytes, int partBytes, int partsInFlight,
+                              int maxAttempts, long retryBackoffMillis ) {
+        this.executor = executor;
+        this.thresholdBytes = thresholdBytes;
+        this.partBytes = partBytes;
+        this.partsInFlight = Math.max(1, partsInFlight);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.retryBackoffMillis = retryBackoffMillis;
+    }
+
+    /**
+     * @see BoundedExecutors#callerRunsWhenFull(String, int)
+     */
+    public static ExecutorService boundedExecutor( int threads ) {
+        return BoundedExecutors.callerRunsWhenFull("multipart-upload", threads);
+    }
+
+    public void upload( MultipartTarget target, String key, byte[] bytes ) throws IOException {
+        if( bytes.length < thresholdBytes ) {
+            singlePuts.increment();
+            withRetries("put of " + key, () -> {
+                target.put(key, bytes, 0, bytes.length);
+                return null;
+            });
+            return;
+        }
+        upload(target, key, new ByteArrayInputStream(bytes), bytes.length);
+    }
+
+    /**
+     * Uploads size bytes from the stream. Each part is read in while the parts before it are being sent,
+     * waiting for one of those to finish whenever partsInFlight of them are still in memory.
+     * @throws IOException if the stream doesn't hold size bytes (the upload is aborted)
+     */
+    public void upload( MultipartTarget target, String key, InputStream content, long size ) throws IOException {
+        if( size < thresholdBytes ) {
+            upload(target, key, Streams.readFully(content, size));
+            return;
+        }
+        multipartUploads.increment();
+        long partSize = Math.max(partBytes, (size + MAX_PARTS - 1L) / MAX_PARTS);
+        if( partSize > Streams.MAX_BUFFERED_SIZE ) {
+            throw new IOException(key + " is too large to upload, at " + size + " bytes.");
+        }
+        int parts = (int) ((size + partSize - 1L) / partSize);
+        Semaphore buffers = new Semaphore(partsInFlight);
+        AtomicBoolean failed = new AtomicBoolean();
+        String uploadId = target.initiate(key);
+        List<Future<String>> uploads = new ArrayList<>(parts);
+        try {
+            //once a part has failed for good, there's no point reading (or sending) any more
+            for( int part = 0; part < parts && !failed.get(); ++part ) {
+                int partNumber = part + 1;
+                int length = (int) Math.min(partSize, size - part * partSize);
+                buffers.acquire();
+                byte[] buffer = new byte[length];
+                try {
+                    IOUtils.readFully(content, buffer);
+                } catch ( IOException e ) {
+                    buffers.release();
+                    throw e;
+                }
+                uploads.add( executor.submit( () -> {
+                    try {
+                        return withRetries("part " + partNumber + " of " + key,
+                                () -> target.uploadPart(key, uploadId, partNumber, buffer, 0, length));
+                    } catch ( IOException | RuntimeException e ) {
+                        failed.set(true);
+                        throw e;
+                    } finally {
+                        buffers.release();
+                    }
+                }) );
+            }
+            List<String> partTags = new ArrayList<>(parts);
+            for( Future<String> upload : uploads ) {
+                partTags.add(upload.get());
+            }
+            if( content.read() != -1 ) {
+                throw new IOException("Stream for " + key + " was longer than the expected " + size + " bytes.");
+            }
+            target.complete(key, uploadId, partTags);
+        } catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            abort(target, key, uploadId, uploads);
+            throw new InterruptedIOException("Interrupted uploading " + key);
+        } catch ( ExecutionException e ) {
+            abort(target, key, uploadId, uploads);
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch ( IOException | RuntimeException e ) {
+            abort(target, key, uploadId, uploads);
+            throw e;
+        }
+    }
+
+    private void abort( MultipartTarget target, String key, String uploadId, List<Future<String>> uploads ) {
+        failedUploads.increment();
+        for( Future<String> upload : uploads ) {
+            upload.cancel(true);
+        }
+        try {
+            target.abort(key, uploadId);
+        } catch ( IOException | RuntimeException e ) {
+            //the store will expire it eventually, there's nothing more we can do
+            log.warn("Failed to abort upload " + uploadId + " of " + key + ": " + Exceptions.asString(e));
+        }
+    }
+
+    private interface Attempt<T> {
+        T run() throws IOException;
+    }
+
+    private <T> T withRetries( String what, Attempt<T> attempt ) throws IOException {
+        long backoff = retryBackoffMillis;
+        for( int attempts = 1; ; ++attempts ) {
+            try {
+                return attempt.run();
+            } catch ( IOException | RuntimeException e ) {
+                if( attempts >= maxAttempts || Thread.currentThread().isInterrupted() ) {
+                    throw e;
+                }
+                partRetries.increment();
+                log.info("Retrying " + what + " after attempt " + attempts + " failed: " + e.getMessage());
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted retrying " + what);
+            }
+            backoff *= 2;
+        }
+    }
+
+    public Map<String,Long> stats() {
+        Map<String,Long> stats = new LinkedHashMap<>();
+        stats.put("singlePuts", singlePuts.sum());
+        stats.put("multipartUploads", multipartUploads.sum());
+        stats.put("retries", partRetries.sum());
+        stats.put("failed", failedUploads.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.shareplaylearn.UserItemManager;
+import com.shareplaylearn.cache.ItemKey;
+import com.shareplaylearn.exceptions.Exceptions;
+import com.shareplaylearn.exceptions.InternalErrorException;
+import com.shareplaylearn.exceptions.QuotaExceededException;
+import com.shareplaylearn.exceptions.UnsupportedEncodingException;
+import com.shareplaylearn.models.ItemSchema;
+import com.shareplaylearn.models.UserItem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.eclipse.jetty.http.HttpStatus.Code.INTERNAL_SERVER_ERROR;
+
+/**
+ * Items kept in S3, through UserItemManager, as they always have been.
+ * UserItemManager only deals in whole items, so there's no stat(), and ranges are served from get().
+ * It doesn't say where in the bucket an item is either, so there's no presign().
+ * Every item is written in full, so uploads of exactly what an item already holds are skipped,
+ * going by the contents we've seen it stored with.
+ */
+public class S3ItemStore implements ItemStore {
+
+    private static final Logger log = LoggerFactory.getLogger(S3ItemStore.class);
+    private static final Gson GSON = new Gson();
+
+    private final ContentIndex contents;
+
+    public S3ItemStore( ContentIndex contents ) {
+        this.contents = contents;
+    }
+
+    @Override
+    public void put( String userName, String userId, String filename, byte[] bytes )
+            throws IOException, QuotaExceededException {
+        String digest = ContentIndex.hex(ContentIndex.newDigest().digest(bytes));
+        if( contents.holds(userId, filename, digest, bytes.length) ) {
+            log.debug("Skipping upload of " + filename + " for " + userId + ", it's already stored.");
+            return;
+        }
+        try {
+            new UserItemManager( userName, userId ).addItem( filename, bytes );
+        } catch ( InternalErrorException | AmazonClientException e ) {
+            //we don't know what it holds now
+            contents.forget( userId, filename );
+            throw translate(e);
+        }
+        contents.stored( userId, filename, digest );
+    }
+
+    @Override
+    public byte[] get( String userName, ItemKey key ) throws IOException {
+        try {
+            return new UserItemManager( userName, key.userId ).getItem( key.fileType,
+                    ItemSchema.PresentationType.fromString(key.presentationType), key.filename, null );
+        } catch ( UnsupportedEncodingException e ) {
+            //we never ask for an encoding
+            throw new IllegalStateException(e);
+        } catch ( AmazonClientException e ) {
+            throw translate(e);
+        }
+    }
+
+    @Override
+    public List<ListedItem> list( String userName, String userId ) throws IOException {
+        List<UserItem> items;
+        try {
+            items = new UserItemManager( userName, userId ).getItemList();
+        } catch ( AmazonClientException e ) {
+            throw translate(e);
+        }
+        List<ListedItem> listed = new ArrayList<>(items.size());
+        for( UserItem item : items ) {
+            String name = item.getPreferredLocation() != null ? item.getPreferredLocation().itemName : null;
+            listed.add(new ListedItem(name, itemType(item), item));
+        }
+        return listed;
+    }
+
+    /**
+     * The file type an item is stored (and downloaded) under, as listed in its "type" field.
+     */
+    private static String itemType( UserItem item ) {
+        JsonElement type = GSON.toJsonTree(item).getAsJsonObject().get("type");
+        return type != null && type.isJsonPrimitive() ? type.getAsString() : "unknown";
+    }
+
+    static StorageException translate( Exception e ) {
+        if( e instanceof AmazonS3Exception ) {
+            //this exception is what we get back for not found, forbidden, etc.
+            AmazonS3Exception s3Exception = (AmazonS3Exception) e;
+            log.info( s3Exception.getMessage() );
+            Map<String,String> additionalDetails = s3Exception.getAdditionalDetails();
+            if( additionalDetails != null ) {
+                log.info( Arrays.toString(additionalDetails.values().toArray()) );
+            }
+            return new StorageException( s3Exception.getStatusCode(), s3Exception.getErrorMessage(), e );
+        }
+        log.error(Exceptions.asString(e));
+        return new StorageException( INTERNAL_SERVER_ERROR.getCode(), Exceptions.asString(e), e );
+    }
+}
@@ -0,0 +1,43 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import java.io.IOException;
+
+/**
+ * A failure in the item store that has an HTTP status to go with it
+ * (e.g. 404 for an item that isn't there, 403 for one we're not allowed to read).
+ */
+public class StorageException extends IOException {
+
+    private final int statusCode;
+
+    public StorageException( int statusCode, String message ) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+
+    public StorageException( int statusCode, String message, Throwable cause ) {
+        super(message, cause);
+        this.statusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import com.shareplaylearn.cache.ItemKey;
+import com.shareplaylearn.exceptions.QuotaExceededException;
+import com.shareplaylearn.metrics.Metrics;
+import com.shareplaylearn.metrics.RequestTiming;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * Times every call to another store, as storage.put, storage.get, etc., and counts them
+ * towards the storage time of the request making them.
+ */
+public class TimedItemStore implements ItemStore {
+
+    private final ItemStore delegate;
+    private final Metrics metrics;
+
+    public TimedItemStore( ItemStore delegate, Metrics metrics ) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void put( String userName, String userId, String filename, byte[] bytes )
+            throws IOException, QuotaExceededException {
+        long start = System.nanoTime();
+        try {
+            delegate.put(userName, userId, filename, bytes);
+        } finally {
+            record("storage.put", start);
+        }
+    }
+
+    @Override
+    public void put( String userName, String userId, String filename, InputStream content, long size )
+            throws IOException, QuotaExceededException {
+        long start = System.nanoTime();
+        try {
+            delegate.put(userName, userId, filename, content, size);
+        } finally {
+            record("storage.put", start);
+        }
+    }
+
+    @Override
+    public long maxItemSize() {
+        return delegate.maxItemSize();
+    }
+
+    @Override
+    public byte[] get( String userName, ItemKey key ) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return delegate.get(userName, key);
+        } finally {
+            record("storage.get", start);
+        }
+    }
+
+    @Override
+    public List<ListedItem> list( String userName, String userId ) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return delegate.list(userName, userId);
+        } finally {
+            record("storage.list", start);
+        }
+    }
+
+    @Override
+    public ListedItem describe( String userName, String userId, String filename ) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return delegate.describe(userName, userId, filename);
+        } finally {
+            record("storage.describe", start);
+        }
+    }
+
+    @Override
+    public String presign( String userName, ItemKey key, long expiresAtMillis ) throws IOException {
+        return delegate.presign(userName, key, expiresAtMillis);
+    }
+
+    @Override
+    public boolean derivesPresentations() {
+        return delegate.derivesPresentations();
+    }
+
+    @Override
+    public String fileType( String filename ) {
+        return delegate.fileType(filename);
+    }
+
+    @Override
+    public boolean putPresentation( String userName, ItemKey key, byte[] bytes ) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return delegate.putPresentation(userName, key, bytes);
+        } finally {
+            record("storage.putPresentation", start);
+        }
+    }
+
+    @Override
+    public ItemStat stat( String userName, ItemKey key ) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return delegate.stat(userName, key);
+        } finally {
+            record("storage.stat", start);
+        }
+    }
+
+    @Override
+    public InputStream open( String userName, ItemKey key ) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return delegate.open(userName, key);
+        } finally {
+            record("storage.open", start);
+        }
+    }
+
+    /**
+     * This includes the time spent waiting on whatever it's writing to (usually the client).
+     */
+    @Override
+    public void transferTo( String userName, ItemKey key, long position, long count, WritableByteChannel target )
+            throws IOException {
+        long start = System.nanoTime();
+        try {
+            delegate.transferTo(userName, key, position, count, target);
+        } finally {
+            record("storage.transfer", start);
+        }
+    }
+
+    private void record( String timer, long start ) {
+        metrics.record(timer, RequestTiming.Phase.STORAGE, System.nanoTime() - start);
+    }
+}
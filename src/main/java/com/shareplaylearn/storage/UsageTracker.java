@@ -0,0 +1,275 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import com.shareplaylearn.concurrent.SingleFlight;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * How many bytes each user has stored, kept up to date by uploads, so a quota can be checked
+ * without walking their items. A user's usage is only built from a listing of their items the first
+ * time it's needed (or after we've forgotten it), and again once it's older than the reconcile
+ * interval, to pick up anything changed behind our back. Bounded, least recently used users are
+ * forgotten first.
+ *
+ * Items a store lists without a size count as nothing, so with those (S3) this is a lower bound,
+ * which is still enough to turn away uploads that can't fit.
+ */
+public class UsageTracker {
+
+    private final long quotaBytes;
+    private final long reconcileNanos;
+    private final LinkedHashMap<String,Usage> users;
+    //by the Usage itself, in case a user is forgotten and tracked again while they're being listed
+    private final SingleFlight<Usage,Void> scans = new SingleFlight<>();
+    private final LongAdder rejected = new LongAdder();
+
+    private static final class Usage {
+        //filename -> {size, version it was last stored at}
+        final Map<String,long[]> items = new HashMap<>();
+        long total;
+        long version;
+        long scannedAt;
+        boolean scanned;
+    }
+
+    /**
+     * @param quotaBytes how much each user may store; 0 (or less) for no quota
+     */
+    public UsageTracker( long quotaBytes, final int maxUsers, long reconcileInterval, TimeUnit unit ) {
+        this.quotaBytes = quotaBytes;
+        this.reconcileNanos = unit.toNanos(reconcileInterval);
+        this.users = new LinkedHashMap<String,Usage>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String,Usage> eldest ) {
+                return size() > maxUsers;
+            }
+        };
+    }
+
+    /**
+     * No quota, so nothing is tracked.
+     */
+    public static UsageTracker disabled() {
+        return new UsageTracker(0, 0, 0, TimeUnit.SECONDS);
+    }
+
+    public boolean enabled() {
+        return quotaBytes > 0;
+    }
+
+    /**
+     * For checking before we even know whose an upload is: whether size bytes are more than anyone may store.
+     * Counted as a rejection if so.
+     */
+    public boolean exceedsQuota( long size ) {
+        if( !enabled() || size <= quotaBytes ) {
+            return false;
+        }
+        rejected.increment();
+        return true;
+    }
+
+    /**
+     * For checking before an upload is read: whether storing size bytes as filename would put the user
+     * over their quota (counting what filename holds now as freed; null if we don't know what it's stored as
+     * yet). Counted as a rejection if so.
+     */
+    public boolean wouldExceed( ItemStore store, String userName, String userId, String filename, long size )
+            throws IOException {
+        return wouldExceed(store, userName, userId, Collections.singletonMap(filename, size));
+    }
+
+    /**
+     * Like wouldExceed() for one item, but for a batch of them: whether storing all of them would.
+     * @param sizes by filename
+     */
+    public boolean wouldExceed( ItemStore store, String userName, String userId, Map<String,Long> sizes )
+            throws IOException {
+        if( !enabled() ) {
+            return false;
+        }
+        Usage usage = current(store, userName, userId);
+        boolean exceeds;
+        synchronized (usage) {
+            long total = usage.total;
+            for( Map.Entry<String,Long> item : sizes.entrySet() ) {
+                long[] existing = usage.items.get(item.getKey());
+                total += item.getValue() - (existing != null ? existing[0] : 0);
+            }
+            exceeds = total > quotaBytes;
+        }
+        if( exceeds ) {
+            rejected.increment();
+        }
+        return exceeds;
+    }
+
+    /**
+     * The user's usage, as far as we know it, listing their items if we have to.
+     */
+    public long usage( ItemStore store, String userName, String userId ) throws IOException {
+        Usage usage = current(store, userName, userId);
+        synchronized (usage) {
+            return usage.total;
+        }
+    }
+
+    /**
+     * An item counted as stored before it was, so uploads running at once can't all fit
+     * under the quota. Cancelled if storing it fails.
+     */
+    public static final class Reservation {
+        private final Usage usage;
+        private final String filename;
+        private final long[] ours;
+        private final long[] previous;
+
+        private Reservation( Usage usage, String filename, long[] ours, long[] previous ) {
+            this.usage = usage;
+            this.filename = filename;
+            this.ours = ours;
+            this.previous = previous;
+        }
+
+        /**
+         * Puts back what the item was counted as before, unless it's been stored again since.
+         */
+        public void cancel() {
+            if( usage == null ) {
+                return;
+            }
+            synchronized (usage) {
+                if( usage.items.get(filename) != ours ) {
+                    return;
+                }
+                if( previous != null ) {
+                    usage.items.put(filename, previous);
+                } else {
+                    usage.items.remove(filename);
+                }
+                usage.total += (previous != null ? previous[0] : 0) - ours[0];
+            }
+        }
+    }
+
+    private static final Reservation NOTHING_RESERVED = new Reservation(null, null, null, null);
+
+    /**
+     * Checks the quota, and counts filename as holding size bytes, in one step.
+     * @return null if it would put the user over their quota (counted as a rejection)
+     */
+    public Reservation reserve( ItemStore store, String userName, String userId, String filename, long size )
+            throws IOException {
+        if( !enabled() ) {
+            return NOTHING_RESERVED;
+        }
+        Usage usage = current(store, userName, userId);
+        synchronized (usage) {
+            long[] previous = usage.items.get(filename);
+            long total = usage.total - (previous != null ? previous[0] : 0) + size;
+            if( total <= quotaBytes ) {
+                long[] ours = {size, ++usage.version};
+                usage.items.put(filename, ours);
+                usage.total = total;
+                return new Reservation(usage, filename, ours, previous);
+            }
+        }
+        rejected.increment();
+        return null;
+    }
+
+    public String quotaMessage( String userId, long size ) {
+        return "Storing " + size + " bytes would put " + userId + " over their quota of " + quotaBytes + " bytes.";
+    }
+
+    private synchronized Usage usage( String userId ) {
+        return users.computeIfAbsent(userId, id -> new Usage());
+    }
+
+    private Usage current( ItemStore store, String userName, String userId ) throws IOException {
+        Usage usage = usage(userId);
+        synchronized (usage) {
+            if( usage.scanned && System.nanoTime() - usage.scannedAt < reconcileNanos ) {
+                return usage;
+            }
+        }
+        try {
+            scans.get( usage, () -> {
+                scan(store, userName, userId, usage);
+                return null;
+            });
+        } catch ( IOException | RuntimeException e ) {
+            throw e;
+        } catch ( Exception e ) {
+            throw new IOException(e);
+        }
+        return usage;
+    }
+
+    /**
+     * Rebuilds the usage from a listing, keeping whatever was stored while we were listing.
+     */
+    private static void scan( ItemStore store, String userName, String userId, Usage usage ) throws IOException {
+        long version;
+        long scannedAt = System.nanoTime();
+        synchronized (usage) {
+            version = usage.version;
+        }
+        List<ListedItem> listed = store.list(userName, userId);
+        synchronized (usage) {
+            Map<String,long[]> stored = new HashMap<>(usage.items);
+            usage.items.clear();
+            for( ListedItem item : listed ) {
+                if( item.name != null ) {
+                    usage.items.put(item.name, new long[] {Math.max(item.size, 0), version});
+                }
+            }
+            for( Map.Entry<String,long[]> entry : stored.entrySet() ) {
+                if( entry.getValue()[1] > version ) {
+                    usage.items.put(entry.getKey(), entry.getValue());
+                }
+            }
+            long total = 0;
+            for( long[] item : usage.items.values() ) {
+                total += item[0];
+            }
+            usage.total = total;
+            usage.scanned = true;
+            usage.scannedAt = scannedAt;
+        }
+    }
+
+    public Map<String,Long> stats() {
+        Map<String,Long> stats = new LinkedHashMap<>();
+        synchronized (this) {
+            stats.put("users", (long) users.size());
+        }
+        stats.put("scans", scans.loads());
+        stats.put("rejected", rejected.sum());
+        return stats;
+    }
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.upload;
+
+import com.shareplaylearn.io.Streams;
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * One file being uploaded a chunk at a time. Chunks are numbered from 0, are all chunkSize
+ * bytes except (possibly) the last, and can arrive in any order, any number of times;
+ * each one is written to its own file in the session's directory, and replaces any
+ * earlier copy atomically, so a retried chunk never leaves a half written one behind.
+ */
+public class UploadSession {
+
+    public final String id;
+    public final String userName;
+    public final String userId;
+    public final String filename;
+    public final String contentType;
+    public final long size;
+    public final int chunkSize;
+    private final Path directory;
+    private final BitSet received = new BitSet();
+    private boolean closed;
+    private volatile long lastUsed = System.nanoTime();
+
+    UploadSession( String id, String userName, String userId, String filename, String contentType,
+                   long size, int chunkSize, Path directory ) {
+        this.id = id;
+        this.userName = userName;
+        this.userId = userId;
+        this.filename = filename;
+        this.contentType = contentType;
+        this.size = size;
+        this.chunkSize = chunkSize;
+        this.directory = directory;
+    }
+
+    public int chunkCount() {
+        return (int)((size + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * @return how many bytes the given chunk should have, or -1 if there's no such chunk
+     */
+    public long chunkLength( int chunk ) {
+        if( chunk < 0 || chunk >= chunkCount() ) {
+            return -1;
+        }
+        return Math.min(chunkSize, size - (long)chunk * chunkSize);
+    }
+
+    /**
+     * Copies exactly chunkLength(chunk) bytes from the input into the chunk's file.
+     * @throws EOFException if the input ends early
+     * @throws IllegalStateException if the session has been committed or aborted
+     */
+    public void writeChunk( int chunk, InputStream in ) throws IOException {
+        long length = chunkLength(chunk);
+        if( length < 0 ) {
+            throw new IllegalArgumentException("No chunk " + chunk + " in an upload of " + chunkCount());
+        }
+        checkOpen();
+        touch();
+        Path temp = Files.createTempFile(directory, "chunk-" + chunk + "-", ".part");
+        try {
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp), Streams.CHUNK_SIZE)) {
+                Streams.copy(in, out, length);
+            }
+            synchronized (this) {
+                checkOpen();
+                Files.move(temp, chunkFile(chunk), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                received.set(chunk);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    public synchronized List<Integer> missingChunks() {
+        List<Integer> missing = new ArrayList<>();
+        for( int chunk = received.nextClearBit(0); chunk < chunkCount(); chunk = received.nextClearBit(chunk + 1) ) {
+            missing.add(chunk);
+        }
+        return missing;
+    }
+
+    public synchronized int receivedChunks() {
+        return received.cardinality();
+    }
+
+    /**
+     * Stops any more chunks being written, and, if they're all here, returns them as one
+     * stream, read straight from the chunk files, in order. The caller should delete()
+     * the session once it's done with it.
+     * @return the assembled file, or null if there are still chunks missing
+     *         (in which case the session stays open)
+     */
+    public synchronized InputStream close() throws IOException {
+        checkOpen();
+        if( received.cardinality() < chunkCount() ) {
+            return null;
+        }
+        closed = true;
+        List<Path> chunks = new ArrayList<>(chunkCount());
+        for( int chunk = 0; chunk < chunkCount(); ++chunk ) {
+            chunks.add(chunkFile(chunk));
+        }
+        return new SequenceInputStream(openEach(chunks));
+    }
+
+    /**
+     * Puts the session back the way it was before close(), e.g. if storing it failed,
+     * and the client may want to try the commit again.
+     */
+    public synchronized void reopen() {
+        closed = false;
+        touch();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes the session, and removes its chunks from disk.
+     */
+    public void delete() throws IOException {
+        synchronized (this) {
+            closed = true;
+            received.clear();
+        }
+        FileUtils.deleteDirectory(directory.toFile());
+    }
+
+    public long idleNanos() {
+        return System.nanoTime() - lastUsed;
+    }
+
+    void touch() {
+        lastUsed = System.nanoTime();
+    }
+
+    private void checkOpen() {
+        if( closed ) {
+            throw new IllegalStateException("Upload " + id + " has already been committed or aborted.");
+        }
+    }
+
+    private Path chunkFile( int chunk ) {
+        return directory.resolve("chunk-" + chunk);
+    }
+
+    /**
+     * Opens the files one at a time, as the previous one is used up, so we never hold more
+     * than one open. A file that can't be opened surfaces as an UncheckedIOException from read().
+     */
+    private static Enumeration<InputStream> openEach( List<Path> files ) {
+        return new Enumeration<InputStream>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasMoreElements() {
+                return next < files.size();
+            }
+
+            @Override
+            public InputStream nextElement() {
+                if( !hasMoreElements() ) {
+                    throw new NoSuchElementException();
+                }
+                try {
+                    return Files.newInputStream(files.get(next++));
+                } catch ( IOException e ) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        };
+    }
+}
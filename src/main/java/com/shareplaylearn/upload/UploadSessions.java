@@ -0,0 +1,187 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.upload;
+
+import com.shareplaylearn.exceptions.Exceptions;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The chunked uploads in progress, each with a directory of chunks under the uploads directory.
+ * There can be at most maxSessions in progress, and at most maxSessionsPerUser for any one user; a slot
+ * is taken before a session's directory is made, so concurrent creates can't overshoot either.
+ * Sessions nobody has touched for a while are dropped (and their chunks deleted) as new ones are
+ * created. Nothing here survives a restart: the directory is cleared the first time it's used.
+ */
+public class UploadSessions {
+
+    private static final Logger log = LoggerFactory.getLogger(UploadSessions.class);
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Path directory;
+    private final int chunkSize;
+    private final int maxSessions;
+    private final int maxSessionsPerUser;
+    private final long idleNanos;
+    private final ConcurrentHashMap<String,UploadSession> sessions = new ConcurrentHashMap<>();
+    //slots taken, overall and by user id; a session holds one of each from create() until it's removed
+    private final AtomicInteger slots = new AtomicInteger();
+    private final ConcurrentHashMap<String,Integer> userSlots = new ConcurrentHashMap<>();
+    private boolean prepared;
+
+    /**
+     * @param chunkSize the size of every chunk but the last
+     * @param maxSessions how many uploads can be in progress at once
+     * @param maxSessionsPerUser how many of those can be any one user's
+     * @param idleTimeout how long an upload can go without a chunk before it's abandoned
+     */
+    public UploadSessions( Path directory, int chunkSize, int maxSessions, int maxSessionsPerUser,
+                           long idleTimeout, TimeUnit unit ) {
+        this.directory = directory;
+        this.chunkSize = chunkSize;
+        this.maxSessions = maxSessions;
+        this.maxSessionsPerUser = maxSessionsPerUser;
+        this.idleNanos = unit.toNanos(idleTimeout);
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return the new session, or null if there are already maxSessions uploads in progress,
+     *         or maxSessionsPerUser of this user's
+     */
+    public UploadSession create( String userName, String userId, String filename, String contentType, long size )
+            throws IOException {
+        prepare();
+        expireIdle();
+        if( !takeSlot(userId) ) {
+            return null;
+        }
+        boolean created = false;
+        try {
+            byte[] idBytes = new byte[16];
+            random.nextBytes(idBytes);
+            StringBuilder id = new StringBuilder();
+            for( byte b : idBytes ) {
+                id.append(String.format("%02x", b));
+            }
+            Path sessionDirectory = Files.createDirectory(directory.resolve(id.toString()));
+            UploadSession session = new UploadSession( id.toString(), userName, userId, filename, contentType,
+                    size, chunkSize, sessionDirectory );
+            sessions.put(session.id, session);
+            created = true;
+            return session;
+        } finally {
+            if( !created ) {
+                releaseSlot(userId);
+            }
+        }
+    }
+
+    /**
+     * @return the session, or null if there's no such upload (any more)
+     */
+    public UploadSession get( String id ) {
+        UploadSession session = id == null ? null : sessions.get(id);
+        if( session != null ) {
+            session.touch();
+        }
+        return session;
+    }
+
+    /**
+     * Forgets the session, and deletes its chunks.
+     */
+    public void remove( UploadSession session ) {
+        if( sessions.remove(session.id, session) ) {
+            releaseSlot(session.userId);
+        }
+        try {
+            session.delete();
+        } catch ( IOException e ) {
+            log.warn("Could not clean up upload " + session.id + ": " + Exceptions.asString(e));
+        }
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    /**
+     * Takes one of the user's slots, and one overall, unless either is already used up.
+     */
+    private boolean takeSlot( String userId ) {
+        int taken;
+        do {
+            taken = slots.get();
+            if( taken >= maxSessions ) {
+                return false;
+            }
+        } while( !slots.compareAndSet(taken, taken + 1) );
+        boolean[] tookUserSlot = new boolean[1];
+        userSlots.compute(userId, (user, userTaken) -> {
+            int count = userTaken == null ? 0 : userTaken;
+            if( count >= maxSessionsPerUser ) {
+                return userTaken;
+            }
+            tookUserSlot[0] = true;
+            return count + 1;
+        });
+        if( !tookUserSlot[0] ) {
+            slots.decrementAndGet();
+        }
+        return tookUserSlot[0];
+    }
+
+    private void releaseSlot( String userId ) {
+        userSlots.computeIfPresent(userId, (user, taken) -> taken > 1 ? taken - 1 : null);
+        slots.decrementAndGet();
+    }
+
+    private void expireIdle() {
+        for( Iterator<UploadSession> it = sessions.values().iterator(); it.hasNext(); ) {
+            UploadSession session = it.next();
+            if( session.idleNanos() > idleNanos && !session.isClosed() ) {
+                log.info("Abandoning idle upload " + session.id + " of " + session.filename);
+                remove(session);
+            }
+        }
+    }
+
+    private synchronized void prepare() throws IOException {
+        if( prepared ) {
+            return;
+        }
+        //anything in here is from a previous run, and its sessions are gone
+        Files.createDirectories(directory);
+        FileUtils.cleanDirectory(directory.toFile());
+        prepared = true;
+    }
+}
@@ -0,0 +1,108 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.auth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CoalescingAccessValidatorTest {
+
+    @Test
+    public void testConcurrentChecksShareOneCall() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        CoalescingAccessValidator validator = new CoalescingAccessValidator( (token, userId) -> {
+            calls.incrementAndGet();
+            try {
+                release.await();
+            } catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }, Runnable::run, 10, 1, 0, 1, TimeUnit.HOURS );
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for( int i = 0; i < 8; ++i ) {
+                results.add(executor.submit(() -> validator.isValid("token", "user")));
+            }
+            //give them all a chance to pile up behind the first
+            Thread.sleep(100);
+            release.countDown();
+            for( Future<Boolean> result : results ) {
+                assertTrue(result.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, calls.get());
+        assertTrue(validator.isValid("token", "user"));
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testRejectionsAreRememberedBriefly() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CoalescingAccessValidator validator = new CoalescingAccessValidator( (token, userId) -> {
+            calls.incrementAndGet();
+            return false;
+        }, Runnable::run, 10, 1000, 0, 20, TimeUnit.MILLISECONDS );
+        assertFalse(validator.isValid("token", "user"));
+        assertFalse(validator.isValid("token", "user"));
+        assertEquals(1, calls.get());
+        Thread.sleep(40);
+        assertFalse(validator.isValid("token", "user"));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void testRefreshesInTheBackground() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        AtomicBoolean valid = new AtomicBoolean(true);
+        List<Runnable> queued = new ArrayList<>();
+        CoalescingAccessValidator validator = new CoalescingAccessValidator( (token, userId) -> {
+            calls.incrementAndGet();
+            return valid.get();
+        }, queued::add, 10, 1000, 990, 1000, TimeUnit.MILLISECONDS );
+        assertTrue(validator.isValid("token", "user"));
+        Thread.sleep(20);
+        //due for refresh: still answered from what we have, with one refresh queued
+        valid.set(false);
+        assertTrue(validator.isValid("token", "user"));
+        assertTrue(validator.isValid("token", "user"));
+        assertEquals(1, calls.get());
+        assertEquals(1, queued.size());
+        queued.get(0).run();
+        assertEquals(2, calls.get());
+        assertFalse(validator.isValid("token", "user"));
+    }
+}
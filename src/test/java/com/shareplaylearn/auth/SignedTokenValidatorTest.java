@@ -0,0 +1,106 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.auth;
+
+import org.junit.Test;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+import java.util.Base64;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * All offline: the fallback here stands in for the auth service.
+ */
+public class SignedTokenValidatorTest {
+
+    private static final byte[] SECRET = "not a very good secret, but a test one".getBytes(StandardCharsets.UTF_8);
+    private static final AccessValidator REMOTE = (token, userId) -> token.equals("remote-token");
+
+    private static String encode( String json ) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String claims( String userId, long secondsFromNow ) {
+        return encode("{\"sub\":\"" + userId + "\",\"exp\":" +
+                (System.currentTimeMillis() / 1000 + secondsFromNow) + "}");
+    }
+
+    private static String hmacToken( byte[] secret, String claims ) throws Exception {
+        String signed = encode("{\"alg\":\"HS256\",\"typ\":\"JWT\"}") + "." + claims;
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+        return signed + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(
+                mac.doFinal(signed.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    @Test
+    public void testHmacTokens() throws Exception {
+        SignedTokenValidator validator = new SignedTokenValidator(SECRET, null, REMOTE);
+        assertTrue(validator.isValid(hmacToken(SECRET, claims("user", 60)), "user"));
+        //someone else's token
+        assertFalse(validator.isValid(hmacToken(SECRET, claims("user", 60)), "otherUser"));
+        //expired (well past the allowed skew)
+        assertFalse(validator.isValid(hmacToken(SECRET, claims("user", -600)), "user"));
+        //signed with the wrong key
+        assertFalse(validator.isValid(hmacToken("wrong".getBytes(StandardCharsets.UTF_8), claims("user", 60)), "user"));
+        //claims swapped out from under the signature
+        String token = hmacToken(SECRET, claims("user", 60));
+        String[] parts = token.split("\\.");
+        assertFalse(validator.isValid(parts[0] + "." + claims("otherUser", 60) + "." + parts[2], "otherUser"));
+    }
+
+    @Test
+    public void testRsaTokens() throws Exception {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        String pem = "-----BEGIN PUBLIC KEY-----\n" +
+                Base64.getMimeEncoder().encodeToString(keyPair.getPublic().getEncoded()) +
+                "\n-----END PUBLIC KEY-----\n";
+        SignedTokenValidator validator = new SignedTokenValidator(null, SignedTokenValidator.readPublicKey(pem), REMOTE);
+
+        String signed = encode("{\"alg\":\"RS256\"}") + "." + claims("user", 60);
+        Signature signer = Signature.getInstance("SHA256withRSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(signed.getBytes(StandardCharsets.US_ASCII));
+        String token = signed + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(signer.sign());
+
+        assertTrue(validator.isValid(token, "user"));
+        assertFalse(validator.isValid(token, "otherUser"));
+        assertFalse(validator.isValid(signed + ".AAAA", "user"));
+    }
+
+    @Test
+    public void testEverythingElseFallsBack() throws Exception {
+        SignedTokenValidator validator = new SignedTokenValidator(SECRET, null, REMOTE);
+        assertTrue(validator.isValid("remote-token", "user"));
+        assertFalse(validator.isValid("some-other-token", "user"));
+        //no RSA key configured, so that's for the auth service to decide
+        assertFalse(validator.isValid(encode("{\"alg\":\"RS256\"}") + "." + claims("user", 60) + ".AAAA", "user"));
+        //an unsigned token is never trusted locally
+        assertFalse(validator.isValid(encode("{\"alg\":\"none\"}") + "." + claims("user", 60) + ".", "user"));
+        assertFalse(new SignedTokenValidator(SECRET, null, null).isValid("remote-token", "user"));
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.cache;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ExpiringCacheTest {
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        ExpiringCache<String,String> cache = new ExpiringCache<>(2, 1, TimeUnit.HOURS);
+        cache.put("a", "1", cache.generation("a"));
+        cache.put("b", "2", cache.generation("b"));
+        assertEquals("1", cache.get("a"));
+        cache.put("c", "3", cache.generation("c"));
+        assertNull(cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    public void testEntriesExpire() throws InterruptedException {
+        ExpiringCache<String,String> cache = new ExpiringCache<>(2, 10, TimeUnit.MILLISECONDS);
+        cache.put("a", "1", cache.generation("a"));
+        Thread.sleep(20);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testInvalidation() {
+        ExpiringCache<String,String> cache = new ExpiringCache<>(2, 1, TimeUnit.HOURS);
+        cache.put("a", "1", cache.generation("a"));
+        long generation = cache.generation("a");
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+        //fetched before the invalidation, so it may be stale
+        cache.put("a", "1", generation);
+        assertNull(cache.get("a"));
+        assertNull(ExpiringCache.disabled().get("a"));
+    }
+
+    @Test
+    public void testInvalidationOnlyAffectsItsKey() {
+        ExpiringCache<String,String> cache = new ExpiringCache<>(2, 1, TimeUnit.HOURS);
+        long generation = cache.generation("b");
+        //another user's upload, while b's list was being fetched
+        cache.invalidate("a");
+        cache.put("b", "2", generation);
+        assertEquals("2", cache.get("b"));
+        assertEquals(1L, (long) cache.stats().get("invalidations"));
+    }
+}
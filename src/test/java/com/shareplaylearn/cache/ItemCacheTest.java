@@ -0,0 +1,125 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.cache;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ItemCacheTest {
+
+    private static ItemKey key( String filename ) {
+        return new ItemKey("TestId", "unknown", "original", filename);
+    }
+
+    @Test
+    public void testMemoryEvictionSpillsToDisk() throws IOException {
+        Path directory = Files.createTempDirectory("ItemCacheTest");
+        ItemCache cache = new ItemCache(10, 10, directory, 100);
+        cache.put(key("a"), new byte[6], cache.generation("TestId"));
+        cache.put(key("b"), new byte[6], cache.generation("TestId"));
+
+        assertArrayEquals(new byte[6], cache.get(key("a")));
+        assertEquals(1L, (long) cache.stats().get("diskHits"));
+        assertArrayEquals(new byte[6], cache.get(key("a")));
+        assertEquals(1L, (long) cache.stats().get("memoryHits"));
+        assertNull(cache.get(key("c")));
+        assertEquals(1L, (long) cache.stats().get("misses"));
+    }
+
+    @Test
+    public void testStartupOnlyClearsTheCachesOwnFiles() throws IOException {
+        Path directory = Files.createTempDirectory("ItemCacheTest");
+        Path unrelated = Files.write(directory.resolve("notes.txt"), new byte[1]);
+        Path nested = Files.createDirectories(directory.resolve("other"));
+        Files.write(nested.resolve("file"), new byte[1]);
+        ItemCache cache = new ItemCache(10, 10, directory, 100);
+        cache.put(key("a"), new byte[6], cache.generation("TestId"));
+        cache.put(key("b"), new byte[6], cache.generation("TestId"));
+        Path spilled;
+        try (Stream<Path> files = Files.list(directory)) {
+            spilled = files.filter(path -> path.toString().endsWith(".cached")).findFirst().get();
+        }
+        Path halfWritten = Files.createTempFile(directory, "spill", ".tmp");
+
+        new ItemCache(10, 10, directory, 100);
+        assertFalse(Files.exists(spilled));
+        assertFalse(Files.exists(halfWritten));
+        assertTrue(Files.exists(unrelated));
+        assertTrue(Files.exists(nested.resolve("file")));
+    }
+
+    @Test
+    public void testInvalidateDropsAllTiers() throws IOException {
+        Path directory = Files.createTempDirectory("ItemCacheTest");
+        ItemCache cache = new ItemCache(10, 10, directory, 100);
+        cache.put(key("a"), new byte[6], cache.generation("TestId"));
+        cache.put(key("b"), new byte[6], cache.generation("TestId"));
+        cache.invalidate("TestId", "a");
+        cache.invalidate("TestId", "b");
+        assertNull(cache.get(key("a")));
+        assertNull(cache.get(key("b")));
+        assertEquals(0L, (long) cache.stats().get("diskBytes"));
+    }
+
+    @Test
+    public void testStaleFetchIsNotCached() {
+        ItemCache cache = new ItemCache(100, 100);
+        long generation = cache.generation("TestId");
+        cache.invalidate("TestId", "a");
+        cache.put(key("a"), new byte[1], generation);
+        assertNull(cache.get(key("a")));
+    }
+
+    @Test
+    public void testInvalidationOnlyAffectsTheUsersFetches() throws IOException {
+        ItemCache cache = new ItemCache(10, 10, Files.createTempDirectory("ItemCacheTest"), 100);
+        long generation = cache.generation("TestId");
+        long otherGeneration = cache.generation("OtherId");
+        cache.invalidate("OtherId", "a");
+        //another user's upload doesn't stop this user's fetch being cached
+        cache.put(key("a"), new byte[6], generation);
+        assertArrayEquals(new byte[6], cache.get(key("a")));
+        //but theirs isn't
+        ItemKey other = new ItemKey("OtherId", "unknown", "original", "b");
+        cache.put(other, new byte[6], otherGeneration);
+        assertNull(cache.get(other));
+
+        //and this user's entry, pushed out to disk by theirs, is still good
+        cache.put(other, new byte[6], cache.generation("OtherId"));
+        assertArrayEquals(new byte[6], cache.get(key("a")));
+        assertEquals(1L, (long) cache.stats().get("diskHits"));
+    }
+
+    @Test
+    public void testLargeItemsAreNotCached() {
+        ItemCache cache = new ItemCache(100, 10);
+        cache.put(key("a"), new byte[11], cache.generation("TestId"));
+        assertNull(cache.get(key("a")));
+        assertNull(ItemCache.disabled().get(key("a")));
+    }
+}
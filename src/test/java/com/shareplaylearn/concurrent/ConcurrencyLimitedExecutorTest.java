@@ -0,0 +1,65 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.concurrent;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class ConcurrencyLimitedExecutorTest {
+
+    @Test
+    public void testCallerRunsPastTheLimit() throws Exception {
+        ExecutorService executor = new ConcurrencyLimitedExecutor(Executors.newCachedThreadPool(), 1);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread caller = Thread.currentThread();
+        Future<Thread> first = executor.submit( () -> {
+            started.countDown();
+            release.await();
+            return Thread.currentThread();
+        });
+        started.await();
+        assertEquals(caller, executor.submit(Thread::currentThread).get());
+        release.countDown();
+        assertNotEquals(caller, first.get());
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testVirtualThreadsOnlyWhereSupported() throws Exception {
+        ExecutorService executor = BoundedExecutors.virtualThreads(2);
+        if( !BoundedExecutors.virtualThreadsSupported() ) {
+            assertNull(executor);
+            return;
+        }
+        assertNotNull(executor);
+        assertEquals("done", executor.submit(() -> "done").get());
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.concurrent;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTest {
+
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+    }
+
+    /**
+     * Waits until the load's in flight, and the given number of callers are waiting on it.
+     */
+    private static void awaitWaiters( SingleFlight<?,?> flight, long waiters ) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while( flight.coalesced() < waiters ) {
+            assertTrue("Callers never joined the load", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testConcurrentCallersShareOneLoad() throws Exception {
+        SingleFlight<String,byte[]> flight = new SingleFlight<>();
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        byte[] bytes = new byte[] { 1, 2, 3 };
+        List<Future<byte[]>> results = new ArrayList<>();
+        for( int i = 0; i < 4; ++i ) {
+            results.add( callers.submit( () -> flight.get("item", () -> {
+                loads.incrementAndGet();
+                started.countDown();
+                release.await();
+                return bytes;
+            }) ) );
+        }
+        started.await();
+        awaitWaiters(flight, 3);
+        release.countDown();
+        for( Future<byte[]> result : results ) {
+            assertSame(bytes, result.get(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loads.get());
+        assertEquals(1L, flight.loads());
+        assertEquals(3L, flight.coalesced());
+        assertEquals(0, flight.inFlight());
+    }
+
+    @Test
+    public void testLoaderExceptionReachesEveryWaiter() throws Exception {
+        SingleFlight<String,byte[]> flight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Future<byte[]>> results = new ArrayList<>();
+        for( int i = 0; i < 3; ++i ) {
+            results.add( callers.submit( () -> flight.get("item", () -> {
+                started.countDown();
+                release.await();
+                throw new IllegalStateException("storage is down");
+            }) ) );
+        }
+        started.await();
+        awaitWaiters(flight, 2);
+        release.countDown();
+        for( Future<byte[]> result : results ) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("Expected the loader's exception");
+            } catch ( ExecutionException e ) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+                assertEquals("storage is down", e.getCause().getMessage());
+            }
+        }
+        //a failed load isn't remembered
+        assertEquals(0, flight.inFlight());
+        assertSame("ok", new SingleFlight<String,String>().get("item", () -> "ok"));
+    }
+
+    @Test
+    public void testWaiterTimingOutDoesntCancelTheLoad() throws Exception {
+        SingleFlight<String,String> flight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> loader = callers.submit( () -> flight.get("item", () -> {
+            started.countDown();
+            release.await();
+            return "loaded";
+        }) );
+        started.await();
+        Future<String> patient = callers.submit( () -> flight.get("item", () -> "not run", 5, TimeUnit.SECONDS) );
+        awaitWaiters(flight, 1);
+        try {
+            flight.get("item", () -> "not run", 10, TimeUnit.MILLISECONDS);
+            fail("Expected to give up waiting");
+        } catch ( TimeoutException e ) {
+            //expected
+        }
+        release.countDown();
+        assertEquals("loaded", loader.get(5, TimeUnit.SECONDS));
+        assertEquals("loaded", patient.get(5, TimeUnit.SECONDS));
+        assertEquals(1L, flight.loads());
+    }
+
+    @Test
+    public void testLoadsUnderDifferentKeysArentShared() throws Exception {
+        //FileResource keys fetches by cache generation too, so a fetch started before an invalidation
+        //isn't joined by a request that arrives after it
+        SingleFlight<List<Object>,String> flight = new SingleFlight<>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Future<String> before = callers.submit( () -> flight.get(Arrays.asList(0L, "item"), () -> {
+            started.countDown();
+            release.await();
+            return "old";
+        }) );
+        started.await();
+        assertEquals("new", flight.get(Arrays.asList(1L, "item"), () -> "new"));
+        release.countDown();
+        assertEquals("old", before.get(5, TimeUnit.SECONDS));
+        assertEquals(2L, flight.loads());
+        assertEquals(0L, flight.coalesced());
+    }
+}
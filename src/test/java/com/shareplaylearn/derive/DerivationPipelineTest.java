@@ -0,0 +1,109 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.derive;
+
+import com.shareplaylearn.cache.ItemKey;
+import com.shareplaylearn.metrics.Metrics;
+import com.shareplaylearn.models.ItemSchema;
+import com.shareplaylearn.storage.LocalItemStore;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DerivationPipelineTest {
+
+    private static final String PREVIEW = ItemSchema.PresentationType.PREVIEW_PRESENTATION_TYPE.toString();
+    private static final String THUMBNAIL = ItemSchema.PresentationType.THUMBNAIL_PRESENTATION_TYPE.toString();
+
+    private static byte[] png( int width, int height ) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testStoresThatDontTakePresentations() throws Exception {
+        LocalItemStore store = new LocalItemStore(Files.createTempDirectory("store")) {
+            @Override
+            public boolean putPresentation( String userName, ItemKey key, byte[] bytes ) {
+                return false;
+            }
+        };
+        List<String> derived = Collections.synchronizedList(new ArrayList<>());
+        DerivationPipeline pipeline = new DerivationPipeline( () -> store,
+                DerivationPipeline.defaultDerivations(80, 20), 1, 10, new Metrics(),
+                (userId, filename) -> derived.add(userId + "/" + filename) );
+        store.put("user", "user1", "picture.png", png(400, 200));
+        pipeline.submit("user", "user1", "picture.png");
+        assertTrue(pipeline.await("user1", "picture.png", 10, TimeUnit.SECONDS));
+        assertTrue(derived.isEmpty());
+        assertEquals(1L, (long) pipeline.stats().get("skipped"));
+        assertEquals(0L, (long) pipeline.stats().get("failed"));
+    }
+
+    @Test
+    public void testDerivesScaledPresentations() throws Exception {
+        LocalItemStore store = new LocalItemStore(Files.createTempDirectory("store"));
+        List<String> derived = Collections.synchronizedList(new ArrayList<>());
+        DerivationPipeline pipeline = new DerivationPipeline( () -> store,
+                DerivationPipeline.defaultDerivations(80, 20), 1, 10, new Metrics(),
+                (userId, filename) -> derived.add(userId + "/" + filename) );
+        byte[] original = png(400, 200);
+        store.put("user", "user1", "picture.png", original);
+        pipeline.submit("user", "user1", "picture.png");
+        assertTrue(pipeline.await("user1", "picture.png", 10, TimeUnit.SECONDS));
+        assertFalse(pipeline.isPending("user1", "picture.png"));
+
+        BufferedImage thumbnail = ImageIO.read(new ByteArrayInputStream(
+                store.get("user", new ItemKey("user1", "image", THUMBNAIL, "picture.png"))));
+        assertEquals(20, thumbnail.getWidth());
+        assertEquals(10, thumbnail.getHeight());
+        BufferedImage preview = ImageIO.read(new ByteArrayInputStream(
+                store.get("user", new ItemKey("user1", "image", PREVIEW, "picture.png"))));
+        assertEquals(80, preview.getWidth());
+        assertEquals(Arrays.asList("user1/picture.png"), derived);
+        assertEquals(1L, (long) pipeline.stats().get("completed"));
+        assertEquals(0L, (long) pipeline.stats().get("queued"));
+    }
+
+    @Test
+    public void testSkipsWhatIsNotAnImage() throws Exception {
+        LocalItemStore store = new LocalItemStore(Files.createTempDirectory("store"));
+        DerivationPipeline pipeline = new DerivationPipeline( () -> store,
+                DerivationPipeline.defaultDerivations(80, 20), 1, 10, new Metrics(), (userId, filename) -> {} );
+        store.put("user", "user1", "notes.png", "not a picture".getBytes(StandardCharsets.US_ASCII));
+        pipeline.submit("user", "user1", "notes.png");
+        assertTrue(pipeline.await("user1", "notes.png", 10, TimeUnit.SECONDS));
+        assertEquals(1L, (long) pipeline.stats().get("skipped"));
+        assertEquals(0L, (long) pipeline.stats().get("failed"));
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.http;
+
+import org.junit.Test;
+
+import static com.shareplaylearn.http.AdmissionController.Kind.LARGE;
+import static com.shareplaylearn.http.AdmissionController.Kind.REQUEST;
+import static com.shareplaylearn.http.AdmissionController.Kind.UPLOAD;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionControllerTest {
+
+    @Test
+    public void testPerUserLimit() {
+        AdmissionController admission = new AdmissionController(2, 0, 0, 0, 1);
+        AdmissionController.Ticket first = admission.enter("a", REQUEST, 0);
+        AdmissionController.Ticket second = admission.enter("a", REQUEST, 0);
+        AdmissionController.Ticket third = admission.enter("a", REQUEST, 0);
+        assertTrue(first.admitted());
+        assertTrue(second.admitted());
+        assertEquals(429, third.rejectedWith);
+        //other users are unaffected
+        assertTrue(admission.enter("b", REQUEST, 0).admitted());
+
+        first.close();
+        third.close();
+        assertTrue(admission.enter("a", REQUEST, 0).admitted());
+        assertEquals(1L, (long) admission.stats().get("rejectedPerUser"));
+    }
+
+    @Test
+    public void testUsersKnownOnceRead() {
+        AdmissionController admission = new AdmissionController(1, 0, 0, 0, 1);
+        //a form upload, before it's read: we can't tell whose it is, so only the other limits apply
+        AdmissionController.Ticket unread = admission.enter(null, UPLOAD, 10);
+        AdmissionController.Ticket another = admission.enter(null, UPLOAD, 10);
+        assertTrue(unread.admitted());
+        assertTrue(another.admitted());
+        //once read, it counts against the user's requests, wherever it came from
+        AdmissionController.Ticket first = admission.enterAsUser("a");
+        assertTrue(first.admitted());
+        assertEquals(429, admission.enterAsUser("a").rejectedWith);
+        assertTrue(admission.enterAsUser("b").admitted());
+        first.close();
+        assertTrue(admission.enterAsUser("a").admitted());
+        unread.close();
+        another.close();
+        assertEquals(1L, (long) admission.stats().get("rejectedPerUser"));
+    }
+
+    @Test
+    public void testUploadBytesAndLargeLane() {
+        AdmissionController admission = new AdmissionController(0, 100, 1, 50, 1);
+        AdmissionController.Ticket small = admission.enter("a", UPLOAD, 40);
+        AdmissionController.Ticket big = admission.enter("b", UPLOAD, 60);
+        assertTrue(small.admitted());
+        assertTrue(big.admitted());
+        //over the upload bytes
+        assertEquals(503, admission.enter("c", UPLOAD, 10).rejectedWith);
+        small.close();
+        //the large lane is taken by the 60 byte upload
+        assertEquals(503, admission.enter("c", UPLOAD, 51).rejectedWith);
+        assertEquals(503, admission.enter("c", LARGE, 0).rejectedWith);
+        assertFalse(admission.enterLargeLane());
+        //but small requests aren't held up behind it
+        assertTrue(admission.enter("c", UPLOAD, 10).admitted());
+        assertTrue(admission.enter("c", REQUEST, 0).admitted());
+
+        big.close();
+        assertTrue(admission.enterLargeLane());
+        admission.leaveLargeLane();
+        assertEquals(10L, (long) admission.stats().get("uploadBytesInFlight"));
+    }
+
+    @Test
+    public void testDisabledAdmitsEverything() {
+        AdmissionController admission = AdmissionController.disabled();
+        for( int i = 0; i < 100; ++i ) {
+            assertTrue(admission.enter("a", UPLOAD, -1).admitted());
+            assertTrue(admission.enterLargeLane());
+        }
+        assertFalse(admission.isLarge(Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.http;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncBodyTest {
+
+    private final ExecutorService reads = Executors.newFixedThreadPool(2);
+
+    @After
+    public void tearDown() {
+        reads.shutdownNow();
+    }
+
+    /**
+     * A client that only takes a write when it's told it can.
+     */
+    private static final class SlowClient extends ServletOutputStream {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        volatile boolean ready;
+        volatile WriteListener listener;
+
+        @Override
+        public synchronized boolean isReady() {
+            return ready;
+        }
+
+        @Override
+        public void setWriteListener( WriteListener listener ) {
+            this.listener = listener;
+        }
+
+        @Override
+        public synchronized void write( int b ) {
+            received.write(b);
+        }
+
+        @Override
+        public synchronized void write( byte[] b, int off, int len ) {
+            received.write(b, off, len);
+            //as if the write didn't finish at once
+            ready = false;
+        }
+
+        //what the container does once the client's taken the last write
+        void take() throws IOException {
+            synchronized( this ) {
+                ready = true;
+            }
+            listener.onWritePossible();
+        }
+    }
+
+    private static final class Exchange {
+        final SlowClient client = new SlowClient();
+        final Map<String,Object> attributes = new HashMap<>();
+        final List<AsyncListener> listeners = new ArrayList<>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        final HttpServletRequest request;
+        final HttpServletResponse response;
+
+        Exchange() {
+            AsyncContext async = (AsyncContext) Proxy.newProxyInstance( getClass().getClassLoader(),
+                    new Class<?>[] { AsyncContext.class }, (proxy, method, args) -> {
+                        if( method.getName().equals("addListener") ) {
+                            listeners.add((AsyncListener) args[0]);
+                        } else if( method.getName().equals("complete") ) {
+                            for( AsyncListener listener : listeners ) {
+                                listener.onComplete(null);
+                            }
+                            completed.countDown();
+                        }
+                        return null;
+                    } );
+            request = (HttpServletRequest) Proxy.newProxyInstance( getClass().getClassLoader(),
+                    new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+                        switch( method.getName() ) {
+                            case "startAsync":
+                                return async;
+                            case "setAttribute":
+                                attributes.put((String) args[0], args[1]);
+                                return null;
+                            case "getAttribute":
+                                return attributes.get(args[0]);
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    } );
+            response = (HttpServletResponse) Proxy.newProxyInstance( getClass().getClassLoader(),
+                    new Class<?>[] { HttpServletResponse.class }, (proxy, method, args) -> {
+                        switch( method.getName() ) {
+                            case "getOutputStream":
+                                return client;
+                            case "flushBuffer":
+                                return null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    } );
+        }
+    }
+
+    private static byte[] randomBytes( int size ) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void takeAll( Exchange exchange ) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while( !exchange.completed.await(1, TimeUnit.MILLISECONDS) ) {
+            assertTrue("Never completed", System.nanoTime() < deadline);
+            exchange.client.take();
+        }
+    }
+
+    @Test
+    public void testSegmentsAreWrittenInOrder() throws Exception {
+        byte[] first = randomBytes(200 * 1024 + 17);
+        byte[] second = randomBytes(3);
+        Exchange exchange = new Exchange();
+        AsyncBody.write( exchange.request, exchange.response, Arrays.asList(
+                () -> new ByteArrayInputStream(first), () -> new ByteArrayInputStream(second)), reads );
+        takeAll(exchange);
+        byte[] expected = new byte[first.length + second.length];
+        System.arraycopy(first, 0, expected, 0, first.length);
+        System.arraycopy(second, 0, expected, first.length, second.length);
+        assertArrayEquals(expected, exchange.client.received.toByteArray());
+    }
+
+    @Test
+    public void testCallbacksWaitUntilTheBodyIsWritten() throws Exception {
+        Exchange exchange = new Exchange();
+        CountDownLatch opened = new CountDownLatch(1);
+        AsyncBody.write( exchange.request, exchange.response, Arrays.asList( () -> {
+            //opened off the request thread, even though the client isn't ready
+            opened.countDown();
+            return new ByteArrayInputStream(randomBytes(10));
+        } ), reads );
+        AtomicBoolean released = new AtomicBoolean();
+        assertTrue(AsyncBody.whenWritten(exchange.request, () -> released.set(true)));
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+        assertFalse(released.get());
+
+        takeAll(exchange);
+        assertTrue(released.get());
+        assertEquals(10, exchange.client.received.size());
+        //callbacks after the fact run at once
+        AtomicBoolean late = new AtomicBoolean();
+        AsyncBody.whenWritten(exchange.request, () -> late.set(true));
+        assertTrue(late.get());
+    }
+
+    @Test
+    public void testNotAnAsyncBody() {
+        Exchange exchange = new Exchange();
+        assertFalse(AsyncBody.whenWritten(exchange.request, () -> { }));
+    }
+}
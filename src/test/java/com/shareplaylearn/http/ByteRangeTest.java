@@ -0,0 +1,95 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.http;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ByteRangeTest {
+
+    @Test
+    public void testSimpleRanges() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=500-599, 0-99, -50", 1000);
+        assertEquals(3, ranges.size());
+        //ranges that don't touch stay in the order asked for
+        assertEquals("500-599", ranges.get(0).toString());
+        assertEquals("0-99", ranges.get(1).toString());
+        assertEquals("950-999", ranges.get(2).toString());
+        assertEquals("bytes 0-99/1000", ranges.get(1).contentRange(1000));
+        assertEquals("200-999", ByteRange.parse("bytes=200-", 1000).get(0).toString());
+    }
+
+    @Test
+    public void testRangesAreClamped() {
+        assertEquals("10-99", ByteRange.parse("bytes=10-5000", 100).get(0).toString());
+        assertEquals("0-99", ByteRange.parse("bytes=-5000", 100).get(0).toString());
+    }
+
+    @Test
+    public void testOverlappingRangesAreMerged() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=50-60, 0-20, 10-30, 55-99", 100);
+        assertEquals(2, ranges.size());
+        assertEquals("0-30", ranges.get(0).toString());
+        assertEquals("50-99", ranges.get(1).toString());
+        //clamped ranges can overlap too
+        ranges = ByteRange.parse("bytes=10-5000,-5000", 100);
+        assertEquals(1, ranges.size());
+        assertEquals("0-99", ranges.get(0).toString());
+    }
+
+    @Test
+    public void testDuplicateRangesAreSentOnce() {
+        StringBuilder header = new StringBuilder("bytes=0-");
+        for( int i = 1; i < ByteRange.MAX_RANGES; ++i ) {
+            header.append(",0-");
+        }
+        List<ByteRange> ranges = ByteRange.parse(header.toString(), 1000);
+        assertEquals(1, ranges.size());
+        assertEquals("0-999", ranges.get(0).toString());
+        assertEquals(1, ByteRange.parse("bytes=5-9,5-9", 100).size());
+    }
+
+    @Test
+    public void testAdjacentRangesAreMerged() {
+        List<ByteRange> ranges = ByteRange.parse("bytes=10-19,0-9,20-29", 100);
+        assertEquals(1, ranges.size());
+        assertEquals("0-29", ranges.get(0).toString());
+        //a gap of a byte is still a gap
+        assertEquals(2, ByteRange.parse("bytes=0-9,11-19", 100).size());
+    }
+
+    @Test
+    public void testUnsatisfiable() {
+        assertTrue(ByteRange.parse("bytes=100-200", 100).isEmpty());
+        assertTrue(ByteRange.parse("bytes=-0", 100).isEmpty());
+    }
+
+    @Test
+    public void testInvalidRangesAreIgnored() {
+        assertNull(ByteRange.parse(null, 100));
+        assertNull(ByteRange.parse("items=0-1", 100));
+        assertNull(ByteRange.parse("bytes=5-1", 100));
+        assertNull(ByteRange.parse("bytes=abc", 100));
+        assertNull(ByteRange.parse("bytes=1-x", 100));
+    }
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.http;
+
+import com.shareplaylearn.cache.ItemKey;
+import com.shareplaylearn.storage.LocalItemStore;
+import com.shareplaylearn.storage.ItemStore;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadRedirectsTest {
+
+    private static final ItemKey ITEM = new ItemKey("user 1", "image", "original", "a picture.jpg");
+
+    private static DownloadRedirects redirects( long ttlSeconds ) {
+        return new DownloadRedirects( 1000, Collections.singleton("preview"), ttlSeconds, TimeUnit.SECONDS );
+    }
+
+    @Test
+    public void testUrlsComeFromTheStore() throws Exception {
+        long[] expiry = new long[1];
+        ItemStore presigning = new LocalItemStore(Files.createTempDirectory("store")) {
+            @Override
+            public String presign( String userName, ItemKey key, long expiresAtMillis ) {
+                expiry[0] = expiresAtMillis;
+                return "http://bucket.example.com/" + key.filename;
+            }
+        };
+        long before = System.currentTimeMillis();
+        assertEquals("http://bucket.example.com/a picture.jpg", redirects(60).url(presigning, "user", ITEM));
+        assertTrue(expiry[0] >= before + 60000);
+        assertTrue(expiry[0] <= System.currentTimeMillis() + 60000);
+    }
+
+    @Test
+    public void testStoresThatCannotPresignAreNotRedirected() throws Exception {
+        assertNull(redirects(60).url(new LocalItemStore(Files.createTempDirectory("store")), "user", ITEM));
+    }
+
+    @Test
+    public void testWhatIsRedirected() {
+        DownloadRedirects redirects = redirects(60);
+        assertTrue(redirects.redirects("preview"));
+        assertFalse(redirects.redirects("thumbnail"));
+        assertTrue(redirects.redirects(1000L));
+        assertFalse(redirects.redirects(999L));
+        assertFalse(DownloadRedirects.disabled().redirects(Long.MAX_VALUE));
+    }
+}
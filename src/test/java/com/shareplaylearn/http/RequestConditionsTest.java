@@ -0,0 +1,81 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.http;
+
+import com.shareplaylearn.storage.ContentIndex;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RequestConditionsTest {
+
+    private static final String LAST_MODIFIED = "Sun, 10 Jul 2016 12:00:00 GMT";
+    private static final String EARLIER = "Sat, 09 Jul 2016 12:00:00 GMT";
+    private final Validator validator = new Validator(
+            ItemValidators.etagFor("test".getBytes(StandardCharsets.UTF_8)),
+            RequestConditions.parseDate(LAST_MODIFIED) + 123 );
+
+    @Test
+    public void testIfNoneMatch() {
+        assertTrue(new RequestConditions(null, null, validator.etag, null).notModified(validator));
+        assertTrue(new RequestConditions(null, null, "\"x\", W/" + validator.etag, null).notModified(validator));
+        assertTrue(new RequestConditions(null, null, "*", null).notModified(validator));
+        //If-None-Match wins over If-Modified-Since
+        assertFalse(new RequestConditions(null, null, "\"x\"", LAST_MODIFIED).notModified(validator));
+        assertFalse(new RequestConditions(null, null, validator.etag, null).notModified(null));
+    }
+
+    @Test
+    public void testIfModifiedSince() {
+        assertTrue(new RequestConditions(null, null, null, LAST_MODIFIED).notModified(validator));
+        assertFalse(new RequestConditions(null, null, null, EARLIER).notModified(validator));
+        assertFalse(new RequestConditions(null, null, null, "yesterday").notModified(validator));
+    }
+
+    @Test
+    public void testIfRange() {
+        assertEquals("bytes=0-1", new RequestConditions("bytes=0-1", null, null, null).effectiveRange(null));
+        assertEquals("bytes=0-1", new RequestConditions("bytes=0-1", validator.etag, null, null).effectiveRange(validator));
+        assertEquals("bytes=0-1", new RequestConditions("bytes=0-1", LAST_MODIFIED, null, null).effectiveRange(validator));
+        assertNull(new RequestConditions("bytes=0-1", "\"stale\"", null, null).effectiveRange(validator));
+        assertNull(new RequestConditions("bytes=0-1", "W/" + validator.etag, null, null).effectiveRange(validator));
+        assertNull(new RequestConditions("bytes=0-1", EARLIER, null, null).effectiveRange(validator));
+        assertNull(new RequestConditions("bytes=0-1", validator.etag, null, null).effectiveRange(null));
+    }
+
+    @Test
+    public void testUnknownModificationTimes() {
+        Validator unknown = new Validator(validator.etag, Validator.UNKNOWN);
+        assertFalse(unknown.hasLastModified());
+        assertFalse(new RequestConditions(null, null, null, LAST_MODIFIED).notModified(unknown));
+        assertNull(new RequestConditions("bytes=0-1", "yesterday", null, null).effectiveRange(unknown));
+        assertTrue(new RequestConditions(null, null, validator.etag, null).notModified(unknown));
+    }
+
+    @Test
+    public void testDigestsGiveTheSameETagAsTheContent() {
+        byte[] content = "test".getBytes(StandardCharsets.UTF_8);
+        String digest = ContentIndex.hex(ContentIndex.newDigest().digest(content));
+        assertEquals(ItemValidators.etagFor(content), Validator.forDigest(digest, 0).etag);
+    }
+}
@@ -0,0 +1,57 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.io;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class StreamsTest {
+
+    private static byte[] randomBytes( int size ) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testReadFullyKnownSize() throws IOException {
+        byte[] bytes = randomBytes(Streams.CHUNK_SIZE * 3 + 17);
+        assertArrayEquals(bytes, Streams.readFully(new ByteArrayInputStream(bytes), bytes.length));
+    }
+
+    @Test
+    public void testReadFullyUnknownSize() throws IOException {
+        byte[] bytes = randomBytes(Streams.CHUNK_SIZE + 1);
+        assertArrayEquals(bytes, Streams.readFully(new ByteArrayInputStream(bytes), -1));
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadFullyShortStream() throws IOException {
+        Streams.readFully(new ByteArrayInputStream(randomBytes(10)), 11);
+    }
+
+    @Test(expected = IOException.class)
+    public void testReadFullyLongStream() throws IOException {
+        Streams.readFully(new ByteArrayInputStream(randomBytes(12)), 11);
+    }
+}
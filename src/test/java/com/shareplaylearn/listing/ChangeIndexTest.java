@@ -0,0 +1,110 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.listing;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ChangeIndexTest {
+
+    //items are "name=version"
+    private static final Function<String,String> NAME = item -> item.split("=")[0];
+
+    @Test
+    public void testPagingAndIncrementalSync() {
+        ChangeIndex<String> index = new ChangeIndex<>(NAME, Function.identity());
+        assertTrue(index.needsSync(TimeUnit.HOURS.toNanos(1)));
+        index.sync(Arrays.asList("a=1", "b=1", "c=1"), System.nanoTime());
+        assertFalse(index.needsSync(TimeUnit.HOURS.toNanos(1)));
+
+        ChangeIndex.Page<String> page = index.after(0, 2);
+        assertEquals(Arrays.asList("a=1", "b=1"), page.items);
+        assertTrue(page.hasMore);
+        page = index.after(page.lastSequence, 2);
+        assertEquals(Arrays.asList("c=1"), page.items);
+        assertFalse(page.hasMore);
+
+        long since = page.lastSequence;
+        assertTrue(index.after(since, 2).items.isEmpty());
+        assertEquals(since, index.after(since, 2).lastSequence);
+
+        index.markStale();
+        assertTrue(index.needsSync(TimeUnit.HOURS.toNanos(1)));
+        index.sync(Arrays.asList("a=2", "b=1", "c=1", "d=1"), System.nanoTime());
+        assertEquals(Arrays.asList("a=2", "d=1"), index.after(since, 10).items);
+        assertEquals(Arrays.asList("b=1", "c=1", "a=2", "d=1"), index.after(0, 10).items);
+    }
+
+    @Test
+    public void testListingFromBeforeAChangeLeavesItStale() {
+        ChangeIndex<String> index = new ChangeIndex<>(NAME, Function.identity());
+        long listedAt = System.nanoTime();
+        index.markStale();
+        index.sync(Arrays.asList("a=1"), listedAt);
+        assertTrue(index.needsSync(TimeUnit.HOURS.toNanos(1)));
+    }
+
+    @Test
+    public void testChangesAreAppliedWithoutAListing() {
+        FileListIndex<String> indexes = new FileListIndex<>(10, 0, TimeUnit.SECONDS, NAME, Function.identity());
+        ChangeIndex<String> index = indexes.forUser("TestId");
+        //nothing to apply to until the first listing
+        indexes.changed("TestId", "a=1");
+        assertTrue(index.needsSync(0));
+        long listedAt = System.nanoTime();
+        index.sync(Arrays.asList("a=1", "b=1"), listedAt);
+        long since = index.after(0, 10).lastSequence;
+
+        indexes.changed("TestId", "a=2");
+        indexes.changed("TestId", "c=1");
+        assertFalse(index.needsSync(0));
+        assertEquals(Arrays.asList("a=2", "c=1"), index.after(since, 10).items);
+
+        //a listing that started before they were applied doesn't undo them
+        index.sync(Arrays.asList("a=1", "b=1"), listedAt);
+        assertEquals(Arrays.asList("b=1", "a=2", "c=1"), index.after(0, 10).items);
+
+        //and what can't be applied leaves the index to be resynced
+        indexes.changed("TestId", null);
+        assertTrue(index.needsSync(0));
+    }
+
+    @Test
+    public void testCursors() {
+        FileListIndex<String> indexes = new FileListIndex<>(1, 1, TimeUnit.HOURS, NAME, Function.identity());
+        ChangeIndex<String> index = indexes.forUser("TestId");
+        String cursor = FileListIndex.cursor(index, 42);
+        assertEquals(42, FileListIndex.sequence(index, cursor));
+        //a new index for the user (e.g. after a restart) doesn't accept old cursors
+        indexes.forUser("OtherId");
+        assertEquals(-1, FileListIndex.sequence(indexes.forUser("TestId"), cursor));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedCursor() {
+        ChangeIndex<String> index = new ChangeIndex<>(NAME, Function.identity());
+        FileListIndex.sequence(index, "not a cursor");
+    }
+}
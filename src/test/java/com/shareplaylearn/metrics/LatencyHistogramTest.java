@@ -0,0 +1,61 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.metrics;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBucketsCoverEveryValue() {
+        long previousUpperBound = -1;
+        for( long micros = 0; micros < 100000; ++micros ) {
+            int bucket = LatencyHistogram.bucket(micros);
+            assertTrue(micros <= LatencyHistogram.upperBound(bucket));
+            if( bucket > 0 ) {
+                assertTrue(micros > LatencyHistogram.upperBound(bucket - 1));
+            }
+            assertTrue(LatencyHistogram.upperBound(bucket) >= previousUpperBound);
+            previousUpperBound = LatencyHistogram.upperBound(bucket);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentileMicros(0.99));
+        for( int i = 1; i <= 1000; ++i ) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        assertEquals(1000, histogram.count());
+        assertEquals(1000000, histogram.maxMicros());
+        assertWithin(500000, histogram.percentileMicros(0.5));
+        assertWithin(990000, histogram.percentileMicros(0.99));
+        assertWithin(999000, histogram.percentileMicros(0.999));
+        assertEquals(1000000, histogram.percentileMicros(1));
+    }
+
+    private static void assertWithin( long expected, long actual ) {
+        assertTrue(expected + " vs " + actual, actual >= expected && actual <= expected * 1.125);
+    }
+}
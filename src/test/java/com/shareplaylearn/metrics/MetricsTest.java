@@ -0,0 +1,66 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.metrics;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void testPrometheusOutput() throws Exception {
+        Metrics metrics = new Metrics();
+        metrics.counter("downloads.bytes").add(42);
+        metrics.gauge("inFlight.download").increment();
+        metrics.timer("storage.get").record(2000000);
+        StringWriter out = new StringWriter();
+        metrics.writePrometheus(out);
+        String text = out.toString();
+        assertTrue(text, text.contains("# TYPE fileservice_downloads_bytes_total counter\nfileservice_downloads_bytes_total 42\n"));
+        assertTrue(text, text.contains("fileservice_in_flight_download 1\n"));
+        assertTrue(text, text.contains("# TYPE fileservice_storage_get_seconds summary\n"));
+        assertTrue(text, text.contains("fileservice_storage_get_seconds{quantile=\"0.99\"} 0.002\n"));
+        assertTrue(text, text.contains("fileservice_storage_get_seconds_count 1\n"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRecordCountsTowardsTheRequest() {
+        Metrics metrics = new Metrics();
+        RequestTiming timing = RequestTiming.start();
+        try {
+            metrics.record("auth", RequestTiming.Phase.AUTH, 1500000);
+            metrics.record("storage.get", RequestTiming.Phase.STORAGE, 2000000);
+            metrics.record("storage.get", RequestTiming.Phase.STORAGE, 1000000);
+            String header = timing.header();
+            assertTrue(header, header.startsWith("auth;dur=1.500, storage;dur=3.000, total;dur="));
+        } finally {
+            RequestTiming.end();
+        }
+        //nothing to add to once the request is done
+        metrics.record("auth", RequestTiming.Phase.AUTH, 1000000);
+        Map<String,Object> timers = (Map<String,Object>) metrics.snapshot().get("timers");
+        assertEquals(2L, (long) ((Map<String,Long>) timers.get("storage.get")).get("count"));
+        assertEquals(2L, (long) ((Map<String,Long>) timers.get("auth")).get("count"));
+    }
+}
@@ -0,0 +1,132 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.resources;
+
+import com.shareplaylearn.FileService;
+import com.shareplaylearn.cache.ItemCache;
+import com.shareplaylearn.cache.ItemKey;
+import com.shareplaylearn.storage.ItemStore;
+import com.shareplaylearn.storage.LocalItemStore;
+import com.shareplaylearn.storage.StorageException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileResourceTest {
+
+    private static final ItemKey KEY = new ItemKey("user1", "unknown", "original", "a.bin");
+
+    private final ItemStore itemStore = FileService.itemStore;
+    private final ItemCache itemCache = FileService.itemCache;
+    private final long itemFetchWaitMillis = FileService.itemFetchWaitMillis;
+    private final ExecutorService requests = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        FileService.itemStore = itemStore;
+        FileService.itemCache = itemCache;
+        FileService.itemFetchWaitMillis = itemFetchWaitMillis;
+        requests.shutdownNow();
+    }
+
+    /**
+     * Holds every get() until it's released, and answers the nth get() with "v<n>".
+     */
+    private static final class SlowStore extends LocalItemStore {
+        final AtomicInteger gets = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+
+        SlowStore() throws IOException {
+            super(Files.createTempDirectory("FileResourceTest"));
+        }
+
+        @Override
+        public byte[] get( String userName, ItemKey key ) throws IOException {
+            int get = gets.incrementAndGet();
+            try {
+                release.await();
+            } catch ( InterruptedException e ) {
+                throw new IOException(e);
+            }
+            return ("v" + get).getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void awaitGets( SlowStore store, int gets ) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while( store.gets.get() < gets ) {
+            assertTrue("The store was never asked", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static byte[] bytes( String value ) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testWaiterThatTimesOutGets503() throws Exception {
+        SlowStore store = new SlowStore();
+        FileService.itemStore = store;
+        FileService.itemFetchWaitMillis = 20;
+        Future<byte[]> first = requests.submit( () -> FileResource.fetchItem("user", KEY) );
+        awaitGets(store, 1);
+        try {
+            FileResource.fetchItem("user", KEY);
+            fail("Expected to time out waiting on the first request's fetch");
+        } catch ( StorageException e ) {
+            assertEquals(503, e.getStatusCode());
+        }
+        //the fetch it gave up on carries on, for the request that started it
+        store.release.countDown();
+        assertArrayEquals(bytes("v1"), first.get(5, TimeUnit.SECONDS));
+        assertEquals(1, store.gets.get());
+    }
+
+    @Test
+    public void testFetchBeforeAnInvalidationIsntShared() throws Exception {
+        SlowStore store = new SlowStore();
+        FileService.itemStore = store;
+        FileService.itemCache = new ItemCache(1024 * 1024, 1024 * 1024);
+        Future<byte[]> before = requests.submit( () -> FileResource.fetchItem("user", KEY) );
+        awaitGets(store, 1);
+        //an upload replaces the item while that's in flight
+        FileService.itemCache.invalidate(KEY.userId, KEY.filename);
+        Future<byte[]> after = requests.submit( () -> FileResource.fetchItem("user", KEY) );
+        awaitGets(store, 2);
+        store.release.countDown();
+        assertArrayEquals(bytes("v1"), before.get(5, TimeUnit.SECONDS));
+        assertArrayEquals(bytes("v2"), after.get(5, TimeUnit.SECONDS));
+        //and only the fetch started after it is cached
+        assertArrayEquals(bytes("v2"), FileService.itemCache.get(KEY));
+    }
+}
@@ -0,0 +1,171 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.shareplaylearn.cache.ItemKey;
+import com.shareplaylearn.models.ItemSchema;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BucketItemStoreTest {
+
+    private static final String ORIGINAL = ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE.toString();
+
+    private FakeS3Server s3;
+    private ExecutorService executor;
+    private BucketItemStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        s3 = new FakeS3Server();
+        //picked up by the default credentials chain, as a deployment's would be
+        System.setProperty("aws.accessKeyId", "test");
+        System.setProperty("aws.secretKey", "test");
+        AmazonS3 client = BucketItemStore.client(s3.endpoint(), "us-east-1", true);
+        executor = MultipartUploader.boundedExecutor(3);
+        //anything from 100 bytes goes up in 64 byte parts
+        store = new BucketItemStore(client, "items", new MultipartUploader(executor, 100, 64, 2, 3, 1));
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+        s3.close();
+    }
+
+    private static ItemKey key( String fileType, String filename ) {
+        return new ItemKey("user/1", fileType, ORIGINAL, filename);
+    }
+
+    @Test
+    public void testPutGetAndRanges() throws Exception {
+        byte[] file = "0123456789".getBytes(StandardCharsets.US_ASCII);
+        store.put("user", "user/1", "a file.txt", file);
+        assertEquals(1, s3.puts.get());
+        ItemKey key = key("unknown", "a file.txt");
+        assertArrayEquals(file, store.get("user", key));
+        try (InputStream in = store.open("user", key)) {
+            assertArrayEquals(file, IOUtils.toByteArray(in));
+        }
+
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        store.transferTo("user", key, 3, 4, Channels.newChannel(range));
+        assertEquals("3456", range.toString("US-ASCII"));
+    }
+
+    @Test
+    public void testLargeItemsAreStreamedInParts() throws Exception {
+        byte[] file = new byte[1000];
+        new Random(1).nextBytes(file);
+        store.put("user", "user/1", "big.bin", new ByteArrayInputStream(file), file.length);
+        assertEquals(0, s3.puts.get());
+        assertEquals(16, s3.parts.get());
+        assertEquals(1, s3.completed.get());
+        assertTrue(s3.uploads.isEmpty());
+        assertArrayEquals(file, store.get("user", key("unknown", "big.bin")));
+
+        //a stream short of its size is abandoned, and what was there stays
+        try {
+            store.put("user", "user/1", "big.bin", new ByteArrayInputStream(new byte[500]), file.length);
+            fail("Expected a short stream to fail");
+        } catch ( IOException e ) {
+            //expected
+        }
+        assertTrue(s3.uploads.isEmpty());
+        assertArrayEquals(file, store.get("user", key("unknown", "big.bin")));
+    }
+
+    @Test
+    public void testStatAndPresign() throws Exception {
+        byte[] file = "presigned".getBytes(StandardCharsets.US_ASCII);
+        long before = System.currentTimeMillis() / 1000 * 1000;
+        store.put("user", "user/1", "a file.txt", file);
+        ItemKey key = key("unknown", "a file.txt");
+        ItemStat stat = store.stat("user", key);
+        assertEquals(file.length, stat.size);
+        assertTrue(stat.lastModified >= before);
+        assertEquals(s3.objects.get("items/items/user%2F1/" + ORIGINAL + "/a+file.txt").etag, stat.digest);
+
+        long expires = System.currentTimeMillis() + 60000;
+        String url = store.presign("user", key, expires);
+        assertTrue(url, url.startsWith(s3.endpoint() + "/items/items/user%252F1/" + ORIGINAL + "/a%2Bfile.txt?"));
+        assertTrue(url, url.contains("X-Amz-Signature="));
+        //the stand-in doesn't check signatures, but the URL has to get to the item without us
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        assertEquals(200, connection.getResponseCode());
+        try (InputStream in = connection.getInputStream()) {
+            assertArrayEquals(file, IOUtils.toByteArray(in));
+        }
+
+        try {
+            store.stat("user", key("unknown", "nothing.bin"));
+            fail("Expected a missing item to be missing");
+        } catch ( StorageException e ) {
+            assertEquals(404, e.getStatusCode());
+        }
+    }
+
+    @Test
+    public void testList() throws Exception {
+        store.put("user", "user/1", "b.png", new byte[3]);
+        store.put("user", "user/1", "a b.bin", new byte[5]);
+        store.put("user", "user/2", "c.bin", new byte[1]);
+        store.putPresentation("user", new ItemKey("user/1", "image", "thumbnail", "b.png"), new byte[1]);
+        List<ListedItem> items = store.list("user", "user/1");
+        assertEquals(2, items.size());
+        assertEquals("a b.bin", items.get(0).name);
+        assertEquals("unknown", items.get(0).fileType);
+        assertEquals("b.png", items.get(1).name);
+        assertEquals("image", items.get(1).fileType);
+        assertEquals(3, ((LocalItemStore.Listing) items.get(1).listing).size);
+        assertEquals(0, store.list("user", "nobody").size());
+    }
+
+    @Test
+    public void testMissingItems() throws Exception {
+        store.put("user", "user/1", "b.png", new byte[3]);
+        for( ItemKey missing : new ItemKey[] { key("unknown", "nothing.bin"), key("unknown", "b.png") } ) {
+            try {
+                store.get("user", missing);
+                fail("Expected " + missing + " to be missing");
+            } catch ( StorageException e ) {
+                assertEquals(404, e.getStatusCode());
+            }
+        }
+    }
+}
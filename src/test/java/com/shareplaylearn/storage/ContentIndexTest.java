@@ -0,0 +1,59 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ContentIndexTest {
+
+    @Test
+    public void testIdenticalContentIsRecognized() {
+        ContentIndex index = new ContentIndex(10);
+        String meme = ContentIndex.hex(ContentIndex.newDigest().digest("meme".getBytes(StandardCharsets.UTF_8)));
+        String other = ContentIndex.hex(ContentIndex.newDigest().digest("other".getBytes(StandardCharsets.UTF_8)));
+        assertEquals(64, meme.length());
+
+        assertFalse(index.holds("a", "meme.jpg", meme, 4));
+        index.stored("a", "meme.jpg", meme);
+        index.stored("b", "funny.jpg", meme);
+        assertTrue(index.holds("a", "meme.jpg", meme, 4));
+        //same content, but not this user's copy of it
+        assertFalse(index.holds("c", "meme.jpg", meme, 4));
+
+        index.stored("a", "meme.jpg", other);
+        assertFalse(index.holds("a", "meme.jpg", meme, 4));
+        index.forget("b", "funny.jpg");
+        assertFalse(index.holds("b", "funny.jpg", meme, 4));
+        assertEquals(1L, (long) index.stats().get("skippedUploads"));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedItemsAreForgotten() {
+        ContentIndex index = new ContentIndex(1);
+        index.stored("a", "1.jpg", "d1");
+        index.stored("a", "2.jpg", "d2");
+        assertFalse(index.holds("a", "1.jpg", "d1", 1));
+        assertTrue(index.holds("a", "2.jpg", "d2", 1));
+    }
+}
@@ -0,0 +1,334 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stands in for S3 in tests: a server on localhost that keeps objects in memory, and answers enough of
+ * the S3 REST API (path style) for BucketItemStore: PUT, GET (with ranges), HEAD and DELETE of objects,
+ * ListObjectsV2, and multipart uploads. Signatures (including those on presigned URLs) aren't checked.
+ */
+class FakeS3Server implements AutoCloseable {
+
+    static class StoredObject {
+        final byte[] bytes;
+        final String etag;
+        final long lastModified;
+        final Map<String,String> metadata;
+
+        StoredObject( byte[] bytes, String etag, Map<String,String> metadata ) {
+            this.bytes = bytes;
+            this.etag = etag;
+            //S3 only keeps seconds
+            this.lastModified = System.currentTimeMillis() / 1000 * 1000;
+            this.metadata = metadata;
+        }
+    }
+
+    //by bucket/key
+    final Map<String,StoredObject> objects = new ConcurrentSkipListMap<>();
+    final Map<String,Map<Integer,byte[]>> uploads = new ConcurrentHashMap<>();
+    final AtomicInteger puts = new AtomicInteger();
+    final AtomicInteger parts = new AtomicInteger();
+    final AtomicInteger completed = new AtomicInteger();
+    final AtomicInteger gets = new AtomicInteger();
+    private final AtomicInteger nextUploadId = new AtomicInteger();
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    FakeS3Server() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try {
+                handle(exchange);
+            } catch ( RuntimeException e ) {
+                respond(exchange, 500, error("InternalError", e.toString()));
+            } finally {
+                exchange.close();
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String endpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle( HttpExchange exchange ) throws IOException {
+        String path = exchange.getRequestURI().getPath().substring(1);
+        int slash = path.indexOf('/');
+        String bucket = slash < 0 ? path : path.substring(0, slash);
+        String key = slash < 0 ? "" : path.substring(slash + 1);
+        Map<String,String> query = query(exchange.getRequestURI().getRawQuery());
+        String method = exchange.getRequestMethod();
+
+        if( method.equals("GET") && query.containsKey("list-type") ) {
+            list(exchange, bucket, query);
+        } else if( method.equals("POST") && query.containsKey("uploads") ) {
+            String uploadId = "upload-" + nextUploadId.incrementAndGet();
+            uploads.put(uploadId, new ConcurrentHashMap<>());
+            respond(exchange, 200, "<InitiateMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>" + xml(key)
+                    + "</Key><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+        } else if( method.equals("PUT") && query.containsKey("uploadId") ) {
+            Map<Integer,byte[]> upload = uploads.get(query.get("uploadId"));
+            if( upload == null ) {
+                respond(exchange, 404, error("NoSuchUpload", "No such upload"));
+                return;
+            }
+            byte[] part = body(exchange);
+            upload.put(Integer.parseInt(query.get("partNumber")), part);
+            parts.incrementAndGet();
+            exchange.getResponseHeaders().set("ETag", "\"" + hex(md5(part)) + "\"");
+            respond(exchange, 200, null);
+        } else if( method.equals("POST") && query.containsKey("uploadId") ) {
+            Map<Integer,byte[]> upload = uploads.remove(query.get("uploadId"));
+            if( upload == null ) {
+                respond(exchange, 404, error("NoSuchUpload", "No such upload"));
+                return;
+            }
+            ByteArrayOutputStream object = new ByteArrayOutputStream();
+            ByteArrayOutputStream partDigests = new ByteArrayOutputStream();
+            for( byte[] part : new TreeMap<>(upload).values() ) {
+                object.write(part);
+                partDigests.write(md5(part));
+            }
+            String etag = hex(md5(partDigests.toByteArray())) + "-" + upload.size();
+            objects.put(bucket + "/" + key, new StoredObject(object.toByteArray(), etag, new HashMap<>()));
+            completed.incrementAndGet();
+            respond(exchange, 200, "<CompleteMultipartUploadResult><Bucket>" + bucket + "</Bucket><Key>" + xml(key)
+                    + "</Key><ETag>\"" + etag + "\"</ETag></CompleteMultipartUploadResult>");
+        } else if( method.equals("DELETE") && query.containsKey("uploadId") ) {
+            uploads.remove(query.get("uploadId"));
+            respond(exchange, 204, null);
+        } else if( method.equals("PUT") ) {
+            byte[] bytes = body(exchange);
+            Map<String,String> metadata = new HashMap<>();
+            for( Map.Entry<String,List<String>> header : exchange.getRequestHeaders().entrySet() ) {
+                if( header.getKey().toLowerCase(Locale.ROOT).startsWith("x-amz-meta-") ) {
+                    metadata.put(header.getKey().toLowerCase(Locale.ROOT), header.getValue().get(0));
+                }
+            }
+            StoredObject object = new StoredObject(bytes, hex(md5(bytes)), metadata);
+            objects.put(bucket + "/" + key, object);
+            puts.incrementAndGet();
+            exchange.getResponseHeaders().set("ETag", "\"" + object.etag + "\"");
+            respond(exchange, 200, null);
+        } else if( method.equals("DELETE") ) {
+            objects.remove(bucket + "/" + key);
+            respond(exchange, 204, null);
+        } else if( method.equals("GET") || method.equals("HEAD") ) {
+            get(exchange, bucket + "/" + key, method.equals("HEAD"));
+        } else {
+            respond(exchange, 405, error("MethodNotAllowed", method));
+        }
+    }
+
+    private void get( HttpExchange exchange, String name, boolean head ) throws IOException {
+        StoredObject object = objects.get(name);
+        if( object == null ) {
+            if( head ) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                respond(exchange, 404, error("NoSuchKey", "The specified key does not exist."));
+            }
+            return;
+        }
+        gets.incrementAndGet();
+        long start = 0;
+        long end = object.bytes.length - 1;
+        int status = 200;
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if( range != null && range.startsWith("bytes=") ) {
+            String[] bounds = range.substring("bytes=".length()).split("-");
+            start = Long.parseLong(bounds[0]);
+            end = Math.min(end, Long.parseLong(bounds[1]));
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + object.bytes.length);
+        }
+        exchange.getResponseHeaders().set("ETag", "\"" + object.etag + "\"");
+        exchange.getResponseHeaders().set("Last-Modified", httpDate(object.lastModified));
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        for( Map.Entry<String,String> metadata : object.metadata.entrySet() ) {
+            exchange.getResponseHeaders().set(metadata.getKey(), metadata.getValue());
+        }
+        long length = end - start + 1;
+        if( head ) {
+            exchange.getResponseHeaders().set("Content-Length", Long.toString(length));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(object.bytes, (int) start, (int) length);
+        }
+    }
+
+    private void list( HttpExchange exchange, String bucket, Map<String,String> query ) throws IOException {
+        String prefix = bucket + "/" + query.getOrDefault("prefix", "");
+        boolean urlEncoded = "url".equals(query.get("encoding-type"));
+        StringBuilder contents = new StringBuilder();
+        int count = 0;
+        for( Map.Entry<String,StoredObject> object : objects.entrySet() ) {
+            if( !object.getKey().startsWith(prefix) ) {
+                continue;
+            }
+            String key = object.getKey().substring(bucket.length() + 1);
+            contents.append("<Contents><Key>").append(urlEncoded ? URLEncoder.encode(key, "UTF-8") : xml(key))
+                    .append("</Key><LastModified>").append(isoDate(object.getValue().lastModified))
+                    .append("</LastModified><ETag>\"").append(object.getValue().etag)
+                    .append("\"</ETag><Size>").append(object.getValue().bytes.length)
+                    .append("</Size><StorageClass>STANDARD</StorageClass></Contents>");
+            ++count;
+        }
+        respond(exchange, 200, "<ListBucketResult><Name>" + bucket + "</Name><Prefix>"
+                + xml(query.getOrDefault("prefix", "")) + "</Prefix><KeyCount>" + count
+                + "</KeyCount><MaxKeys>1000</MaxKeys>" + (urlEncoded ? "<EncodingType>url</EncodingType>" : "")
+                + "<IsTruncated>false</IsTruncated>" + contents + "</ListBucketResult>");
+    }
+
+    /**
+     * The request body, unwrapped from the signed chunks the SDK sends uploads in over plain http.
+     */
+    private static byte[] body( HttpExchange exchange ) throws IOException {
+        byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+        String contentHash = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        if( contentHash == null || !contentHash.startsWith("STREAMING-") ) {
+            return body;
+        }
+        //each chunk is: hex size;chunk-signature=...\r\n data \r\n, ending with a chunk of size 0
+        DataInputStream chunks = new DataInputStream(new ByteArrayInputStream(body));
+        ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        while( true ) {
+            String header = line(chunks);
+            int size = Integer.parseInt(header.substring(0, header.indexOf(';')), 16);
+            if( size == 0 ) {
+                return decoded.toByteArray();
+            }
+            byte[] chunk = new byte[size];
+            chunks.readFully(chunk);
+            decoded.write(chunk);
+            line(chunks);
+        }
+    }
+
+    private static String line( InputStream in ) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while( (c = in.read()) != -1 && c != '\n' ) {
+            if( c != '\r' ) {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private static void respond( HttpExchange exchange, int status, String xml ) throws IOException {
+        if( xml == null ) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        byte[] body = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + xml).getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static String error( String code, String message ) {
+        return "<Error><Code>" + code + "</Code><Message>" + xml(message) + "</Message></Error>";
+    }
+
+    private static Map<String,String> query( String rawQuery ) throws IOException {
+        Map<String,String> query = new HashMap<>();
+        if( rawQuery == null ) {
+            return query;
+        }
+        for( String parameter : rawQuery.split("&") ) {
+            int equals = parameter.indexOf('=');
+            String name = equals < 0 ? parameter : parameter.substring(0, equals);
+            String value = equals < 0 ? "" : parameter.substring(equals + 1);
+            query.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return query;
+    }
+
+    private static String xml( String text ) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    private static String httpDate( long millis ) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(millis));
+    }
+
+    private static String isoDate( long millis ) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+    private static byte[] md5( byte[] bytes ) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(bytes);
+        } catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex( byte[] bytes ) {
+        return ContentIndex.hex(bytes);
+    }
+}
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import com.shareplaylearn.cache.ItemKey;
+import com.shareplaylearn.models.ItemSchema;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class LocalItemStoreTest {
+
+    private static final String ORIGINAL = ItemSchema.PresentationType.ORIGINAL_PRESENTATION_TYPE.toString();
+
+    private static ItemKey key( String fileType, String filename ) {
+        return new ItemKey("user/1", fileType, ORIGINAL, filename);
+    }
+
+    @Test
+    public void testPutGetAndRanges() throws Exception {
+        LocalItemStore store = new LocalItemStore(Files.createTempDirectory("store"));
+        byte[] file = "0123456789".getBytes(StandardCharsets.US_ASCII);
+        store.put("user", "user/1", "a file.txt", file);
+        ItemKey key = key("unknown", "a file.txt");
+        assertArrayEquals(file, store.get("user", key));
+        assertEquals(file.length, store.stat("user", key).size);
+
+        ByteArrayOutputStream range = new ByteArrayOutputStream();
+        store.transferTo("user", key, 3, 4, Channels.newChannel(range));
+        assertEquals("3456", range.toString("US-ASCII"));
+
+        //replaced whole
+        byte[] replacement = "abc".getBytes(StandardCharsets.US_ASCII);
+        store.put("user", "user/1", "a file.txt", replacement);
+        assertArrayEquals(replacement, store.get("user", key));
+    }
+
+    @Test
+    public void testStreamedPut() throws Exception {
+        LocalItemStore store = new LocalItemStore(Files.createTempDirectory("store"));
+        byte[] file = new byte[200 * 1024 + 7];
+        new Random(1).nextBytes(file);
+        store.put("user", "user/1", "big.bin", new ByteArrayInputStream(file), file.length);
+        assertArrayEquals(file, store.get("user", key("unknown", "big.bin")));
+
+        //a short stream stores nothing, and leaves what was there
+        try {
+            store.put("user", "user/1", "big.bin", new ByteArrayInputStream(new byte[10]), file.length);
+            fail("Expected a short stream to be rejected");
+        } catch ( IOException e ) {
+            assertArrayEquals(file, store.get("user", key("unknown", "big.bin")));
+        }
+    }
+
+    @Test
+    public void testContentIsStoredOnce() throws Exception {
+        Path root = Files.createTempDirectory("store");
+        LocalItemStore store = new LocalItemStore(root);
+        byte[] meme = "meme".getBytes(StandardCharsets.US_ASCII);
+        String digest = ContentIndex.hex(ContentIndex.newDigest().digest(meme));
+        store.put("user", "user/1", "meme.jpg", meme);
+        store.put("other", "user/2", "funny.jpg", meme);
+        assertEquals(2, store.references(digest));
+        assertEquals(1, blobs(root));
+
+        //replacing one copy leaves the other
+        store.put("user", "user/1", "meme.jpg", new byte[2]);
+        assertEquals(1, store.references(digest));
+        assertArrayEquals(meme, store.get("other", new ItemKey("user/2", "image", ORIGINAL, "funny.jpg")));
+        //and replacing the last one deletes it
+        store.put("other", "user/2", "funny.jpg", new byte[2]);
+        assertEquals(0, store.references(digest));
+        assertEquals(1, blobs(root));
+    }
+
+    @Test
+    public void testReferencesAreRecountedOnOpen() throws Exception {
+        Path root = Files.createTempDirectory("store");
+        byte[] meme = "meme".getBytes(StandardCharsets.US_ASCII);
+        String digest = ContentIndex.hex(ContentIndex.newDigest().digest(meme));
+        LocalItemStore store = new LocalItemStore(root);
+        store.put("user", "user/1", "a.jpg", meme);
+        store.put("user", "user/1", "b.jpg", meme);
+        //as a crash after storing a blob, but before anything pointed at it, would leave
+        Path orphan = root.resolve("blobs").resolve("ab").resolve("ab" + digest.substring(2));
+        Files.createDirectories(orphan.getParent());
+        Files.write(orphan, new byte[1]);
+
+        LocalItemStore reopened = new LocalItemStore(root);
+        assertEquals(2, reopened.references(digest));
+        assertFalse(Files.exists(orphan));
+        assertArrayEquals(meme, reopened.get("user", new ItemKey("user/1", "image", ORIGINAL, "b.jpg")));
+    }
+
+    private static long blobs( Path root ) throws IOException {
+        try (Stream<Path> files = Files.walk(root.resolve("blobs"))) {
+            return files.filter(Files::isRegularFile).count();
+        }
+    }
+
+    @Test
+    public void testList() throws Exception {
+        LocalItemStore store = new LocalItemStore(Files.createTempDirectory("store"));
+        store.put("user", "user/1", "b.png", new byte[3]);
+        store.put("user", "user/1", "a.bin", new byte[5]);
+        store.put("user", "user/2", "c.bin", new byte[1]);
+        List<ListedItem> items = store.list("user", "user/1");
+        assertEquals(2, items.size());
+        assertEquals("a.bin", items.get(0).name);
+        assertEquals("unknown", items.get(0).fileType);
+        assertEquals("b.png", items.get(1).name);
+        assertEquals("image", items.get(1).fileType);
+        assertEquals(3, ((LocalItemStore.Listing) items.get(1).listing).size);
+        assertEquals(0, store.list("user", "nobody").size());
+    }
+
+    @Test
+    public void testMissingItems() throws Exception {
+        LocalItemStore store = new LocalItemStore(Files.createTempDirectory("store"));
+        store.put("user", "user/1", "b.png", new byte[3]);
+        for( ItemKey missing : Arrays.asList(key("unknown", "nothing.bin"), key("unknown", "b.png")) ) {
+            try {
+                store.get("user", missing);
+                fail("Expected " + missing + " to be missing");
+            } catch ( StorageException e ) {
+                assertEquals(404, e.getStatusCode());
+            }
+        }
+        try {
+            store.put("user", "user/1", "..", new byte[1]);
+            fail("Expected .. to be rejected");
+        } catch ( StorageException e ) {
+            assertEquals(400, e.getStatusCode());
+        }
+    }
+}
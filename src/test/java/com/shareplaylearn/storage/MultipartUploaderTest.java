@@ -0,0 +1,208 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MultipartUploaderTest {
+
+    /**
+     * Stands in for S3: keeps parts in memory, and can be told to fail parts a number of times.
+     */
+    private static class InMemoryTarget implements MultipartTarget {
+        final Map<String,byte[]> objects = new ConcurrentHashMap<>();
+        final Map<String,Map<Integer,byte[]>> uploads = new ConcurrentHashMap<>();
+        final Set<String> aborted = ConcurrentHashMap.newKeySet();
+        final Map<Integer,AtomicInteger> failuresLeft = new ConcurrentHashMap<>();
+        final AtomicInteger puts = new AtomicInteger();
+        final AtomicInteger nextId = new AtomicInteger();
+
+        @Override
+        public void put( String key, byte[] bytes, int offset, int length ) {
+            puts.incrementAndGet();
+            objects.put(key, Arrays.copyOfRange(bytes, offset, offset + length));
+        }
+
+        @Override
+        public String initiate( String key ) {
+            String uploadId = "upload-" + nextId.incrementAndGet();
+            uploads.put(uploadId, new ConcurrentHashMap<>());
+            return uploadId;
+        }
+
+        @Override
+        public String uploadPart( String key, String uploadId, int partNumber, byte[] bytes, int offset, int length )
+                throws IOException {
+            AtomicInteger failures = failuresLeft.get(partNumber);
+            if( failures != null && failures.getAndDecrement() > 0 ) {
+                throw new IOException("Connection reset uploading part " + partNumber);
+            }
+            uploads.get(uploadId).put(partNumber, Arrays.copyOfRange(bytes, offset, offset + length));
+            return "etag-" + partNumber;
+        }
+
+        @Override
+        public void complete( String key, String uploadId, List<String> partTags ) {
+            Map<Integer,byte[]> parts = uploads.remove(uploadId);
+            ByteArrayOutputStream object = new ByteArrayOutputStream();
+            for( int partNumber = 1; partNumber <= partTags.size(); ++partNumber ) {
+                assertEquals("etag-" + partNumber, partTags.get(partNumber - 1));
+                object.write(parts.get(partNumber), 0, parts.get(partNumber).length);
+            }
+            objects.put(key, object.toByteArray());
+        }
+
+        @Override
+        public void abort( String key, String uploadId ) {
+            uploads.remove(uploadId);
+            aborted.add(uploadId);
+        }
+    }
+
+    private static byte[] testObject( int size ) {
+        byte[] object = new byte[size];
+        for( int i = 0; i < size; ++i ) {
+            object[i] = (byte) (i % 251);
+        }
+        return object;
+    }
+
+    @Test
+    public void testSmallObjectsAreOnePut() throws IOException {
+        ExecutorService executor = MultipartUploader.boundedExecutor(2);
+        try {
+            InMemoryTarget target = new InMemoryTarget();
+            MultipartUploader uploader = new MultipartUploader(executor, 100, 10, 2, 3, 1);
+            byte[] object = testObject(99);
+            uploader.upload(target, "small", object);
+            assertEquals(1, target.puts.get());
+            assertTrue(target.uploads.isEmpty());
+            assertArrayEquals(object, target.objects.get("small"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testPartsAreRetriedAndReassembled() throws IOException {
+        ExecutorService executor = MultipartUploader.boundedExecutor(3);
+        try {
+            InMemoryTarget target = new InMemoryTarget();
+            target.failuresLeft.put(2, new AtomicInteger(2));
+            target.failuresLeft.put(7, new AtomicInteger(1));
+            MultipartUploader uploader = new MultipartUploader(executor, 100, 10, 2, 3, 1);
+            byte[] object = testObject(105);
+            uploader.upload(target, "large", object);
+            assertEquals(0, target.puts.get());
+            assertArrayEquals(object, target.objects.get("large"));
+            assertEquals(3L, (long) uploader.stats().get("retries"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testStreamsAreSentAFewPartsAtATime() throws IOException {
+        ExecutorService executor = MultipartUploader.boundedExecutor(3);
+        try {
+            InMemoryTarget target = new InMemoryTarget();
+            MultipartUploader uploader = new MultipartUploader(executor, 100, 10, 2, 3, 1);
+            byte[] object = testObject(1005);
+            //counts how far ahead of the parts sent we've read
+            AtomicInteger maxAhead = new AtomicInteger();
+            InputStream content = new FilterInputStream(new ByteArrayInputStream(object)) {
+                int read;
+
+                @Override
+                public int read( byte[] b, int off, int len ) throws IOException {
+                    int n = super.read(b, off, len);
+                    read += Math.max(n, 0);
+                    int sent = 0;
+                    for( Map<Integer,byte[]> parts : target.uploads.values() ) {
+                        sent += parts.size() * 10;
+                    }
+                    maxAhead.accumulateAndGet(read - sent, Math::max);
+                    return n;
+                }
+            };
+            uploader.upload(target, "streamed", content, object.length);
+            assertArrayEquals(object, target.objects.get("streamed"));
+            //two parts in flight, and the one being read
+            assertTrue("Read " + maxAhead.get() + " bytes ahead", maxAhead.get() <= 30);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testShortStreamsAbortTheUpload() {
+        ExecutorService executor = MultipartUploader.boundedExecutor(3);
+        try {
+            InMemoryTarget target = new InMemoryTarget();
+            MultipartUploader uploader = new MultipartUploader(executor, 100, 10, 2, 3, 1);
+            try {
+                uploader.upload(target, "short", new ByteArrayInputStream(testObject(150)), 200);
+                fail("The stream ends before its size, so the upload should fail.");
+            } catch ( IOException e ) {
+                //expected
+            }
+            assertTrue(target.objects.isEmpty());
+            assertEquals(1, target.aborted.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFailedPartsAbortTheUpload() {
+        ExecutorService executor = MultipartUploader.boundedExecutor(3);
+        try {
+            InMemoryTarget target = new InMemoryTarget();
+            target.failuresLeft.put(4, new AtomicInteger(5));
+            MultipartUploader uploader = new MultipartUploader(executor, 100, 10, 2, 3, 1);
+            try {
+                uploader.upload(target, "large", testObject(200));
+                fail("Part 4 never goes through, so the upload should fail.");
+            } catch ( IOException e ) {
+                //expected
+            }
+            assertTrue(target.objects.isEmpty());
+            assertEquals(1, target.aborted.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.storage;
+
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UsageTrackerTest {
+
+    @Test
+    public void testUsageIsScannedOnceThenTracked() throws Exception {
+        LocalItemStore store = new LocalItemStore(Files.createTempDirectory("store"));
+        store.put("user", "user1", "a", new byte[30]);
+        store.put("user", "user1", "b", new byte[20]);
+        UsageTracker usage = new UsageTracker(100, 10, 1, TimeUnit.HOURS);
+        assertEquals(50, usage.usage(store, "user", "user1"));
+
+        //replacing an item only counts the difference
+        assertNotNull(usage.reserve(store, "user", "user1", "a", 60));
+        assertEquals(80, usage.usage(store, "user", "user1"));
+        assertFalse(usage.wouldExceed(store, "user", "user1", "a", 80));
+        assertTrue(usage.wouldExceed(store, "user", "user1", "c", 21));
+        assertNull(usage.reserve(store, "user", "user1", "c", 21));
+        assertNotNull(usage.reserve(store, "user", "user1", "c", 20));
+
+        //we went by what we'd tracked, not the store, which never saw those
+        assertEquals(100, usage.usage(store, "user", "user1"));
+        assertEquals(1L, (long) usage.stats().get("scans"));
+        assertEquals(2L, (long) usage.stats().get("rejected"));
+    }
+
+    @Test
+    public void testBatchesAreCheckedAsAWhole() throws Exception {
+        LocalItemStore store = new LocalItemStore(Files.createTempDirectory("store"));
+        store.put("user", "user1", "a", new byte[50]);
+        UsageTracker usage = new UsageTracker(100, 10, 1, TimeUnit.HOURS);
+        Map<String,Long> batch = new HashMap<>();
+        batch.put("b", 30L);
+        batch.put("c", 20L);
+        assertFalse(usage.wouldExceed(store, "user", "user1", batch));
+        batch.put("d", 1L);
+        assertTrue(usage.wouldExceed(store, "user", "user1", batch));
+        //what the batch replaces is freed
+        batch.put("a", 10L);
+        assertFalse(usage.wouldExceed(store, "user", "user1", batch));
+    }
+
+    @Test
+    public void testUploadsBiggerThanTheQuotaAreTurnedAwayForAnyone() {
+        UsageTracker usage = new UsageTracker(100, 10, 1, TimeUnit.HOURS);
+        assertFalse(usage.exceedsQuota(100));
+        assertTrue(usage.exceedsQuota(101));
+        assertEquals(1L, (long) usage.stats().get("rejected"));
+        assertFalse(UsageTracker.disabled().exceedsQuota(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testCancelledReservationsAreGivenBack() throws Exception {
+        LocalItemStore store = new LocalItemStore(Files.createTempDirectory("store"));
+        store.put("user", "user1", "a", new byte[30]);
+        UsageTracker usage = new UsageTracker(100, 10, 1, TimeUnit.HOURS);
+        UsageTracker.Reservation replaced = usage.reserve(store, "user", "user1", "a", 90);
+        UsageTracker.Reservation added = usage.reserve(store, "user", "user1", "b", 10);
+        assertEquals(100, usage.usage(store, "user", "user1"));
+        replaced.cancel();
+        added.cancel();
+        assertEquals(30, usage.usage(store, "user", "user1"));
+    }
+
+    @Test
+    public void testReconcilePicksUpChangesElsewhere() throws Exception {
+        LocalItemStore store = new LocalItemStore(Files.createTempDirectory("store"));
+        UsageTracker usage = new UsageTracker(100, 10, 0, TimeUnit.SECONDS);
+        assertEquals(0, usage.usage(store, "user", "user1"));
+        store.put("user", "user1", "a", new byte[40]);
+        assertEquals(40, usage.usage(store, "user", "user1"));
+    }
+
+    @Test
+    public void testDisabledTracksNothing() throws Exception {
+        UsageTracker usage = UsageTracker.disabled();
+        assertFalse(usage.wouldExceed(null, "user", "user1", "a", Long.MAX_VALUE));
+        assertNotNull(usage.reserve(null, "user", "user1", "a", Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * Copyright 2016 Stuart Smith
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.shareplaylearn.upload;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class UploadSessionsTest {
+
+    private static byte[] testFile( int size ) {
+        byte[] file = new byte[size];
+        for( int i = 0; i < size; ++i ) {
+            file[i] = (byte) (i * 31);
+        }
+        return file;
+    }
+
+    private static InputStream chunk( byte[] file, UploadSession session, int chunk ) {
+        return new ByteArrayInputStream( file, chunk * session.chunkSize, (int) session.chunkLength(chunk) );
+    }
+
+    @Test
+    public void testChunksAssembleInOrder() throws Exception {
+        Path directory = Files.createTempDirectory("uploads");
+        UploadSessions sessions = new UploadSessions(directory, 10, 10, 10, 1, TimeUnit.HOURS);
+        byte[] file = testFile(25);
+        UploadSession session = sessions.create("user", "userId", "file.bin", "application/octet-stream", file.length);
+        assertEquals(3, session.chunkCount());
+        assertEquals(5, session.chunkLength(2));
+        assertEquals(-1, session.chunkLength(3));
+
+        session.writeChunk(2, chunk(file, session, 2));
+        session.writeChunk(0, chunk(file, session, 0));
+        //resending is fine
+        session.writeChunk(0, chunk(file, session, 0));
+        assertEquals(Collections.singletonList(1), session.missingChunks());
+        assertNull(session.close());
+
+        session.writeChunk(1, chunk(file, session, 1));
+        try (InputStream assembled = session.close()) {
+            assertArrayEquals(file, IOUtils.toByteArray(assembled));
+        }
+        try {
+            session.writeChunk(1, chunk(file, session, 1));
+            fail("Closed sessions shouldn't take chunks.");
+        } catch ( IllegalStateException e ) {
+            //expected
+        }
+        sessions.remove(session);
+        assertNull(sessions.get(session.id));
+        assertFalse(Files.exists(directory.resolve(session.id)));
+    }
+
+    @Test
+    public void testShortChunksAreNotKept() throws Exception {
+        UploadSessions sessions = new UploadSessions(Files.createTempDirectory("uploads"), 10, 10, 10, 1, TimeUnit.HOURS);
+        UploadSession session = sessions.create("user", "userId", "file.bin", "application/octet-stream", 20);
+        try {
+            session.writeChunk(0, new ByteArrayInputStream(new byte[5]));
+            fail("A short chunk should fail.");
+        } catch ( EOFException e ) {
+            //expected
+        }
+        assertEquals(Arrays.asList(0, 1), session.missingChunks());
+    }
+
+    @Test
+    public void testSessionLimitsAndExpiry() throws Exception {
+        UploadSessions sessions = new UploadSessions(Files.createTempDirectory("uploads"), 10, 1, 1, 10, TimeUnit.MILLISECONDS);
+        UploadSession session = sessions.create("user", "userId", "file.bin", "application/octet-stream", 20);
+        assertNull(sessions.create("user", "userId", "other.bin", "application/octet-stream", 20));
+        Thread.sleep(20);
+        //the idle one is abandoned to make room
+        assertTrue(sessions.create("user", "userId", "other.bin", "application/octet-stream", 20) != null);
+        assertNull(sessions.get(session.id));
+    }
+
+    @Test
+    public void testPerUserLimit() throws Exception {
+        UploadSessions sessions = new UploadSessions(Files.createTempDirectory("uploads"), 10, 3, 2, 1, TimeUnit.HOURS);
+        UploadSession first = sessions.create("user", "userId", "1.bin", "application/octet-stream", 20);
+        sessions.create("user", "userId", "2.bin", "application/octet-stream", 20);
+        assertNull(sessions.create("user", "userId", "3.bin", "application/octet-stream", 20));
+        //someone else still gets the last one
+        assertTrue(sessions.create("other", "otherId", "1.bin", "application/octet-stream", 20) != null);
+        assertNull(sessions.create("third", "thirdId", "1.bin", "application/octet-stream", 20));
+
+        sessions.remove(first);
+        //removing it twice only gives back one slot
+        sessions.remove(first);
+        assertTrue(sessions.create("user", "userId", "3.bin", "application/octet-stream", 20) != null);
+        assertNull(sessions.create("third", "thirdId", "1.bin", "application/octet-stream", 20));
+    }
+
+    @Test
+    public void testConcurrentCreatesStayWithinTheLimit() throws Exception {
+        UploadSessions sessions = new UploadSessions(Files.createTempDirectory("uploads"), 10, 5, 5, 1, TimeUnit.HOURS);
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<Future<UploadSession>> creates = new ArrayList<>();
+        for( int i = 0; i < 40; ++i ) {
+            creates.add(threads.submit(() ->
+                    sessions.create("user", "userId", "file.bin", "application/octet-stream", 20)));
+        }
+        int created = 0;
+        for( Future<UploadSession> create : creates ) {
+            created += create.get() != null ? 1 : 0;
+        }
+        threads.shutdown();
+        assertEquals(5, created);
+        assertEquals(5, sessions.size());
+    }
+}